@@ -328,6 +328,16 @@ public class DbSettings extends SettingsBase {
      */
     public final boolean mvStore = get("MV_STORE", false);
 
+    /**
+     * Database setting <code>MV_STORE_PRELOAD_THREADS</code>
+     * (default: the number of processors, at most 4).<br />
+     * The number of threads that read the root pages of all tables and
+     * indexes when opening a database that uses the MVStore. If set to 0, the
+     * pages are read when opening the table or index.
+     */
+    public final int mvStorePreloadThreads = get("MV_STORE_PRELOAD_THREADS",
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     private DbSettings(HashMap<String, String> s) {
         super(s);
     }
@@ -27,4 +27,15 @@ public interface SpatialIndex extends Index {
      */
     Cursor findByGeometry(TableFilter filter, SearchRow intersection);
 
+    /**
+     * Create a cursor to iterate over the rows ordered by the distance of
+     * their bounding box to the bounding box of the given geometry (nearest
+     * first). To get the k nearest rows, read the first k rows.
+     *
+     * @param filter the table filter
+     * @param near the row that contains the geometry
+     * @return the cursor to iterate over the results
+     */
+    Cursor findNearest(TableFilter filter, SearchRow near);
+
 }
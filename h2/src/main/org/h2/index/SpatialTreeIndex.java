@@ -5,8 +5,11 @@
  */
 package org.h2.index;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Iterator;
 
+import org.h2.api.DatabaseEventListener;
 import org.h2.engine.Constants;
 import org.h2.engine.Session;
 import org.h2.message.DbException;
@@ -21,6 +24,8 @@ import org.h2.table.Column;
 import org.h2.table.IndexColumn;
 import org.h2.table.Table;
 import org.h2.table.TableFilter;
+import org.h2.util.MathUtils;
+import org.h2.util.New;
 import org.h2.value.Value;
 import org.h2.value.ValueGeometry;
 
@@ -127,6 +132,30 @@ public class SpatialTreeIndex extends BaseIndex implements SpatialIndex {
         treeMap.add(getEnvelope(row), row.getKey());
     }
 
+    /**
+     * Add all rows of the cursor to the index. If the index is empty, the
+     * r-tree is built using bulk loading, so that the pages are fully packed
+     * and overlap less than when adding the rows one at a time.
+     *
+     * @param session the session
+     * @param cursor the cursor that returns the rows
+     */
+    public void addAll(Session session, Cursor cursor) {
+        if (closed) {
+            throw DbException.throwInternalError();
+        }
+        ArrayList<SimpleImmutableEntry<SpatialKey, Long>> list = New.arrayList();
+        String n = table.getName() + ":" + getName();
+        int total = MathUtils.convertLongToInt(table.getRowCountApproximation());
+        while (cursor.next()) {
+            Row row = cursor.get();
+            database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
+                    list.size(), total);
+            list.add(new SimpleImmutableEntry<SpatialKey, Long>(getEnvelope(row), row.getKey()));
+        }
+        treeMap.addAll(list.iterator());
+    }
+
     private SpatialKey getEnvelope(SearchRow row) {
         Value v = row.getValue(columnIds[0]);
         Geometry g = ((ValueGeometry) v.convertTo(Value.GEOMETRY)).getGeometry();
@@ -168,6 +197,11 @@ public class SpatialTreeIndex extends BaseIndex implements SpatialIndex {
         return new SpatialCursor(treeMap.findIntersectingKeys(getEnvelope(intersection)), table, filter.getSession());
     }
 
+    @Override
+    public Cursor findNearest(TableFilter filter, SearchRow near) {
+        return new SpatialCursor(treeMap.findNearestKeys(getEnvelope(near)), table, filter.getSession());
+    }
+
     @Override
     protected long getCostRangeIndex(int[] masks, long rowCount, TableFilter filter, SortOrder sortOrder) {
         rowCount += Constants.COST_ROW_OFFSET;
@@ -8,6 +8,7 @@ package org.h2.mvstore;
 
 import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A chunk of data, containing one or multiple pages.
@@ -61,11 +62,31 @@ public class Chunk {
      */
     long maxLengthLive;
 
+    /**
+     * The sum of the write counts of all pages, that is, how many times the
+     * pages were changed before. Chunks with a high average write count
+     * contain hot data.
+     */
+    long pageWriteCount;
+
+    /**
+     * The number of pages that were read from this chunk (the pages that
+     * were not in the cache). Pages are read concurrently, by the
+     * application as well as by the prefetch and preload threads.
+     */
+    final AtomicLong pageReadCount = new AtomicLong();
+
     /**
      * The garbage collection priority.
      */
     int collectPriority;
 
+    /**
+     * The newest version in which a page of this chunk was removed. This
+     * value is not persisted.
+     */
+    long lastFreedVersion;
+
     /**
      * The position of the meta root.
      */
@@ -149,6 +170,10 @@ public class Chunk {
         c.metaRootPos = Long.parseLong(map.get("metaRoot"));
         c.time = Long.parseLong(map.get("time"));
         c.version = Long.parseLong(map.get("version"));
+        String s2 = map.get("pageWrites");
+        c.pageWriteCount = s2 == null ? 0 : Long.parseLong(s2);
+        s2 = map.get("pageReads");
+        c.pageReadCount.set(s2 == null ? 0 : Long.parseLong(s2));
         return c;
     }
 
@@ -180,6 +205,8 @@ public class Chunk {
                 "metaRoot:" + metaRootPos + "," +
                 "pageCount:" + pageCount + "," +
                 "pageCountLive:" + pageCountLive + "," +
+                "pageReads:" + pageReadCount.get() + "," +
+                "pageWrites:" + pageWriteCount + "," +
                 "start:" + start + "," +
                 "time:" + time + "," +
                 "version:" + version;
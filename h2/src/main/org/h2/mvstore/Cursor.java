@@ -6,7 +6,9 @@
  */
 package org.h2.mvstore;
 
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.Future;
 
 /**
  * A cursor to iterate over elements in ascending order.
@@ -20,12 +22,19 @@ public class Cursor<K> implements Iterator<K> {
     private CursorPos pos;
     private K current;
     private final Page root;
+    private final boolean scan;
     private boolean initialized;
 
-    Cursor(MVMap<K, ?> map, Page root, K from) {
+    /**
+     * The pages that are read ahead (only for scans), by position.
+     */
+    private HashMap<Long, Future<Page>> prefetched;
+
+    Cursor(MVMap<K, ?> map, Page root, K from, boolean scan) {
         this.map = map;
         this.root = root;
         this.from = from;
+        this.scan = scan;
     }
 
     @Override
@@ -99,7 +108,7 @@ public class Cursor<K> implements Iterator<K> {
                 x++;
             }
             pos = new CursorPos(p, x + 1, pos);
-            p = p.getChildPage(x);
+            p = getChildPage(p, x);
         }
     }
 
@@ -118,10 +127,63 @@ public class Cursor<K> implements Iterator<K> {
                 break;
             }
             if (pos.index < map.getChildPageCount(pos.page)) {
-                min(pos.page.getChildPage(pos.index++), null);
+                min(getChildPage(pos.page, pos.index++), null);
             }
         }
         current = null;
     }
 
+    /**
+     * Get the child page at the given index. For a scan, the following child
+     * pages of the same page are read ahead in the background, if enabled.
+     *
+     * @param p the parent page
+     * @param index the index of the child page
+     * @return the child page
+     */
+    private Page getChildPage(Page p, int index) {
+        if (scan) {
+            prefetch(p, index + 1);
+            Future<Page> f = prefetched == null ? null :
+                    prefetched.remove(p.getChildPagePos(index));
+            if (f != null) {
+                try {
+                    return f.get();
+                } catch (Exception e) {
+                    // read the page directly, which will throw
+                    // the exception if there is still a problem
+                }
+            }
+        }
+        return p.getChildPage(index, scan);
+    }
+
+    /**
+     * Read child pages ahead in the background.
+     *
+     * @param p the parent page
+     * @param index the index of the first child page to read
+     */
+    private void prefetch(Page p, int index) {
+        MVStore store = map.store;
+        int count = store == null ? 0 : store.getPrefetchPages();
+        if (count == 0) {
+            return;
+        }
+        if (prefetched == null) {
+            prefetched = new HashMap<Long, Future<Page>>();
+        }
+        int end = Math.min(index + count, map.getChildPageCount(p));
+        for (int i = index; i < end; i++) {
+            long childPos = p.getChildPagePos(i);
+            if (childPos == 0 || prefetched.containsKey(childPos)) {
+                continue;
+            }
+            Future<Page> f = store.prefetchPage(map, childPos);
+            if (f != null) {
+                prefetched.put(childPos, f);
+            }
+        }
+    }
+
 }
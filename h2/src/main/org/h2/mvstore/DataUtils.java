@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.zip.CRC32;
 import org.h2.engine.Constants;
 import org.h2.util.New;
 
@@ -76,6 +77,11 @@ public class DataUtils {
      */
     public static final int ERROR_TRANSACTION_LOCK_TIMEOUT = 101;
 
+    /**
+     * A deadlock between transactions was detected.
+     */
+    public static final int ERROR_TRANSACTION_DEADLOCK = 102;
+
     /**
      * The type for leaf page.
      */
@@ -87,10 +93,25 @@ public class DataUtils {
     public static final int PAGE_TYPE_NODE = 1;
 
     /**
-     * The bit mask for compressed pages.
+     * The bit mask for compressed pages (compression level fast).
      */
     public static final int PAGE_COMPRESSED = 2;
 
+    /**
+     * The bit mask for compressed pages (compression level high).
+     */
+    public static final int PAGE_COMPRESSED_HIGH = 2 + 4;
+
+    /**
+     * The bit mask for pages that end with a checksum.
+     */
+    public static final int PAGE_HAS_CHECKSUM = 8;
+
+    /**
+     * The bit mask for pages that contain the write count.
+     */
+    public static final int PAGE_HAS_WRITE_COUNT = 16;
+
     /**
      * The maximum length of a variable size int.
      */
@@ -646,6 +667,30 @@ public class DataUtils {
         return (s2 << 16) | s1;
     }
 
+    /**
+     * Calculate the CRC32 checksum of a part of the buffer. The position of
+     * the buffer is not changed.
+     *
+     * @param buff the buffer
+     * @param start the start position within the buffer
+     * @param length the number of bytes
+     * @return the checksum
+     */
+    public static int getCrc32(ByteBuffer buff, int start, int length) {
+        CRC32 crc = new CRC32();
+        if (buff.hasArray()) {
+            crc.update(buff.array(), buff.arrayOffset() + start, length);
+        } else {
+            // read-only or direct buffer
+            byte[] bytes = new byte[length];
+            ByteBuffer b = buff.duplicate();
+            b.position(start);
+            b.get(bytes);
+            crc.update(bytes, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
     /**
      * Throw an IllegalArgumentException if the argument is invalid.
      *
@@ -13,6 +13,7 @@ import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
 
 import org.h2.mvstore.cache.FilePathCache;
+import org.h2.store.fs.FileBase;
 import org.h2.store.fs.FilePath;
 import org.h2.store.fs.FilePathEncrypt;
 import org.h2.store.fs.FilePathNio;
@@ -70,13 +71,20 @@ public class FileStore {
      */
     protected FileLock fileLock;
 
+    /**
+     * Whether the file may support reading without copying.
+     */
+    private boolean readDirect;
+
     @Override
     public String toString() {
         return fileName;
     }
 
     /**
-     * Read from the file.
+     * Read from the file. If the file system supports it (memory mapped
+     * files), the data is not copied; instead, the returned read-only buffer
+     * is backed by the file.
      *
      * @param pos the write position
      * @param len the number of bytes to read
@@ -84,6 +92,20 @@ public class FileStore {
      */
     public ByteBuffer readFully(long pos, int len) {
         readCount++;
+        if (readDirect) {
+            try {
+                ByteBuffer buff = ((FileBase) file).readDirect(pos, len);
+                if (buff != null) {
+                    return buff;
+                }
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_READING_FAILED,
+                        "Reading from {0} failed; length {1} at {2}",
+                        file, len, pos, e);
+            }
+            readDirect = false;
+        }
         ByteBuffer dst = ByteBuffer.allocate(len);
         DataUtils.readFully(file, pos, dst);
         return dst;
@@ -135,6 +157,7 @@ public class FileStore {
                 file = new FilePathEncrypt.FileEncrypt(fileName, key, file);
             }
             file = FilePathCache.wrap(file);
+            readDirect = file instanceof FileBase;
             fileSize = file.size();
             try {
                 if (readOnly) {
@@ -294,6 +317,18 @@ public class FileStore {
         return freeSpace.allocate(length);
     }
 
+    /**
+     * Allocate a number of blocks at the free end of an aligned region, and
+     * mark them as used.
+     *
+     * @param length the number of bytes to allocate
+     * @param alignment the region size in bytes
+     * @return the start position in bytes
+     */
+    public long allocateAligned(int length, int alignment) {
+        return freeSpace.allocateAligned(length, alignment);
+    }
+
     /**
      * Mark the space as free.
      *
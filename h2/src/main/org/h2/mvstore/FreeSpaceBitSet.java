@@ -105,6 +105,41 @@ public class FreeSpaceBitSet {
         }
     }
 
+    /**
+     * Allocate a number of blocks at the free end of an aligned region, and
+     * mark them as used. Within a region, space is only allocated after the
+     * last used block, so that a region is written sequentially, and free
+     * space in the middle of a region is only re-used once the whole region
+     * is free. The space may extend into the following regions if they are
+     * free.
+     *
+     * @param length the number of bytes to allocate
+     * @param alignment the region size in bytes (a multiple of the block
+     *            size)
+     * @return the start position in bytes
+     */
+    public synchronized long allocateAligned(int length, int alignment) {
+        int blocks = getBlockCount(length);
+        int regionBlocks = alignment / blockSize;
+        for (int regionStart = 0;; regionStart += regionBlocks) {
+            int regionEnd = regionStart + regionBlocks;
+            // the block after the last used block of this region
+            int start = regionStart;
+            for (int i = set.nextSetBit(regionStart); i >= 0 && i < regionEnd;
+                    i = set.nextSetBit(i + 1)) {
+                start = i + 1;
+            }
+            if (start >= regionEnd) {
+                continue;
+            }
+            int next = set.nextSetBit(start);
+            if (next < 0 || next - start >= blocks) {
+                set.set(start, start + blocks);
+                return getPos(start);
+            }
+        }
+    }
+
     /**
      * Mark the space as in use.
      *
@@ -160,6 +195,23 @@ public class FreeSpaceBitSet {
         return Math.max(1, (int) (100L * count / total));
     }
 
+    /**
+     * Get the fill rate of the given range in percent.
+     *
+     * @param pos the position in bytes
+     * @param length the number of bytes
+     * @return the fill rate (0 - 100)
+     */
+    public synchronized int getFillRate(long pos, int length) {
+        int start = getBlock(pos);
+        int blocks = getBlockCount(length);
+        int count = set.get(start, start + blocks).cardinality();
+        if (count == 0) {
+            return 0;
+        }
+        return Math.max(1, (int) (100L * count / blocks));
+    }
+
     /**
      * Get the position of the first free space.
      *
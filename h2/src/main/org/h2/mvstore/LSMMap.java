@@ -0,0 +1,946 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
+
+/**
+ * A log structured merge map (LSM tree) that consists of multiple maps (levels)
+ * in the same store. It is optimized for writes: new entries and deletions
+ * (tombstones) are written to the small first level, without reading the
+ * existing value first ("blind writes"). When a level is full, it is merged
+ * into the next (larger) level.
+ * <p>
+ * A read first checks the first level, and then the following levels in turn.
+ * For each level except the first, there is a bloom filter, so that most levels
+ * that don't contain the key don't need to be read. The bloom filters are kept
+ * in memory only, and are re-built when opening the map. The hash code of keys
+ * that are equal according to the key type must be equal.
+ * <p>
+ * The levels are named "{name}.{level}". Merging can be done by the writing
+ * thread, or in a background thread. Writers are not blocked while merging:
+ * a full first level is renamed to "{name}.merge" and replaced by a new,
+ * empty map, and then merged into the next level.
+ *
+ * @param <K> the key class
+ * @param <V> the value class
+ */
+public class LSMMap<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * The marker for removed entries.
+     */
+    static final Object TOMBSTONE = new Object();
+
+    private final MVStore store;
+    private final String name;
+    private final DataType keyType;
+    private final ValueType valueType;
+    private final int firstLevelSize;
+    private final int fanout;
+
+    /**
+     * The levels. The array is replaced when a level is added.
+     */
+    private volatile MVMap<K, Object>[] levels;
+
+    /**
+     * The bloom filter for each level (null for the first level).
+     */
+    private volatile BloomFilter[] filters;
+
+    /**
+     * The previous first level while it is merged into the next level, or
+     * null. It is read after the first level.
+     */
+    private volatile MVMap<K, Object> frozen;
+
+    /**
+     * The lock that ensures only one thread merges at any time.
+     */
+    private final Object mergeSync = new Object();
+
+    private long userWriteCount;
+    private long mergeWriteCount;
+
+    private Thread backgroundThread;
+    private volatile RuntimeException backgroundException;
+    private volatile boolean closed;
+
+    private LSMMap(MVStore store, String name, DataType keyType,
+            DataType valueType, int firstLevelSize, int fanout) {
+        this.store = store;
+        this.name = name;
+        this.keyType = keyType;
+        this.valueType = new ValueType(valueType);
+        this.firstLevelSize = firstLevelSize;
+        this.fanout = fanout;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void open() {
+        int count = 1;
+        while (store.hasMap(name + "." + count)) {
+            count++;
+        }
+        MVMap<K, Object>[] list = new MVMap[count];
+        BloomFilter[] f = new BloomFilter[count];
+        for (int i = 0; i < count; i++) {
+            list[i] = openLevel(i);
+            if (i > 0) {
+                MVMap<K, Object> m = list[i];
+                f[i] = new BloomFilter(Math.max(getMaxSize(i),
+                        m.sizeAsLong()));
+                for (K k : m.keySet()) {
+                    f[i].add(getHash(k));
+                }
+            }
+        }
+        levels = list;
+        filters = f;
+        if (store.hasMap(name + ".merge")) {
+            // merging was interrupted, it is completed on the next merge
+            frozen = openLevel("merge");
+        }
+    }
+
+    private MVMap<K, Object> openLevel(int level) {
+        return openLevel(Integer.toString(level));
+    }
+
+    private MVMap<K, Object> openLevel(String suffix) {
+        return store.openMap(name + "." + suffix,
+                new MVMapConcurrent.Builder<K, Object>().
+                keyType(keyType).valueType(valueType));
+    }
+
+    private long getMaxSize(int level) {
+        long size = firstLevelSize;
+        for (int i = 0; i < level; i++) {
+            size *= fanout;
+        }
+        return size;
+    }
+
+    /**
+     * Get the hash code of a key, as used for the bloom filters.
+     *
+     * @param key the key
+     * @return the hash code
+     */
+    static int getHash(Object key) {
+        int h;
+        if (key.getClass().isArray()) {
+            // arrays don't implement hashCode
+            h = Arrays.deepHashCode(new Object[] { key });
+        } else {
+            h = key.hashCode();
+        }
+        // spread the bits
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        while (true) {
+            MVMap<K, Object>[] list = levels;
+            MVMap<K, Object> fr = frozen;
+            BloomFilter[] f = filters;
+            Object v = list[0].get(key);
+            if (v == null && fr != null) {
+                v = fr.get(key);
+            }
+            if (v == null && list.length > 1) {
+                int hash = getHash(key);
+                for (int i = 1; i < list.length && v == null; i++) {
+                    if (f[i].mayContain(hash)) {
+                        v = list[i].get(key);
+                    }
+                }
+            }
+            if (v == null && list != levels) {
+                // a level was added, and the entry
+                // could have been merged into it
+                continue;
+            }
+            return v == TOMBSTONE ? null : (V) v;
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Add or replace an entry, without reading the old value first.
+     *
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     */
+    public void write(K key, V value) {
+        DataUtils.checkArgument(value != null, "The value may not be null");
+        writeEntry(key, value);
+    }
+
+    /**
+     * Remove an entry, without reading the old value first. A tombstone is
+     * added, except if the bloom filters show that no level other than the
+     * first can contain the key.
+     *
+     * @param key the key
+     */
+    public void delete(K key) {
+        writeEntry(key, TOMBSTONE);
+    }
+
+    private void writeEntry(K key, Object value) {
+        boolean merge = false;
+        synchronized (this) {
+            checkOpen();
+            MVMap<K, Object>[] list = levels;
+            if (value == TOMBSTONE && !mayContain(key, 1)) {
+                list[0].remove(key);
+            } else {
+                list[0].put(key, value);
+            }
+            userWriteCount++;
+            long size = list[0].sizeAsLong();
+            if (size >= firstLevelSize) {
+                if (backgroundThread == null || size >= 2L * firstLevelSize) {
+                    // merge in this thread if merging in the background
+                    // can not keep up
+                    merge = true;
+                } else {
+                    notifyAll();
+                }
+            }
+        }
+        if (merge) {
+            merge();
+        }
+    }
+
+    private boolean mayContain(Object key, int fromLevel) {
+        MVMap<K, Object> fr = frozen;
+        if (fr != null && fr.containsKey(key)) {
+            return true;
+        }
+        BloomFilter[] f = filters;
+        int hash = getHash(key);
+        for (int i = fromLevel; i < f.length; i++) {
+            if (f[i].mayContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public V put(K key, V value) {
+        V old = get(key);
+        write(key, value);
+        return old;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        V old = get(key);
+        if (old != null) {
+            delete((K) key);
+        }
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mergeSync) {
+            synchronized (this) {
+                checkOpen();
+                MVMap<K, Object>[] list = levels;
+                for (MVMap<K, Object> m : list) {
+                    m.clear();
+                }
+                BloomFilter[] f = new BloomFilter[list.length];
+                for (int i = 1; i < list.length; i++) {
+                    f[i] = new BloomFilter(getMaxSize(i));
+                }
+                filters = f;
+                MVMap<K, Object> fr = frozen;
+                if (fr != null) {
+                    frozen = null;
+                    removeLevel(fr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge all levels that are full into the next level. Writers are only
+     * blocked while a full first level is replaced by a new map; merging
+     * itself is done without blocking them.
+     */
+    public void merge() {
+        synchronized (mergeSync) {
+            checkOpen();
+            if (frozen == null) {
+                if (levels[0].sizeAsLong() < getMaxSize(0)) {
+                    return;
+                }
+                freeze();
+            }
+            if (levels.length == 1) {
+                addLevel();
+            }
+            MVMap<K, Object> source = frozen;
+            mergeLevel(source, 1);
+            // the entries are now in the next level
+            frozen = null;
+            removeLevel(source);
+            for (int i = 1; i < levels.length; i++) {
+                if (levels[i].sizeAsLong() < getMaxSize(i)) {
+                    break;
+                }
+                if (i == levels.length - 1) {
+                    addLevel();
+                }
+                source = levels[i];
+                mergeLevel(source, i + 1);
+                // the target is changed first, so that concurrent
+                // readers always see the entries
+                source.clear();
+                synchronized (this) {
+                    BloomFilter[] f = filters.clone();
+                    f[i] = new BloomFilter(getMaxSize(i));
+                    filters = f;
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the first level with a new, empty map. The old first level is
+     * kept (as the frozen level) until it is merged.
+     */
+    private void freeze() {
+        synchronized (this) {
+            MVMap<K, Object> old = levels[0];
+            MVMap<K, Object> level;
+            // the meta map is only changed while synchronized on the store
+            synchronized (store) {
+                store.renameMap(old, name + ".merge");
+                level = openLevel(0);
+            }
+            frozen = old;
+            MVMap<K, Object>[] list = levels.clone();
+            list[0] = level;
+            levels = list;
+        }
+    }
+
+    private void removeLevel(MVMap<K, Object> level) {
+        // the meta map is only changed while synchronized on the store
+        synchronized (store) {
+            store.removeMap(level);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addLevel() {
+        synchronized (this) {
+            int count = levels.length;
+            MVMap<K, Object>[] list = Arrays.copyOf(levels, count + 1);
+            list[count] = openLevel(count);
+            BloomFilter[] f = Arrays.copyOf(filters, count + 1);
+            f[count] = new BloomFilter(getMaxSize(count));
+            filters = f;
+            levels = list;
+        }
+    }
+
+    private void mergeLevel(MVMap<K, Object> source, int level) {
+        MVMap<K, Object> target = levels[level];
+        BloomFilter filter = filters[level];
+        boolean last = level == levels.length - 1;
+        long count = 0;
+        for (Iterator<K> it = source.keyIterator(null); it.hasNext();) {
+            K k = it.next();
+            Object v = source.get(k);
+            if (v == TOMBSTONE && last) {
+                target.remove(k);
+            } else {
+                target.put(k, v);
+                filter.add(getHash(k));
+            }
+            count++;
+        }
+        synchronized (this) {
+            mergeWriteCount += count;
+        }
+    }
+
+    /**
+     * Get the number of entries. This operation needs to iterate over all
+     * entries.
+     *
+     * @return the number of entries, as an integer
+     */
+    @Override
+    public int size() {
+        long size = sizeAsLong();
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    /**
+     * Get the number of entries, as a long. This operation needs to iterate
+     * over all entries.
+     *
+     * @return the number of entries
+     */
+    public long sizeAsLong() {
+        long size = 0;
+        for (Iterator<K> it = keyIterator(null); it.hasNext(); it.next()) {
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return !keyIterator(null).hasNext();
+    }
+
+    /**
+     * Iterate over a number of keys, in ascending order.
+     *
+     * @param from the first key to return
+     * @return the iterator
+     */
+    public Iterator<K> keyIterator(K from) {
+        return new LevelIterator(from);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+
+            @Override
+            public Iterator<K> iterator() {
+                return keyIterator(null);
+            }
+
+            @Override
+            public int size() {
+                return LSMMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return LSMMap.this.containsKey(o);
+            }
+
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final LevelIterator it = new LevelIterator(null);
+                return new Iterator<Map.Entry<K, V>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Map.Entry<K, V> next() {
+                        K k = it.next();
+                        return new SimpleImmutableEntry<K, V>(k, (V) it.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw DataUtils.newUnsupportedOperationException(
+                                "Removing is not supported");
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return LSMMap.this.size();
+            }
+
+        };
+    }
+
+    /**
+     * Get the number of entries written by the application since the map was
+     * opened.
+     *
+     * @return the number of writes
+     */
+    public synchronized long getUserWriteCount() {
+        return userWriteCount;
+    }
+
+    /**
+     * Get the number of entries written when merging levels since the map was
+     * opened.
+     *
+     * @return the number of writes
+     */
+    public synchronized long getMergeWriteCount() {
+        return mergeWriteCount;
+    }
+
+    /**
+     * Get the write amplification since the map was opened, that is, the
+     * number of entries written to any level per entry written by the
+     * application.
+     *
+     * @return the write amplification (1 if nothing was merged yet)
+     */
+    public synchronized double getWriteAmplification() {
+        if (userWriteCount == 0) {
+            return 1;
+        }
+        return (double) (userWriteCount + mergeWriteCount) / userWriteCount;
+    }
+
+    /**
+     * Get the number of levels.
+     *
+     * @return the number of levels
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Get the map of the given level. The values of removed entries are
+     * tombstones.
+     *
+     * @param level the level
+     * @return the map
+     */
+    public MVMap<K, Object> getLevel(int level) {
+        return levels[level];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Stop the background thread, if any. Afterwards, the map can not be
+     * changed.
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = backgroundThread;
+            backgroundThread = null;
+            notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_CLOSED, "This map is closed");
+        }
+        RuntimeException e = backgroundException;
+        if (e != null) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Merging in the background failed", e);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Merges the levels in the background.
+     */
+    private static class Merger implements Runnable {
+
+        private final LSMMap<?, ?> map;
+
+        Merger(LSMMap<?, ?> map) {
+            this.map = map;
+        }
+
+        @Override
+        public void run() {
+            LSMMap<?, ?> m = map;
+            while (true) {
+                synchronized (m) {
+                    if (m.backgroundThread == null) {
+                        break;
+                    }
+                    try {
+                        m.wait(100);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                    if (m.backgroundThread == null) {
+                        break;
+                    }
+                }
+                try {
+                    m.merge();
+                } catch (RuntimeException e) {
+                    synchronized (m) {
+                        if (m.backgroundThread != null) {
+                            m.backgroundException = e;
+                            m.backgroundThread = null;
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Iterates over the keys of all levels. If a key exists in multiple
+     * levels, the entry of the first level wins.
+     */
+    private class LevelIterator implements Iterator<K> {
+
+        /**
+         * The value of the last returned key.
+         */
+        Object value;
+
+        private final MVMap<K, Object>[] list;
+        private final Page[] roots;
+        private final Cursor<K>[] cursors;
+        private final Object[] current;
+        private K next;
+        private Object nextValue;
+
+        @SuppressWarnings("unchecked")
+        LevelIterator(K from) {
+            synchronized (LSMMap.this) {
+                // a snapshot of all levels, from the first to the last, so
+                // that entries that are merged concurrently are seen at least
+                // once (they are added to the next level before they are
+                // removed)
+                MVMap<K, Object>[] l = levels;
+                MVMap<K, Object> fr = frozen;
+                if (fr == null) {
+                    list = l;
+                } else {
+                    list = new MVMap[l.length + 1];
+                    list[0] = l[0];
+                    list[1] = fr;
+                    System.arraycopy(l, 1, list, 2, l.length - 1);
+                }
+                roots = new Page[list.length];
+                for (int i = 0; i < list.length; i++) {
+                    roots[i] = list[i].getRoot();
+                }
+            }
+            cursors = new Cursor[list.length];
+            current = new Object[list.length];
+            for (int i = 0; i < list.length; i++) {
+                cursors[i] = new Cursor<K>(list[i], roots[i], from, false);
+                current[i] = cursors[i].hasNext() ? cursors[i].next() : null;
+            }
+            fetchNext();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void fetchNext() {
+            while (true) {
+                int best = -1;
+                for (int i = 0; i < current.length; i++) {
+                    Object k = current[i];
+                    if (k != null && (best < 0 ||
+                            keyType.compare(k, current[best]) < 0)) {
+                        best = i;
+                    }
+                }
+                if (best < 0) {
+                    next = null;
+                    return;
+                }
+                K k = (K) current[best];
+                // the value is read from the same snapshot as the key
+                Object v = list[best].binarySearch(roots[best], k);
+                for (int i = best; i < current.length; i++) {
+                    if (current[i] != null &&
+                            keyType.compare(k, current[i]) == 0) {
+                        current[i] = cursors[i].hasNext() ?
+                                cursors[i].next() : null;
+                    }
+                }
+                if (v != null && v != TOMBSTONE) {
+                    next = k;
+                    nextValue = v;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public K next() {
+            K k = next;
+            value = nextValue;
+            fetchNext();
+            return k;
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Removing is not supported");
+        }
+
+    }
+
+    /**
+     * A data type for the values of the levels, which may be tombstones.
+     */
+    static class ValueType implements DataType {
+
+        private final DataType valueType;
+
+        ValueType(DataType valueType) {
+            this.valueType = valueType;
+        }
+
+        @Override
+        public int compare(Object a, Object b) {
+            throw DataUtils.newUnsupportedOperationException("Can not compare");
+        }
+
+        @Override
+        public int getMemory(Object obj) {
+            return obj == TOMBSTONE ? 8 : valueType.getMemory(obj);
+        }
+
+        @Override
+        public void write(WriteBuffer buff, Object obj) {
+            if (obj == TOMBSTONE) {
+                buff.put((byte) 0);
+            } else {
+                buff.put((byte) 1);
+                valueType.write(buff, obj);
+            }
+        }
+
+        @Override
+        public Object read(ByteBuffer buff) {
+            if (buff.get() == 0) {
+                return TOMBSTONE;
+            }
+            return valueType.read(buff);
+        }
+
+    }
+
+    /**
+     * A bloom filter with 10 bits per entry and 3 hash functions (about 2%
+     * false positives when full).
+     */
+    static class BloomFilter {
+
+        private final long[] bits;
+        private final int size;
+
+        BloomFilter(long capacity) {
+            long len = Math.max(64, Math.min(capacity * 10, Integer.MAX_VALUE));
+            bits = new long[(int) ((len + 63) >>> 6)];
+            size = bits.length << 6;
+        }
+
+        /**
+         * Add a hash code.
+         *
+         * @param hash the hash code
+         */
+        void add(int hash) {
+            int h2 = hash * 0x9e3779b9;
+            for (int i = 0; i < 3; i++) {
+                int x = ((hash + i * h2) & Integer.MAX_VALUE) % size;
+                bits[x >>> 6] |= 1L << x;
+            }
+        }
+
+        /**
+         * Check whether the given hash code may have been added.
+         *
+         * @param hash the hash code
+         * @return false if it was definitely not added
+         */
+        boolean mayContain(int hash) {
+            int h2 = hash * 0x9e3779b9;
+            for (int i = 0; i < 3; i++) {
+                int x = ((hash + i * h2) & Integer.MAX_VALUE) % size;
+                if ((bits[x >>> 6] & (1L << x)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+    }
+
+    /**
+     * A builder for this class.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public static class Builder<K, V> {
+
+        private DataType keyType;
+        private DataType valueType;
+        private int firstLevelSize = 10000;
+        private int fanout = 10;
+        private boolean backgroundMerge;
+
+        /**
+         * Set the key data type.
+         *
+         * @param keyType the key type
+         * @return this
+         */
+        public Builder<K, V> keyType(DataType keyType) {
+            this.keyType = keyType;
+            return this;
+        }
+
+        /**
+         * Set the value data type.
+         *
+         * @param valueType the value type
+         * @return this
+         */
+        public Builder<K, V> valueType(DataType valueType) {
+            this.valueType = valueType;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of entries in the first level. The default is
+         * 10000.
+         *
+         * @param entries the number of entries
+         * @return this
+         */
+        public Builder<K, V> firstLevelSize(int entries) {
+            DataUtils.checkArgument(entries > 0,
+                    "Invalid level size {0}", entries);
+            this.firstLevelSize = entries;
+            return this;
+        }
+
+        /**
+         * Set the size ratio between a level and the previous level. The
+         * default is 10.
+         *
+         * @param fanout the size ratio
+         * @return this
+         */
+        public Builder<K, V> fanout(int fanout) {
+            DataUtils.checkArgument(fanout > 1,
+                    "Invalid fanout {0}", fanout);
+            this.fanout = fanout;
+            return this;
+        }
+
+        /**
+         * Merge the levels in a background thread. Writers only merge
+         * themselves if the background thread can not keep up. The thread is
+         * stopped when closing the map.
+         *
+         * @return this
+         */
+        public Builder<K, V> backgroundMerge() {
+            this.backgroundMerge = true;
+            return this;
+        }
+
+        /**
+         * Open the map in the given store, or create it if it does not yet
+         * exist.
+         *
+         * @param store the store
+         * @param name the map name
+         * @return the map
+         */
+        public LSMMap<K, V> open(MVStore store, String name) {
+            if (keyType == null) {
+                keyType = new ObjectDataType();
+            }
+            if (valueType == null) {
+                valueType = new ObjectDataType();
+            }
+            LSMMap<K, V> map = new LSMMap<K, V>(store, name, keyType,
+                    valueType, firstLevelSize, fanout);
+            map.open();
+            if (backgroundMerge) {
+                Thread t = new Thread(new Merger(map), "LSMMap merger " + name);
+                t.setDaemon(true);
+                map.backgroundThread = t;
+                t.start();
+            }
+            return map;
+        }
+
+    }
+
+}
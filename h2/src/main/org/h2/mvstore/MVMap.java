@@ -58,6 +58,23 @@ public class MVMap<K, V> extends AbstractMap<K, V>
     private boolean closed;
     private boolean readOnly;
 
+    /**
+     * Whether changes of the thread that holds the lock on this map are not
+     * logged (while re-writing or replaying entries).
+     */
+    private boolean logDisabled;
+
+    /**
+     * Whether entries are currently re-written to compact the store.
+     */
+    private boolean rewriting;
+
+    /**
+     * The compression level for new pages of this map, or -1 to use the
+     * setting of the store.
+     */
+    private int compressionLevel = -1;
+
     protected MVMap(DataType keyType, DataType valueType) {
         this.keyType = keyType;
         this.valueType = valueType;
@@ -102,7 +119,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      */
     @Override
     @SuppressWarnings("unchecked")
-    public V put(K key, V value) {
+    public synchronized V put(K key, V value) {
         DataUtils.checkArgument(value != null, "The value may not be null");
         beforeWrite();
         try {
@@ -111,12 +128,144 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             p = splitRootIfNeeded(p, v);
             Object result = put(p, v, key, value);
             newRoot(p);
+            logChange(RedoLog.PUT, key, value);
             return (V) result;
         } finally {
             afterWrite();
         }
     }
 
+    /**
+     * Append entries that are sorted by key, and that are larger than the
+     * largest key in the map. Instead of adding one entry at a time, leaf
+     * pages are filled up to the page split size, and then added to the
+     * right-most node of the tree. Node pages are also filled up completely.
+     * This is much faster than adding the entries one by one, and the pages
+     * are fully packed.
+     * <p>
+     * For large imports, changes are stored in the background as usual, so
+     * that not all pages need to be kept in memory.
+     *
+     * @param entries the entries (sorted by key, the values may not be null)
+     * @return the number of appended entries
+     * @throws IllegalArgumentException if the keys are not sorted
+     */
+    public synchronized long appendSorted(Iterator<? extends Map.Entry<K, V>> entries) {
+        K last = lastKey();
+        int pageSplitSize = store.getPageSplitSize();
+        ArrayList<Object> keys = New.arrayList();
+        ArrayList<Object> values = New.arrayList();
+        int memory = DataUtils.PAGE_MEMORY;
+        long count = 0;
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            K key = e.getKey();
+            V value = e.getValue();
+            DataUtils.checkArgument(value != null, "The value may not be null");
+            if (last != null && compare(key, last) <= 0) {
+                throw DataUtils.newIllegalArgumentException(
+                        "The key {0} is not larger than the key {1}", key, last);
+            }
+            last = key;
+            keys.add(key);
+            values.add(value);
+            memory += keyType.getMemory(key) + valueType.getMemory(value);
+            if (memory >= pageSplitSize) {
+                appendLeaf(keys, values);
+                keys.clear();
+                values.clear();
+                memory = DataUtils.PAGE_MEMORY;
+            }
+            count++;
+        }
+        if (keys.size() > 0) {
+            appendLeaf(keys, values);
+        }
+        return count;
+    }
+
+    private void appendLeaf(ArrayList<Object> keys, ArrayList<Object> values) {
+        beforeWrite();
+        try {
+            long v = writeVersion;
+            int len = keys.size();
+            Page leaf = Page.create(this, v,
+                    len, keys.toArray(), values.toArray(),
+                    0, null, null, null,
+                    len, 0, 0);
+            Page p = root;
+            if (p.isLeaf()) {
+                if (p.getKeyCount() == 0) {
+                    p.removePage();
+                    p = leaf;
+                } else {
+                    p = newNode(v, leaf.getKey(0), p, leaf);
+                }
+            } else {
+                p = copyOnWrite(p, v);
+                Page split = appendLeaf(p, v, leaf);
+                if (split != null) {
+                    p = newNode(v, leaf.getKey(0), p, split);
+                }
+            }
+            newRoot(p);
+            for (int i = 0; i < len; i++) {
+                logChange(RedoLog.PUT, keys.get(i), values.get(i));
+            }
+        } finally {
+            afterWrite();
+        }
+    }
+
+    /**
+     * Add a leaf as the last child of the right-most node at the lowest
+     * level.
+     *
+     * @param p the node (already copied)
+     * @param writeVersion the write version
+     * @param leaf the leaf
+     * @return the new right sibling of the node if the node is full, or null
+     */
+    private Page appendLeaf(Page p, long writeVersion, Page leaf) {
+        int last = p.getChildPageCount() - 1;
+        Page c = p.getChildPage(last);
+        Page split;
+        if (c.isLeaf()) {
+            split = leaf;
+        } else {
+            c = copyOnWrite(c, writeVersion);
+            p.setChild(last, c);
+            split = appendLeaf(c, writeVersion, leaf);
+            p.setCounts(last, c);
+        }
+        if (split == null) {
+            return null;
+        }
+        if (p.getMemory() >= store.getPageSplitSize()) {
+            // the node is full: start a new node
+            return Page.create(this, writeVersion,
+                    0, new Object[0], null,
+                    1, new long[] { split.getPos() }, new Page[] { split },
+                    new long[] { split.getTotalCount() },
+                    split.getTotalCount(), 0, 0);
+        }
+        p.setChild(last, split);
+        p.setCounts(last, split);
+        p.insertNode(last, leaf.getKey(0), c);
+        return null;
+    }
+
+    private Page newNode(long writeVersion, Object key, Page left, Page right) {
+        Object[] keys = { key };
+        long[] children = { left.getPos(), right.getPos() };
+        Page[] childrenPages = { left, right };
+        long[] counts = { left.getTotalCount(), right.getTotalCount() };
+        return Page.create(this, writeVersion,
+                1, keys, null,
+                2, children, childrenPages, counts,
+                left.getTotalCount() + right.getTotalCount(), 0, 0);
+    }
+
     /**
      * Split the root page if necessary.
      *
@@ -495,11 +644,12 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      * Remove all entries.
      */
     @Override
-    public void clear() {
+    public synchronized void clear() {
         beforeWrite();
         try {
             root.removeAllRecursive();
             newRoot(Page.createEmpty(this, writeVersion));
+            logChange(RedoLog.CLEAR, null, null);
         } finally {
             afterWrite();
         }
@@ -524,7 +674,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      * @return the old value if the key existed, or null otherwise
      */
     @Override
-    public V remove(Object key) {
+    public synchronized V remove(Object key) {
         beforeWrite();
         try {
             long v = writeVersion;
@@ -536,12 +686,111 @@ public class MVMap<K, V> extends AbstractMap<K, V>
                 p = Page.createEmpty(this,  p.getVersion());
             }
             newRoot(p);
+            if (result != null) {
+                logChange(RedoLog.REMOVE, key, null);
+            }
             return result;
         } finally {
             afterWrite();
         }
     }
 
+    /**
+     * Re-write the entry with the given key, so that the page that contains
+     * it is written to a new chunk when storing. This is used to compact the
+     * store. Writes are synchronized on the map, so that this method can be
+     * called concurrently to other write operations.
+     *
+     * @param key the key
+     * @return true if the entry exists and was re-written
+     */
+    @SuppressWarnings("unchecked")
+    synchronized boolean rewrite(Object key) {
+        V value = get(key);
+        if (value == null) {
+            return false;
+        }
+        logDisabled = true;
+        rewriting = true;
+        try {
+            put((K) key, value);
+        } finally {
+            logDisabled = false;
+            rewriting = false;
+        }
+        return true;
+    }
+
+    /**
+     * Check whether the current thread is re-writing entries to compact the
+     * store. Such copies of pages are not counted as writes.
+     *
+     * @return true if re-writing
+     */
+    boolean isRewriting() {
+        return rewriting && Thread.holdsLock(this);
+    }
+
+    /**
+     * Apply a change that was read from the redo log, without logging it
+     * again.
+     *
+     * @param type the entry type
+     * @param key the key (null for clear)
+     * @param value the value (null for remove and clear)
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void redo(int type, Object key, Object value) {
+        logDisabled = true;
+        try {
+            if (type == RedoLog.PUT) {
+                put((K) key, (V) value);
+            } else if (type == RedoLog.REMOVE) {
+                remove(key);
+            } else {
+                clear();
+            }
+        } finally {
+            logDisabled = false;
+        }
+    }
+
+    /**
+     * Replay the changes in the redo log for this map. The changes were
+     * committed before the map was opened, so they are applied to the given
+     * (older) version, and older roots are discarded. That way, rolling back
+     * the current version does not revert them.
+     *
+     * @param log the redo log
+     * @param version the version to apply the changes to
+     */
+    synchronized void replay(RedoLog log, long version) {
+        writeVersion = version;
+        try {
+            if (log.replay(this)) {
+                oldRoots = new ArrayList<Page>();
+            }
+        } finally {
+            writeVersion = store.getCurrentVersion();
+        }
+    }
+
+    /**
+     * Add the change to the redo log of the store, if enabled. Changes are
+     * not logged while re-writing or replaying entries, and changes of the
+     * metadata map are not logged.
+     *
+     * @param type the entry type
+     * @param key the key (null for clear)
+     * @param value the value (null for remove and clear)
+     */
+    protected void logChange(int type, Object key, Object value) {
+        RedoLog log = store.getRedoLog();
+        if (log != null && id != 0 && !(logDisabled && Thread.holdsLock(this))) {
+            log.add(this, type, key, value);
+        }
+    }
+
     /**
      * Add a key-value pair if it does not yet exist.
      *
@@ -723,6 +972,16 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return valueType;
     }
 
+    /**
+     * Get the compression level used when writing pages of this map. Unless
+     * set when creating the map, this is the compression level of the store.
+     *
+     * @return the compression level (0 for disabled, 1 for fast, 2 for high)
+     */
+    public int getCompressionLevel() {
+        return compressionLevel >= 0 ? compressionLevel : store.getCompressionLevel();
+    }
+
     /**
      * Read a page.
      *
@@ -733,6 +992,27 @@ public class MVMap<K, V> extends AbstractMap<K, V>
         return store.readPage(this, pos);
     }
 
+    /**
+     * Read a page that is part of a scan.
+     *
+     * @param pos the position of the page
+     * @param scan whether the page is read by a scan
+     * @return the page
+     */
+    Page readPage(long pos, boolean scan) {
+        return store.readPage(this, pos, scan);
+    }
+
+    /**
+     * Set the compression level for new pages of this map.
+     *
+     * @param compressionLevel the compression level, or -1 to use the
+     *            setting of the store
+     */
+    void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     /**
      * Set the position of the root page.
      *
@@ -751,7 +1031,20 @@ public class MVMap<K, V> extends AbstractMap<K, V>
      * @return the iterator
      */
     public Cursor<K> keyIterator(K from) {
-        return new Cursor<K>(this, root, from);
+        return new Cursor<K>(this, root, from, false);
+    }
+
+    /**
+     * Iterate over all keys, for a scan that reads most pages only once.
+     * Leaf pages read by the cursor are added to the cache as cold entries,
+     * so that the scan doesn't remove frequently used pages from the cache.
+     *
+     * @param from the first key to return
+     * @param scan whether this is a scan
+     * @return the iterator
+     */
+    public Cursor<K> keyIterator(K from, boolean scan) {
+        return new Cursor<K>(this, root, from, scan);
     }
 
     @Override
@@ -771,7 +1064,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
 
             @Override
             public Iterator<K> iterator() {
-                return new Cursor<K>(map, root, null);
+                return new Cursor<K>(map, root, null, false);
             }
 
             @Override
@@ -1134,6 +1427,7 @@ public class MVMap<K, V> extends AbstractMap<K, V>
 
         protected DataType keyType;
         protected DataType valueType;
+        protected int compressionLevel = -1;
 
         /**
          * Create a new builder with the default key and value data types.
@@ -1172,6 +1466,23 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             return this;
         }
 
+        /**
+         * Set the compression level for new pages of this map, overriding the
+         * setting of the store. Use 0 to disable compression, 1 for fast
+         * compression (LZF), and 2 for high compression (Deflate). The setting
+         * is not persisted; pages are always readable, no matter which
+         * compression level was used when writing.
+         *
+         * @param compressionLevel the compression level
+         * @return this
+         */
+        public Builder<K, V> compressionLevel(int compressionLevel) {
+            DataUtils.checkArgument(compressionLevel >= 0 && compressionLevel <= 2,
+                    "Unsupported compression level {0}", compressionLevel);
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
         @Override
         public MVMap<K, V> create() {
             if (keyType == null) {
@@ -1180,7 +1491,9 @@ public class MVMap<K, V> extends AbstractMap<K, V>
             if (valueType == null) {
                 valueType = new ObjectDataType();
             }
-            return new MVMap<K, V>(keyType, valueType);
+            MVMap<K, V> map = new MVMap<K, V>(keyType, valueType);
+            map.setCompressionLevel(compressionLevel);
+            return map;
         }
 
     }
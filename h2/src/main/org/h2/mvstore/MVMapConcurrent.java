@@ -52,6 +52,7 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
                 p = splitRootIfNeeded(p, v);
                 V result = (V) put(p, v, key, value);
                 newRoot(p);
+                logChange(RedoLog.PUT, key, value);
                 return result;
             }
         } finally {
@@ -82,6 +83,9 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
                     p = Page.createEmpty(this,  p.getVersion());
                 }
                 newRoot(p);
+                if (result != null) {
+                    logChange(RedoLog.REMOVE, key, null);
+                }
             }
             return result;
         } finally {
@@ -99,6 +103,7 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
 
         protected DataType keyType;
         protected DataType valueType;
+        protected int compressionLevel = -1;
 
         /**
          * Create a new builder with the default key and value data types.
@@ -129,6 +134,20 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
             return this;
         }
 
+        /**
+         * Set the compression level for new pages of this map.
+         *
+         * @param compressionLevel the compression level
+         * @return this
+         * @see MVMap.Builder#compressionLevel(int)
+         */
+        public Builder<K, V> compressionLevel(int compressionLevel) {
+            DataUtils.checkArgument(compressionLevel >= 0 && compressionLevel <= 2,
+                    "Unsupported compression level {0}", compressionLevel);
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
         @Override
         public MVMapConcurrent<K, V> create() {
             if (keyType == null) {
@@ -137,7 +156,9 @@ public class MVMapConcurrent<K, V> extends MVMap<K, V> {
             if (valueType == null) {
                 valueType = new ObjectDataType();
             }
-            return new MVMapConcurrent<K, V>(keyType, valueType);
+            MVMapConcurrent<K, V> map = new MVMapConcurrent<K, V>(keyType, valueType);
+            map.setCompressionLevel(compressionLevel);
+            return map;
         }
 
     }
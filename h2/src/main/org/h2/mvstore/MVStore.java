@@ -17,8 +17,19 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.h2.compress.CompressDeflate;
 import org.h2.compress.CompressLZF;
 import org.h2.compress.Compressor;
 import org.h2.mvstore.cache.CacheLongKeyLIRS;
@@ -59,32 +70,26 @@ TransactionStore:
 MVStore:
 - automated 'kill process' and 'power failure' test
 - update checkstyle
-- auto-compact from time to time and on close
+- auto-compact on close
 - test and possibly improve compact operation (for large dbs)
 - possibly split chunk metadata into immutable and mutable
 - compact: avoid processing pages using a counting bloom filter
 - defragment (re-creating maps, specially those with small pages)
 - chunk header: store changed chunk data as row; maybe after the root
-- chunk checksum (header, last page, 2 bytes per page?)
+- chunk header checksum
 - maybe let a chunk point to a list of potential next chunks
     (so no fixed location header is needed), similar to a skip list
-- store number of write operations per page (maybe defragment
-    if much different than count)
-- r-tree: nearest neighbor search
 - use a small object value cache (StringCache), test on Android
     for default serialization
 - MVStoreTool.dump: dump values (using a callback)
 - ensure data is overwritten eventually if the system doesn't have a
     real-time clock (Raspberry Pi) and if there are few writes per startup
-- SSD-friendly write (always in blocks of 4 MB / 1 second?)
 - close the file on out of memory or disk write error (out of disk space or so)
-- implement a sharded map (in one store, multiple stores)
+- implement a sharded map over multiple stores
     to support concurrent updates and writes, and very large maps
-- to save space when persisting very small transactions,
-    use a transaction log where only the deltas are stored
 - serialization for lists, sets, sets, sorted sets, maps, sorted maps
 - maybe rename 'rollback' to 'revert' to distinguish from transactions
-- support other compression algorithms (deflate, LZ4,...)
+- support other compression algorithms (LZ4,...)
 - support opening (existing) maps by id
 - more consistent null handling (keys/values sometimes may be null)
 - autocommit (to avoid having to call commit,
@@ -95,8 +100,6 @@ MVStore:
 - rename "store" to "save", as "store" is used in "storeVersion"
 - MVStoreTool.dump should dump the data if possible;
     possibly using a callback for serialization
-- optional pluggable checksum mechanism (per page), which
-    requires that everything is a page (including headers)
 - rename setStoreVersion to setDataVersion or similar
 - to save space for small chunks, combine the last partial
     block with the header
@@ -104,16 +107,8 @@ MVStore:
 - simple rollback method (rollback to last committed version)
 - MVMap to implement SortedMap, then NavigableMap
 - Test with OSGi
-- storage that splits database into multiple files,
-    to speed up compact and allow using trim
-    (by truncating / deleting empty files)
-- add new feature to the file system API to avoid copying data
-    (reads that returns a ByteBuffer instead of writing into one)
-    for memory mapped files and off-heap storage
 - do we need to store a dummy chunk entry in the chunk itself?
     currently yes, as some fields are not set in the chunk header
-- support log structured merge style operations (blind writes)
-    using one map per level plus bloom filter
 - have a strict call order MVStore -> MVMap -> Page -> FileStore
 
 */
@@ -134,14 +129,29 @@ public class MVStore {
      */
     static final int BLOCK_SIZE = 4 * 1024;
 
-    private static final int FORMAT_WRITE = 1;
-    private static final int FORMAT_READ = 1;
+    /**
+     * The file format. Version 2 added the page write count, the page
+     * checksum, and high compression of pages.
+     */
+    private static final int FORMAT_WRITE = 2;
+    private static final int FORMAT_READ = 2;
+
+    /**
+     * The time in milliseconds after which preloaded root pages that were not
+     * used are released by the background thread.
+     */
+    private static final int PRELOAD_KEEP_TIME = 10000;
 
     /**
      * The background thread, if any.
      */
     volatile Thread backgroundThread;
 
+    /**
+     * The background scrubber, if any.
+     */
+    private volatile Scrubber scrubber;
+
     private volatile boolean reuseSpace = true;
 
     private boolean closed;
@@ -159,6 +169,53 @@ public class MVStore {
      */
     private CacheLongKeyLIRS<Page> cache;
 
+    /**
+     * The cache for inner (non-leaf) pages, or null if inner pages are kept
+     * in the same cache as leaf pages. The memory is reserved from the page
+     * cache, so that inner pages are not removed when many leaf pages are
+     * read.
+     */
+    private CacheLongKeyLIRS<Page> nodeCache;
+
+    /**
+     * The number of page reads that were found in the cache, by page type.
+     * Pages read ahead by the prefetch threads are not counted.
+     */
+    private final AtomicLongArray cacheHits = new AtomicLongArray(2);
+
+    /**
+     * The number of page reads that were not found in the cache, by page
+     * type.
+     */
+    private final AtomicLongArray cacheMisses = new AtomicLongArray(2);
+
+    /**
+     * The number of pages that were read ahead by the prefetch threads.
+     */
+    private final AtomicLong prefetchReads = new AtomicLong();
+
+    /**
+     * The number of child pages a scan reads ahead, or 0 if disabled.
+     */
+    private final int prefetchPages;
+
+    /**
+     * The thread pool that reads pages ahead for scans, or null if disabled.
+     */
+    private ThreadPoolExecutor prefetchExecutor;
+
+    /**
+     * The data of the root pages of the maps, read in the background after
+     * opening the store, or null. The data is only used until the next chunk
+     * is written, because afterwards the space of old chunks may be re-used.
+     */
+    private volatile ConcurrentHashMap<Long, ByteBuffer> preloadedPages;
+
+    /**
+     * The time when the root pages were preloaded.
+     */
+    private long preloadTime;
+
     private int lastChunkId;
 
     /**
@@ -192,15 +249,48 @@ public class MVStore {
     private long retainVersion = -1;
 
     /**
-     * Whether to compress new pages. Even if disabled, the store may contain
-     * (old) compressed pages.
+     * The versions that are in use by snapshots, with the number of
+     * snapshots per version. Access is synchronized on the map.
+     */
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+    /**
+     * The compression level for new pages (0 for disabled, 1 for fast, 2 for
+     * high). Even if disabled, the store may contain (old) compressed pages.
      */
-    private final boolean compress;
+    private final int compressionLevel;
 
-    private final Compressor compressor = new CompressLZF();
+    private Compressor compressorFast;
+
+    private Compressor compressorHigh;
 
     private final UncaughtExceptionHandler backgroundExceptionHandler;
 
+    /**
+     * The redo log, if enabled.
+     */
+    private RedoLog redoLog;
+
+    /**
+     * Whether a checksum is stored for each new page.
+     */
+    private final boolean pageChecksum;
+
+    /**
+     * The size of the aligned regions new chunks are written to, in bytes (0
+     * if disabled).
+     */
+    private final int writeAlignment;
+
+    /**
+     * The id of the chunk that was verified last by the scrubber.
+     */
+    private int lastScrubbedChunkId;
+
+    private long scrubbedChunkCount;
+
+    private long corruptChunkCount;
+
     private long currentVersion;
 
     /**
@@ -225,6 +315,13 @@ public class MVStore {
      */
     private long lastCommittedVersion;
 
+    /**
+     * The lock for storing the changes of committed versions, if the write
+     * delay is 0. Threads that commit while the changes are stored wait for
+     * this lock, and are then stored together (group commit).
+     */
+    private final Object groupCommitSync = new Object();
+
     /**
      * The earliest chunk to retain, if any.
      */
@@ -242,6 +339,37 @@ public class MVStore {
      */
     private int writeDelay;
 
+    /**
+     * The target fill rate (percentage of live data) of the chunks when
+     * compacting in the background thread, or 0 if disabled.
+     */
+    private int autoCompactFillRate;
+
+    /**
+     * The maximum number of bytes per second of live data that is re-written
+     * when compacting in the background thread.
+     */
+    private long autoCompactWriteRate;
+
+    /**
+     * The number of bytes that may still be re-written by the background
+     * compaction (may be negative if the last step re-wrote more).
+     */
+    private long autoCompactBudget;
+
+    private long autoCompactLastTime;
+
+    /**
+     * The last chunk id when the background compaction re-wrote data. The
+     * next step is only run after a new chunk was stored.
+     */
+    private int autoCompactLastChunkId = -1;
+
+    /**
+     * The number of bytes of live data that was re-written when compacting.
+     */
+    private volatile long compactRewrittenBytes;
+
     /**
      * Create and open the store.
      *
@@ -251,11 +379,22 @@ public class MVStore {
      * @throws IllegalArgumentException if the directory does not exist
      */
     MVStore(HashMap<String, Object> config) {
-        this.compress = config.containsKey("compress");
-        Object o = config.get("pageSplitSize");
+        Object o = config.get("compress");
+        this.compressionLevel = o == null ? 0 : Integer.parseInt(o.toString());
+        o = config.get("pageSplitSize");
         pageSplitSize = o == null ? 6 * 1024 : (Integer) o;
         o = config.get("backgroundExceptionHandler");
         this.backgroundExceptionHandler = (UncaughtExceptionHandler) o;
+        pageChecksum = config.containsKey("pageChecksum");
+        o = config.get("writeAlignment");
+        int kb = o == null ? 0 : (Integer) o;
+        DataUtils.checkArgument(kb >= 0 && kb * 1024 % BLOCK_SIZE == 0,
+                "Write alignment {0} KB is not a multiple of the block size", kb);
+        writeAlignment = kb * 1024;
+        o = config.get("prefetchPages");
+        prefetchPages = o == null ? 0 : (Integer) o;
+        DataUtils.checkArgument(prefetchPages >= 0,
+                "Prefetch page count {0} is negative", prefetchPages);
         meta = new MVMapConcurrent<String, String>(StringDataType.INSTANCE, StringDataType.INSTANCE);
         HashMap<String, String> c = New.hashMap();
         c.put("id", "0");
@@ -275,20 +414,38 @@ public class MVStore {
         o = config.get("cacheSize");
         int mb = o == null ? 16 : (Integer) o;
         if (mb > 0) {
-            int maxMemoryBytes = mb * 1024 * 1024;
-            int averageMemory = Math.max(10, pageSplitSize / 2);
-            int segmentCount = 16;
-            int stackMoveDistance = maxMemoryBytes / averageMemory * 2 / 100;
-            cache = new CacheLongKeyLIRS<Page>(
-                    maxMemoryBytes, averageMemory, segmentCount, stackMoveDistance);
+            o = config.get("nodeCacheSize");
+            int nodeMb = o == null ? 0 : (Integer) o;
+            DataUtils.checkArgument(nodeMb >= 0 && (nodeMb == 0 || nodeMb < mb),
+                    "Node cache size {0} MB is not smaller than the cache size {1} MB",
+                    nodeMb, mb);
+            cache = createCache(mb - nodeMb);
+            cache.setAdmissionFilter(config.containsKey("cacheAdmissionFilter"));
+            if (nodeMb > 0) {
+                nodeCache = createCache(nodeMb);
+            }
         }
+        o = config.get("autoCompactFillRate");
+        autoCompactFillRate = o == null ? 0 : (Integer) o;
+        o = config.get("autoCompactWriteRate");
+        mb = o == null ? 1 : (Integer) o;
+        autoCompactWriteRate = (long) mb * 1024 * 1024;
         o = config.get("writeBufferSize");
         mb = o == null ? 4 : (Integer) o;
         int writeBufferSize =  mb * 1024 * 1024;
         int div = pageSplitSize;
         unsavedPageCountMax = writeBufferSize / (div == 0 ? 1 : div);
         char[] encryptionKey = (char[]) config.get("encryptionKey");
+        boolean useRedoLog = config.containsKey("redoLog");
         try {
+            if (useRedoLog) {
+                if (encryptionKey != null) {
+                    throw DataUtils.newUnsupportedOperationException(
+                            "The redo log is not supported for encrypted files");
+                }
+                DataUtils.checkArgument(fileName != null,
+                        "The redo log requires a file name");
+            }
             fileStore.open(fileName, readOnly, encryptionKey);
             if (fileStore.size() == 0) {
                 creationTime = 0;
@@ -316,6 +473,13 @@ public class MVStore {
                             "The read format {0} is larger than the supported format {1}",
                             format, FORMAT_READ);
                 }
+                if (DataUtils.parseLong(storeHeader.get("format"), 0) < FORMAT_WRITE &&
+                        !fileStore.isReadOnly()) {
+                    // pages of the new format may be written from now on,
+                    // the header is written together with the next chunk
+                    storeHeader.put("format", "" + FORMAT_WRITE);
+                    storeHeader.remove("formatRead");
+                }
                 if (rootChunkStart > 0) {
                     readMeta();
                 }
@@ -324,6 +488,15 @@ public class MVStore {
             if (rollback != -1) {
                 rollbackTo(rollback);
             }
+            if (useRedoLog) {
+                redoLog = new RedoLog(fileName + ".redo", fileStore.isReadOnly());
+                if (redoLog.hasReplayEntries()) {
+                    // replayed changes are applied to the previous version,
+                    // which must be newer than the pages read from the file
+                    currentVersion = Math.max(currentVersion + 1, 2);
+                    setWriteVersion(currentVersion);
+                }
+            }
         } catch (IllegalStateException e) {
             try {
                 closeStore(false);
@@ -345,6 +518,101 @@ public class MVStore {
         o = config.get("writeDelay");
         int writeDelay = o == null ? 1000 : (Integer) o;
         setWriteDelay(writeDelay);
+
+        o = config.get("autoScrubDelay");
+        int scrubDelay = o == null ? 0 : (Integer) o;
+        if (scrubDelay > 0) {
+            Scrubber sc = new Scrubber(this, scrubDelay);
+            Thread t = new Thread(sc, "MVStore scrubber " + fileStore.toString());
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            sc.thread = t;
+            scrubber = sc;
+            t.start();
+        }
+        if (prefetchPages > 0) {
+            prefetchExecutor = createThreadPool("MVStore prefetch ",
+                    Math.min(prefetchPages, 8));
+        }
+        o = config.get("preloadThreads");
+        int preloadThreads = o == null ? 0 : (Integer) o;
+        if (preloadThreads > 0 && !chunks.isEmpty()) {
+            preloadRootPages(preloadThreads);
+        }
+    }
+
+    private ThreadPoolExecutor createThreadPool(String name, int threads) {
+        final String threadName = name + fileStore.toString();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, threadName);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Read the root pages of all maps concurrently in background threads, so
+     * that opening a map doesn't need to read from the file. The data is
+     * only kept up to the size of the cache.
+     *
+     * @param threads the number of threads
+     */
+    private void preloadRootPages(int threads) {
+        final ConcurrentHashMap<Long, ByteBuffer> pages =
+                new ConcurrentHashMap<Long, ByteBuffer>();
+        ArrayList<Long> list = New.arrayList();
+        long maxMemory = cache == null ? 16 * 1024 * 1024 : cache.getMaxMemory();
+        long memory = 0;
+        for (Iterator<String> it = meta.keyIterator("root."); it.hasNext();) {
+            String key = it.next();
+            if (!key.startsWith("root.")) {
+                break;
+            }
+            long pos = DataUtils.parseLong(meta.get(key), 0);
+            int maxLength = DataUtils.getPageMaxLength(pos);
+            if (pos == 0 || maxLength == Integer.MAX_VALUE) {
+                continue;
+            }
+            memory += maxLength;
+            if (memory > maxMemory) {
+                break;
+            }
+            list.add(pos);
+        }
+        if (list.isEmpty()) {
+            return;
+        }
+        preloadTime = getTime();
+        preloadedPages = pages;
+        ThreadPoolExecutor executor = createThreadPool("MVStore preload ", threads);
+        for (final long pos : list) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (preloadedPages != pages) {
+                        // a chunk was written, or the store was closed
+                        return;
+                    }
+                    try {
+                        Chunk c = getChunk(pos);
+                        long filePos = c.start + DataUtils.getPageOffset(pos);
+                        FileStore f = fileStore;
+                        pages.put(pos, Page.readBuffer(f, pos, filePos, f.size()));
+                    } catch (Exception e) {
+                        // ignore, the page is read when needed
+                    }
+                }
+            });
+        }
+        // the threads stop when all pages are read
+        executor.shutdown();
     }
 
     /**
@@ -403,7 +671,7 @@ public class MVStore {
      * @param builder the map builder
      * @return the map
      */
-    public <M extends MVMap<K, V>, K, V> M openMap(String name, MVMap.MapBuilder<M, K, V> builder) {
+    public synchronized <M extends MVMap<K, V>, K, V> M openMap(String name, MVMap.MapBuilder<M, K, V> builder) {
         checkOpen();
         String x = meta.get("name." + name);
         int id;
@@ -437,6 +705,13 @@ public class MVStore {
             root = 0;
         }
         map.setRootPos(root, -1);
+        if (x != null && redoLog != null) {
+            // the changes in the log were committed before, so they are
+            // applied to the previous version instead of committing
+            // (the map is added afterwards, so that storing while replaying
+            // does not change its write version)
+            map.replay(redoLog, currentVersion - 1);
+        }
         maps.put(id, map);
         return map;
     }
@@ -687,6 +962,14 @@ public class MVStore {
         // the thread also synchronized on this, which
         // could result in a deadlock
         stopBackgroundThread();
+        stopScrubber();
+        preloadedPages = null;
+        if (prefetchExecutor != null) {
+            // pages that are already queued are still read (and fail),
+            // so that nobody waits for them forever
+            prefetchExecutor.shutdown();
+            prefetchExecutor = null;
+        }
         closed = true;
         if (fileStore == null) {
             return;
@@ -698,6 +981,7 @@ public class MVStore {
             // release memory early - this is important when called
             // because of out of memory
             cache = null;
+            nodeCache = null;
             for (MVMap<?, ?> m : New.arrayList(maps.values())) {
                 m.close();
             }
@@ -705,6 +989,9 @@ public class MVStore {
             chunks.clear();
             maps.clear();
             try {
+                if (redoLog != null) {
+                    redoLog.close();
+                }
                 fileStore.close();
             } finally {
                 fileStore = null;
@@ -744,7 +1031,7 @@ public class MVStore {
      *
      * @return the new version
      */
-    public long incrementVersion() {
+    public synchronized long incrementVersion() {
         long v = ++currentVersion;
         setWriteVersion(v);
         return v;
@@ -764,18 +1051,52 @@ public class MVStore {
      * Unless the write delay is set to 0, this method does not write to the
      * file. Instead, data is written after the delay, manually by calling the
      * store method, when the write buffer is full, or when closing the store.
+     * If the redo log is enabled, the changed entries are appended to the log,
+     * and the log is synced.
+     * <p>
+     * If multiple threads commit at the same time, their changes are written
+     * (and the redo log is synced) once for all of them (group commit).
      *
      * @return the new version
      */
     public long commit() {
         long v = incrementVersion();
         lastCommittedVersion = v;
-        if (writeDelay == 0) {
-            store(false);
+        if (redoLog != null) {
+            commitRedoLog(v);
+        } else if (writeDelay == 0) {
+            storeCommitted(v);
         }
         return v;
     }
 
+    private void storeCommitted(long version) {
+        synchronized (groupCommitSync) {
+            // a store that started after the version was committed
+            // contains the changes (possibly while this thread was waiting)
+            if (lastStoredVersion < version) {
+                store(false);
+            }
+        }
+    }
+
+    private void commitRedoLog(long version) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (metaChanged) {
+                // the log can only be replayed for maps that are stored
+                store(false);
+                return;
+            }
+            redoLog.commit(version);
+        }
+        // sync while not synchronized on the store, so that threads that
+        // commit in the meantime are appended to the same batch
+        redoLog.sync(version);
+    }
+
     /**
      * Commit all changes and persist them to disk. This method does nothing if
      * there are no unsaved changes, otherwise it increments the current version
@@ -827,6 +1148,8 @@ public class MVStore {
     }
 
     private long storeNow(boolean temp) {
+        // the space of old chunks may be re-used from now on
+        preloadedPages = null;
         int currentUnsavedPageCount = unsavedPageCount;
         long storeVersion = currentStoreVersion;
         long version = ++currentVersion;
@@ -932,7 +1255,7 @@ public class MVStore {
         long end = getEndPosition();
         long filePos;
         if (reuseSpace) {
-            filePos = fileStore.allocate(length);
+            filePos = allocate(length);
         } else {
             filePos = end;
             fileStore.markUsed(end, length);
@@ -987,6 +1310,12 @@ public class MVStore {
             metaChanged = false;
             lastStoredVersion = storeVersion;
         }
+
+        if (!temp && redoLog != null && (redoLog.size() > 0 || redoLog.getBatchSize() > 0)) {
+            // the log is no longer needed once the chunk is on disk
+            fileStore.sync();
+            redoLog.truncate();
+        }
         return version;
     }
 
@@ -1019,6 +1348,13 @@ public class MVStore {
         }
     }
 
+    private long allocate(int length) {
+        if (writeAlignment > 0) {
+            return fileStore.allocateAligned(length, writeAlignment);
+        }
+        return fileStore.allocate(length);
+    }
+
     private boolean canOverwriteChunk(Chunk c, long time) {
         if (c.time + retentionTime > time) {
             return false;
@@ -1027,7 +1363,76 @@ public class MVStore {
         if (r != null && c.version > r.version) {
             return false;
         }
-        return true;
+        return !isUsedBySnapshot(c);
+    }
+
+    /**
+     * Check whether a chunk may contain pages of a version that is in use by
+     * a snapshot. This is the case if the chunk was written before the
+     * snapshot version, and pages were removed afterwards. A chunk contains
+     * the data of the version before its own version.
+     *
+     * @param c the chunk
+     * @return true if it is used
+     */
+    private boolean isUsedBySnapshot(Chunk c) {
+        synchronized (snapshots) {
+            // older snapshots were created before the chunk was written;
+            // if any of the other snapshots was created before the pages
+            // were freed, then the oldest of them was as well
+            Long v = snapshots.ceilingKey(c.version - 1);
+            return v != null && c.lastFreedVersion > v;
+        }
+    }
+
+    /**
+     * Create a snapshot of the current data. The current version is closed
+     * (as in incrementVersion), and the data of this version can be read
+     * until the snapshot is released, independent of the retention time:
+     * chunks that contain data of a snapshot are not overwritten. Each
+     * snapshot needs to be released.
+     *
+     * @return the snapshot
+     */
+    public synchronized Snapshot acquireSnapshot() {
+        checkOpen();
+        long version;
+        synchronized (snapshots) {
+            version = incrementVersion() - 1;
+            Integer count = snapshots.get(version);
+            snapshots.put(version, count == null ? 1 : count + 1);
+        }
+        return new Snapshot(this, version);
+    }
+
+    /**
+     * Release a snapshot of the given version.
+     *
+     * @param version the version
+     */
+    void releaseSnapshot(long version) {
+        synchronized (snapshots) {
+            Integer count = snapshots.get(version);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                snapshots.remove(version);
+            } else {
+                snapshots.put(version, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Get the oldest version that is in use by a snapshot.
+     *
+     * @return the version, or -1 if there are no snapshots
+     */
+    public long getOldestSnapshotVersion() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? -1 : snapshots.firstKey();
+        }
     }
 
     private long getTime() {
@@ -1064,6 +1469,9 @@ public class MVStore {
                     // are not concurrently modified
                     c.maxLengthLive += f.maxLengthLive;
                     c.pageCountLive += f.pageCountLive;
+                    if (f.pageCountLive != 0) {
+                        c.lastFreedVersion = Math.max(c.lastFreedVersion, v);
+                    }
                     if (c.pageCountLive < 0) {
                         throw DataUtils.newIllegalStateException(
                                 DataUtils.ERROR_INTERNAL,
@@ -1252,7 +1660,7 @@ public class MVStore {
             buff.limit(length);
             ByteBuffer buff2 = fileStore.readFully(c.start, length);
             buff.put(buff2);
-            long pos = fileStore.allocate(length);
+            long pos = allocate(length);
             fileStore.free(c.start, length);
             buff.position(0);
             c.start = pos;
@@ -1300,11 +1708,66 @@ public class MVStore {
      * @param fillRate the minimum percentage of live entries
      * @return if anything was written
      */
-    public synchronized boolean compact(int fillRate) {
+    public boolean compact(int fillRate) {
+        checkOpen();
+        ArrayList<Chunk> old;
+        synchronized (this) {
+            old = compactGetOldChunks(fillRate, 0);
+        }
+        if (old == null) {
+            return false;
+        }
+        compactRewrite(old);
+        store();
+        return true;
+    }
+
+    /**
+     * Re-write the live data of all chunks that start within the given range
+     * of the file, so that the space can be re-used once the chunks are no
+     * longer needed. This is used to empty a segment of a
+     * SegmentedFileStore, so that the segment file can be deleted. The file
+     * is synced afterwards.
+     * <p>
+     * Chunks that are still within the retention time are not re-written.
+     *
+     * @param start the start position in the file (inclusive)
+     * @param end the end position in the file (exclusive)
+     * @return if anything was written
+     */
+    public boolean compactRange(long start, long end) {
         checkOpen();
+        ArrayList<Chunk> old = New.arrayList();
+        synchronized (this) {
+            long time = getTime();
+            for (Chunk c : chunks.values()) {
+                if (c.start >= start && c.start < end && canOverwriteChunk(c, time)) {
+                    old.add(c);
+                }
+            }
+        }
+        if (old.size() == 0) {
+            return false;
+        }
+        compactRewrite(old);
+        store();
+        sync();
+        return true;
+    }
+
+    /**
+     * Get the chunks that should be re-written to reach the target fill rate.
+     *
+     * @param fillRate the minimum percentage of live entries
+     * @param moveSize the number of live bytes to re-write at most (at least
+     *            one chunk is returned), or 0 to re-write about one average
+     *            sized chunk
+     * @return the chunks, or null if there is nothing to do
+     */
+    private ArrayList<Chunk> compactGetOldChunks(int fillRate, long moveSize) {
         if (chunks.size() == 0) {
             // nothing to do
-            return false;
+            return null;
         }
         long maxLengthSum = 0, maxLengthLiveSum = 0;
         for (Chunk c : chunks.values()) {
@@ -1319,25 +1782,29 @@ public class MVStore {
         int totalChunkFillRate = (int) (100 * maxLengthLiveSum / maxLengthSum);
 
         if (totalChunkFillRate > fillRate) {
-            return false;
+            return null;
         }
 
-        // calculate the average max length
-        int averageMaxLength = (int) (maxLengthSum / chunks.size());
+        if (moveSize <= 0) {
+            // calculate the average max length
+            moveSize = maxLengthSum / chunks.size();
+        }
 
         long time = getTime();
 
         // the 'old' list contains the chunks we want to free up
         ArrayList<Chunk> old = New.arrayList();
         for (Chunk c : chunks.values()) {
-            if (canOverwriteChunk(c, time)) {
+            // chunks that are filled more than the target
+            // are not worth re-writing
+            if (c.getFillRate() < fillRate && canOverwriteChunk(c, time)) {
                 int age = lastChunkId - c.id + 1;
                 c.collectPriority = c.getFillRate() / age;
                 old.add(c);
             }
         }
         if (old.size() == 0) {
-            return false;
+            return null;
         }
 
         // sort the list, so the first entry should be collected first
@@ -1349,11 +1816,10 @@ public class MVStore {
         });
 
         // find out up to were in the old list we need to move
-        // try to move one (average sized) chunk
         long moved = 0;
         Chunk move = null;
         for (Chunk c : old) {
-            if (move != null && moved + c.maxLengthLive > averageMaxLength) {
+            if (move != null && moved + c.maxLengthLive > moveSize) {
                 break;
             }
             moved += c.maxLengthLive;
@@ -1371,62 +1837,368 @@ public class MVStore {
             }
         }
 
+        return old;
+    }
+
+    /**
+     * Re-write the live pages of the given chunks. Each map is synchronized
+     * independently while re-writing, so this does not need to be
+     * synchronized on the store.
+     * <p>
+     * Pages that were changed more often than the average (hot pages) are
+     * re-written separately from the other (cold) pages: the cold pages are
+     * re-written and stored first, so that they are not mixed with hot pages
+     * in the same chunk, and don't need to be re-written again when the hot
+     * pages change.
+     *
+     * @param old the chunks to free up
+     */
+    private void compactRewrite(ArrayList<Chunk> old) {
+        long pageCount = 0, pageWriteCount = 0, live = 0;
+        for (Chunk c : old) {
+            pageCount += c.pageCount;
+            pageWriteCount += c.pageWriteCount;
+            live += c.maxLengthLive;
+        }
+        int hot = (int) (pageWriteCount / Math.max(1, pageCount)) + 1;
+        boolean hotPages = false;
         // iterate over all the pages in the old pages
         for (Chunk c : old) {
-            copyLive(c, old);
+            hotPages |= copyLive(c, old, false, 0, hot);
         }
-
-        store();
-        return true;
+        if (hotPages) {
+            store(true);
+            for (Chunk c : old) {
+                copyLive(c, old, false, hot, Integer.MAX_VALUE);
+            }
+        }
+        compactRewrittenBytes += live;
     }
 
-    private void copyLive(Chunk chunk, ArrayList<Chunk> old) {
-        ByteBuffer buff = fileStore.readFully(chunk.start, chunk.length);
-        Chunk.fromHeader(buff, chunk.start);
-        int chunkLength = chunk.length;
-        markMetaChanged();
-        while (buff.position() < chunkLength) {
-            int start = buff.position();
-            int pageLength = buff.getInt();
-            buff.getShort();
-            int mapId = DataUtils.readVarInt(buff);
-            @SuppressWarnings("unchecked")
-            MVMap<Object, Object> map = (MVMap<Object, Object>) getMap(mapId);
-            if (map == null) {
-                // pages of maps that are not open or that have been removed
-                // later on are not moved (for maps that are not open, the live
-                // counter is not decremented, so the chunk is not removed)
-                buff.position(start + pageLength);
-                continue;
-            }
-            buff.position(start);
-            Page page = new Page(map, 0);
-            page.read(buff, chunk.id, buff.position(), chunk.length);
-            for (int i = 0; i < page.getKeyCount(); i++) {
-                Object k = page.getKey(i);
-                Page p = map.getPage(k);
-                if (p == null) {
-                    // was removed later - ignore
-                    // or the chunk no longer exists
-                } else if (p.getPos() == 0) {
-                    // temporarily changed - ok
-                    // TODO move old data if there is an uncommitted change?
-                } else {
-                    Chunk c = getChunk(p.getPos());
-                    if (old.contains(c)) {
-                        Object value = map.remove(k);
-                        map.put(k, value);
-                    }
+    /**
+     * Compact the store in the background thread, if enabled. The live data
+     * of the chunks with the lowest fill rate is re-written, but not more
+     * than the configured write rate allows.
+     */
+    void compactInBackground() {
+        int fillRate = autoCompactFillRate;
+        if (closed || fillRate <= 0 || fileStore == null || fileStore.isReadOnly()) {
+            return;
+        }
+        long time = getTime();
+        long last = autoCompactLastTime;
+        autoCompactLastTime = time;
+        if (last == 0) {
+            return;
+        }
+        long writeRate = autoCompactWriteRate;
+        // allow to re-write at most one second worth of data at once
+        autoCompactBudget = Math.min(writeRate,
+                autoCompactBudget + (time - last) * writeRate / 1000);
+        if (autoCompactBudget <= 0 || autoCompactLastChunkId == lastChunkId) {
+            return;
+        }
+        try {
+            ArrayList<Chunk> old;
+            synchronized (this) {
+                if (closed) {
+                    return;
                 }
+                old = compactGetOldChunks(fillRate, autoCompactBudget);
+            }
+            if (old == null) {
+                return;
+            }
+            long before = compactRewrittenBytes;
+            autoCompactLastChunkId = lastChunkId;
+            compactRewrite(old);
+            autoCompactBudget -= compactRewrittenBytes - before;
+        } catch (Exception e) {
+            if (backgroundExceptionHandler != null) {
+                backgroundExceptionHandler.uncaughtException(null, e);
             }
         }
     }
 
-    private MVMap<?, ?> getMap(int mapId) {
-        if (mapId == 0) {
-            return meta;
+    /**
+     * Get the fill rate of all chunks combined, that is, the percentage of
+     * live data in the chunks. Compacting the store increases the fill rate.
+     *
+     * @return the fill rate (100 if there are no chunks)
+     */
+    public int getChunksFillRate() {
+        long maxLengthSum = 0, maxLengthLiveSum = 0;
+        for (Chunk c : chunks.values()) {
+            maxLengthSum += c.maxLength;
+            maxLengthLiveSum += c.maxLengthLive;
         }
-        return maps.get(mapId);
+        if (maxLengthSum <= 0) {
+            return 100;
+        }
+        return (int) (100 * maxLengthLiveSum / maxLengthSum);
+    }
+
+    /**
+     * Get the number of bytes of live data that was re-written by compact
+     * operations (manual and in the background) since the store was opened.
+     *
+     * @return the number of bytes
+     */
+    public long getCompactRewrittenBytes() {
+        return compactRewrittenBytes;
+    }
+
+    /**
+     * Set the target fill rate for compacting in the background thread. If
+     * the fill rate of all chunks combined is lower, the chunks with the
+     * lowest fill rate are re-written, up to the configured write rate. Use 0
+     * to disable automatic compaction. This requires a write delay larger
+     * than 0, as the background thread is used.
+     *
+     * @param fillRate the target fill rate (percentage of live data)
+     */
+    public void setAutoCompactFillRate(int fillRate) {
+        this.autoCompactFillRate = fillRate;
+    }
+
+    public int getAutoCompactFillRate() {
+        return autoCompactFillRate;
+    }
+
+    /**
+     * Verify the page check values and checksums of all chunks. If a chunk is
+     * corrupt, the live pages that can still be read are re-written, so that
+     * the chunk is removed once the corrupt pages are no longer used. Only
+     * pages of open maps are re-written, therefore it is recommended to open
+     * all maps before calling this method.
+     *
+     * @return the number of corrupt chunks
+     */
+    public int verifyChunks() {
+        checkOpen();
+        int corrupt = 0;
+        for (Chunk c : New.arrayList(chunks.values())) {
+            if (scrubChunk(c) != null) {
+                corrupt++;
+            }
+        }
+        if (corrupt > 0 && !fileStore.isReadOnly()) {
+            store();
+        }
+        return corrupt;
+    }
+
+    /**
+     * Verify the next chunk in the background thread.
+     */
+    void scrubInBackground() {
+        if (closed || fileStore == null) {
+            return;
+        }
+        try {
+            Chunk next = null, first = null;
+            for (Chunk c : chunks.values()) {
+                if (first == null || c.id < first.id) {
+                    first = c;
+                }
+                if (c.id > lastScrubbedChunkId && (next == null || c.id < next.id)) {
+                    next = c;
+                }
+            }
+            if (next == null) {
+                next = first;
+            }
+            if (next == null) {
+                return;
+            }
+            lastScrubbedChunkId = next.id;
+            IllegalStateException e = scrubChunk(next);
+            if (e != null) {
+                if (!fileStore.isReadOnly()) {
+                    store();
+                }
+                throw e;
+            }
+        } catch (Exception e) {
+            if (backgroundExceptionHandler != null) {
+                backgroundExceptionHandler.uncaughtException(null, e);
+            }
+        }
+    }
+
+    /**
+     * Verify all pages of a chunk. If the chunk is corrupt, the live pages
+     * that can still be read are re-written (unless the store is read-only).
+     *
+     * @param c the chunk
+     * @return null if the chunk is fine, or the exception
+     */
+    private IllegalStateException scrubChunk(Chunk c) {
+        ByteBuffer buff;
+        synchronized (this) {
+            if (!chunks.containsKey(c.id)) {
+                // was removed in the meantime
+                return null;
+            }
+            buff = fileStore.readFully(c.start, c.length);
+        }
+        scrubbedChunkCount++;
+        try {
+            Chunk.fromHeader(buff, c.start);
+            while (buff.position() < c.length) {
+                Page.verify(buff, c.id, c.length);
+            }
+            return null;
+        } catch (IllegalStateException e) {
+            corruptChunkCount++;
+            if (!fileStore.isReadOnly()) {
+                ArrayList<Chunk> old = New.arrayList();
+                old.add(c);
+                try {
+                    copyLive(c, old, true, 0, Integer.MAX_VALUE);
+                } catch (IllegalStateException e2) {
+                    // the chunk header is corrupt
+                }
+            }
+            return e;
+        }
+    }
+
+    /**
+     * Get the number of chunks that were verified since the store was opened.
+     *
+     * @return the number of chunks
+     */
+    public long getScrubbedChunkCount() {
+        return scrubbedChunkCount;
+    }
+
+    /**
+     * Get the number of times a corrupt chunk was found since the store was
+     * opened.
+     *
+     * @return the number of corrupt chunks found
+     */
+    public long getCorruptChunkCount() {
+        return corruptChunkCount;
+    }
+
+    /**
+     * Whether a checksum is stored for each new page.
+     *
+     * @return true if enabled
+     */
+    boolean getPageChecksum() {
+        return pageChecksum;
+    }
+
+    /**
+     * Re-write the live pages of a chunk.
+     *
+     * @param chunk the chunk
+     * @param old the chunks to free up
+     * @param skipCorrupt whether corrupt pages should be skipped
+     * @param minWriteCount only re-write pages with at least this write count
+     * @param maxWriteCount only re-write pages with a lower write count
+     * @return whether some live pages were not re-written because of the
+     *         write count
+     */
+    private boolean copyLive(Chunk chunk, ArrayList<Chunk> old,
+            boolean skipCorrupt, int minWriteCount, int maxWriteCount) {
+        ByteBuffer buff;
+        synchronized (this) {
+            if (!chunks.containsKey(chunk.id)) {
+                // was removed in the meantime
+                return false;
+            }
+            buff = fileStore.readFully(chunk.start, chunk.length);
+        }
+        Chunk.fromHeader(buff, chunk.start);
+        int chunkLength = chunk.length;
+        boolean skipped = false;
+        markMetaChanged();
+        while (buff.position() < chunkLength) {
+            int start = buff.position();
+            if (skipCorrupt) {
+                try {
+                    Page.verify(buff, chunk.id, chunkLength);
+                    buff.position(start);
+                } catch (IllegalStateException e) {
+                    int pageLength = buff.getInt(start);
+                    if (pageLength <= 0 || start + pageLength > chunkLength) {
+                        // the rest of the chunk can not be read
+                        break;
+                    }
+                    buff.position(start + pageLength);
+                    continue;
+                }
+            }
+            int pageLength = buff.getInt();
+            buff.getShort();
+            int mapId = DataUtils.readVarInt(buff);
+            @SuppressWarnings("unchecked")
+            MVMap<Object, Object> map = (MVMap<Object, Object>) getMap(mapId);
+            if (map == null) {
+                // pages of maps that are not open or that have been removed
+                // later on are not moved (for maps that are not open, the live
+                // counter is not decremented, so the chunk is not removed)
+                buff.position(start + pageLength);
+                continue;
+            }
+            buff.position(start);
+            Page page = new Page(map, 0);
+            page.read(buff, chunk.id, buff.position(), chunk.length);
+            if (mapId == 0) {
+                // the meta map is only changed while synchronized on the store
+                synchronized (this) {
+                    skipped |= copyLive(map, page, old, minWriteCount, maxWriteCount);
+                }
+            } else {
+                // lock the map first, in the same order as write
+                // operations; then the store, so that the version
+                // can not change while re-writing
+                synchronized (map) {
+                    synchronized (this) {
+                        skipped |= copyLive(map, page, old, minWriteCount, maxWriteCount);
+                    }
+                }
+            }
+        }
+        return skipped;
+    }
+
+    private boolean copyLive(MVMap<Object, Object> map, Page page,
+            ArrayList<Chunk> old, int minWriteCount, int maxWriteCount) {
+        boolean skipped = false;
+        for (int i = 0; i < page.getKeyCount(); i++) {
+            Object k = page.getKey(i);
+            Page p = map.getPage(k);
+            if (p == null) {
+                // was removed later - ignore
+                // or the chunk no longer exists
+            } else if (p.getPos() == 0) {
+                // temporarily changed - ok
+                // TODO move old data if there is an uncommitted change?
+            } else {
+                Chunk c = getChunk(p.getPos());
+                if (!old.contains(c)) {
+                    // already moved
+                } else if (p.getWriteCount() < minWriteCount ||
+                        p.getWriteCount() >= maxWriteCount) {
+                    skipped = true;
+                } else {
+                    map.rewrite(k);
+                }
+            }
+        }
+        return skipped;
+    }
+
+    private MVMap<?, ?> getMap(int mapId) {
+        if (mapId == 0) {
+            return meta;
+        }
+        return maps.get(mapId);
     }
 
     /**
@@ -1437,12 +2209,45 @@ public class MVStore {
      * @return the page
      */
     Page readPage(MVMap<?, ?> map, long pos) {
+        return readPage(map, pos, false);
+    }
+
+    /**
+     * Read a page. For a scan, the cache state is not changed if the page is
+     * cached, and leaf pages that are read are added as cold entries that
+     * don't displace hot pages (such as the inner nodes of the map).
+     *
+     * @param map the map
+     * @param pos the page position
+     * @param scan whether the page is read by a scan
+     * @return the page
+     */
+    Page readPage(MVMap<?, ?> map, long pos, boolean scan) {
+        return readPage(map, pos, scan, false);
+    }
+
+    private Page readPage(MVMap<?, ?> map, long pos, boolean scan,
+            boolean prefetch) {
         if (pos == 0) {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_FILE_CORRUPT, "Position 0");
         }
-        Page p = cache == null ? null : cache.get(pos);
-        if (p == null) {
+        CacheLongKeyLIRS<Page> pageCache = getCache(pos);
+        int type = DataUtils.getPageType(pos);
+        Page p;
+        if (pageCache == null) {
+            p = null;
+        } else {
+            p = scan ? pageCache.peek(pos) : pageCache.get(pos);
+        }
+        if (p != null) {
+            if (!prefetch) {
+                cacheHits.incrementAndGet(type);
+            }
+        } else {
+            if (!prefetch) {
+                cacheMisses.incrementAndGet(type);
+            }
             Chunk c = getChunk(pos);
             long filePos = c.start;
             filePos += DataUtils.getPageOffset(pos);
@@ -1450,14 +2255,141 @@ public class MVStore {
                 throw DataUtils.newIllegalStateException(
                         DataUtils.ERROR_FILE_CORRUPT, "Negative position {0}", filePos);
             }
-            p = Page.read(fileStore, map, pos, filePos, fileStore.size());
-            if (cache != null) {
-                cache.put(pos, p, p.getMemory());
+            ConcurrentHashMap<Long, ByteBuffer> preloaded = preloadedPages;
+            ByteBuffer buff = preloaded == null ? null : preloaded.remove(pos);
+            if (buff != null) {
+                p = Page.read(buff, map, pos);
+            } else {
+                p = Page.read(fileStore, map, pos, filePos, fileStore.size());
+            }
+            c.pageReadCount.incrementAndGet();
+            if (prefetch) {
+                prefetchReads.incrementAndGet();
+            }
+            if (pageCache != null) {
+                if (scan && p.isLeaf()) {
+                    pageCache.putCold(pos, p, p.getMemory());
+                } else {
+                    pageCache.put(pos, p, p.getMemory());
+                }
             }
         }
         return p;
     }
 
+    /**
+     * Get the number of child pages a scan reads ahead.
+     *
+     * @return the number of pages, or 0 if disabled
+     */
+    int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    /**
+     * Read a page in the background, for a scan. The page is not read if it
+     * is already cached, or if reading ahead is disabled.
+     *
+     * @param map the map
+     * @param pos the page position
+     * @return the future page, or null if the page is not read in the
+     *         background
+     */
+    Future<Page> prefetchPage(final MVMap<?, ?> map, final long pos) {
+        ThreadPoolExecutor executor = prefetchExecutor;
+        if (executor == null) {
+            return null;
+        }
+        CacheLongKeyLIRS<Page> pageCache = getCache(pos);
+        if (pageCache != null && pageCache.containsKey(pos)) {
+            return null;
+        }
+        try {
+            return executor.submit(new Callable<Page>() {
+                @Override
+                public Page call() {
+                    return readPage(map, pos, true, true);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the store was closed
+            return null;
+        }
+    }
+
+    /**
+     * Get the cache for the page at the given position.
+     *
+     * @param pos the page position
+     * @return the cache, or null if there is no cache
+     */
+    private CacheLongKeyLIRS<Page> getCache(long pos) {
+        if (nodeCache != null &&
+                DataUtils.getPageType(pos) == DataUtils.PAGE_TYPE_NODE) {
+            return nodeCache;
+        }
+        return cache;
+    }
+
+    private CacheLongKeyLIRS<Page> createCache(int mb) {
+        int maxMemoryBytes = mb * 1024 * 1024;
+        int averageMemory = Math.max(10, pageSplitSize / 2);
+        int segmentCount = 16;
+        int stackMoveDistance = maxMemoryBytes / averageMemory * 2 / 100;
+        return new CacheLongKeyLIRS<Page>(
+                maxMemoryBytes, averageMemory, segmentCount, stackMoveDistance);
+    }
+
+    /**
+     * Get the number of page reads since the store was opened where the page
+     * was found in the cache.
+     *
+     * @param pageType the page type (DataUtils.PAGE_TYPE_LEAF or
+     *            DataUtils.PAGE_TYPE_NODE)
+     * @return the number of cache hits
+     */
+    public long getCacheHitCount(int pageType) {
+        return cacheHits.get(pageType);
+    }
+
+    /**
+     * Get the number of page reads since the store was opened where the page
+     * was not found in the cache, and had to be read from the file.
+     *
+     * @param pageType the page type (DataUtils.PAGE_TYPE_LEAF or
+     *            DataUtils.PAGE_TYPE_NODE)
+     * @return the number of cache misses
+     */
+    public long getCacheMissCount(int pageType) {
+        return cacheMisses.get(pageType);
+    }
+
+    /**
+     * Get the number of pages that were read ahead by the prefetch threads
+     * since the store was opened. Those reads are not counted as cache hits
+     * or misses.
+     *
+     * @return the number of pages read ahead
+     */
+    public long getPrefetchReadCount() {
+        return prefetchReads.get();
+    }
+
+    /**
+     * Get the memory used by the cache for the given page type, in bytes.
+     * If there is no separate cache for inner pages, both page types share
+     * the same cache, and the memory of the whole cache is returned.
+     *
+     * @param pageType the page type (DataUtils.PAGE_TYPE_LEAF or
+     *            DataUtils.PAGE_TYPE_NODE)
+     * @return the used memory
+     */
+    public long getCacheSizeUsed(int pageType) {
+        CacheLongKeyLIRS<Page> c = pageType == DataUtils.PAGE_TYPE_NODE &&
+                nodeCache != null ? nodeCache : cache;
+        return c == null ? 0 : c.getUsedMemory();
+    }
+
     /**
      * Remove a page.
      *
@@ -1477,8 +2409,9 @@ public class MVStore {
         // This could result in a cache miss if the operation is rolled back,
         // but we don't optimize for rollback.
         // We could also keep the page in the cache, as somebody could read it.
-        if (cache != null) {
-            cache.remove(pos);
+        CacheLongKeyLIRS<Page> pageCache = getCache(pos);
+        if (pageCache != null) {
+            pageCache.remove(pos);
         }
 
         Chunk c = getChunk(pos);
@@ -1514,12 +2447,38 @@ public class MVStore {
         }
     }
 
-    Compressor getCompressor() {
-        return compressor;
+    /**
+     * Get the compressor for the fast compression level (LZF).
+     *
+     * @return the compressor
+     */
+    Compressor getCompressorFast() {
+        if (compressorFast == null) {
+            compressorFast = new CompressLZF();
+        }
+        return compressorFast;
     }
 
-    boolean getCompress() {
-        return compress;
+    /**
+     * Get the compressor for the high compression level (Deflate).
+     *
+     * @return the compressor
+     */
+    Compressor getCompressorHigh() {
+        if (compressorHigh == null) {
+            compressorHigh = new CompressDeflate();
+        }
+        return compressorHigh;
+    }
+
+    /**
+     * Get the compression level used for new pages, unless the map overrides
+     * it.
+     *
+     * @return the compression level (0 for disabled, 1 for fast, 2 for high)
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
     }
 
     public int getPageSplitSize() {
@@ -1564,7 +2523,9 @@ public class MVStore {
      * according to various tests this does not always work as expected
      * depending on the operating system and hardware.
      * <p>
-     * This setting is not persisted.
+     * This setting is not persisted. Chunks that contain data of a snapshot
+     * (see acquireSnapshot) are retained until the snapshot is released,
+     * independent of this setting.
      *
      * @param ms how many milliseconds to retain old chunks (0 to overwrite them
      *            as early as possible)
@@ -1609,6 +2570,10 @@ public class MVStore {
         if (storeVersion > -1) {
             v = Math.min(v, storeVersion);
         }
+        long snapshot = getOldestSnapshotVersion();
+        if (snapshot > -1 && v > -1) {
+            v = Math.min(v, snapshot);
+        }
         return v;
     }
 
@@ -1727,6 +2692,10 @@ public class MVStore {
      */
     public synchronized void rollbackTo(long version) {
         checkOpen();
+        long oldCommittedVersion = lastCommittedVersion;
+        if (redoLog != null) {
+            redoLog.rollback();
+        }
         if (version == 0) {
             // special case: remove all data
             for (MVMap<?, ?> m : maps.values()) {
@@ -1822,6 +2791,11 @@ public class MVStore {
         currentVersion = version;
         setWriteVersion(version);
         lastCommittedVersion = version;
+        if (redoLog != null && version < oldCommittedVersion && !fileStore.isReadOnly()) {
+            // the log may contain committed changes that were rolled back
+            markMetaChanged();
+            store(false);
+        }
     }
 
     private void revertTemp(long storeVersion) {
@@ -1856,6 +2830,15 @@ public class MVStore {
         return lastCommittedVersion;
     }
 
+    /**
+     * Get the redo log.
+     *
+     * @return the redo log, or null if not enabled
+     */
+    public RedoLog getRedoLog() {
+        return redoLog;
+    }
+
     /**
      * Get the file store.
      *
@@ -1924,6 +2907,9 @@ public class MVStore {
         meta.remove("name." + name);
         meta.remove("root." + id);
         maps.remove(id);
+        if (redoLog != null) {
+            redoLog.removeMap(id);
+        }
     }
 
     /**
@@ -1941,7 +2927,15 @@ public class MVStore {
      * Store all unsaved changes, if there are any that are committed.
      */
     void storeInBackground() {
-        if (closed || unsavedPageCount == 0) {
+        if (closed) {
+            return;
+        }
+        if (preloadedPages != null &&
+                getTime() > preloadTime + PRELOAD_KEEP_TIME) {
+            // the maps that were not opened so far are probably not needed
+            preloadedPages = null;
+        }
+        if (unsavedPageCount == 0) {
             return;
         }
         // could also store when there are many unsaved pages,
@@ -1972,7 +2966,12 @@ public class MVStore {
      */
     public void setCacheSize(int mb) {
         if (cache != null) {
-            cache.setMaxMemory((long) mb * 1024 * 1024);
+            long maxMemory = (long) mb * 1024 * 1024;
+            if (nodeCache != null) {
+                // the memory for inner pages is still reserved
+                maxMemory = Math.max(1, maxMemory - nodeCache.getMaxMemory());
+            }
+            cache.setMaxMemory(maxMemory);
         }
     }
 
@@ -2026,8 +3025,10 @@ public class MVStore {
             Writer w = new Writer(this, sleep);
             Thread t = new Thread(w, "MVStore writer " + fileStore.toString());
             t.setDaemon(true);
-            t.start();
+            // set the field before starting the thread,
+            // as the thread stops if it is not set
             backgroundThread = t;
+            t.start();
         }
     }
 
@@ -2035,6 +3036,59 @@ public class MVStore {
         return writeDelay;
     }
 
+    private void stopScrubber() {
+        Scrubber sc = scrubber;
+        if (sc == null) {
+            return;
+        }
+        scrubber = null;
+        synchronized (sc) {
+            sc.notify();
+        }
+        try {
+            sc.thread.join();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    /**
+     * A background scrubber that verifies one chunk at a time.
+     */
+    private static class Scrubber implements Runnable {
+
+        /**
+         * The thread.
+         */
+        Thread thread;
+
+        private final MVStore store;
+        private final int delay;
+
+        Scrubber(MVStore store, int delay) {
+            this.store = store;
+            this.delay = delay;
+        }
+
+        @Override
+        public void run() {
+            while (store.scrubber == this) {
+                synchronized (this) {
+                    try {
+                        wait(delay);
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                if (store.scrubber != this) {
+                    break;
+                }
+                store.scrubInBackground();
+            }
+        }
+
+    }
+
     /**
      * A background writer to automatically store changes from time to time.
      */
@@ -2059,7 +3113,71 @@ public class MVStore {
                     }
                 }
                 store.storeInBackground();
+                store.compactInBackground();
+            }
+        }
+
+    }
+
+    /**
+     * A snapshot of the data of a store. Maps can be opened in the version of
+     * the snapshot until it is released.
+     */
+    public static class Snapshot {
+
+        private final MVStore store;
+        private final long version;
+        private volatile boolean released;
+
+        Snapshot(MVStore store, long version) {
+            this.store = store;
+            this.version = version;
+        }
+
+        /**
+         * Get the version of this snapshot.
+         *
+         * @return the version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Open the given map in the version of this snapshot.
+         *
+         * @param <K> the key type
+         * @param <V> the value type
+         * @param map the map (of the same store)
+         * @return the read-only map
+         */
+        public <K, V> MVMap<K, V> openMap(MVMap<K, V> map) {
+            if (released) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_CLOSED, "This snapshot is released");
             }
+            return map.openVersion(version);
+        }
+
+        /**
+         * Release the snapshot. Afterwards, chunks that contain data of this
+         * version may be overwritten. Releasing a snapshot twice has no
+         * effect.
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                store.releaseSnapshot(version);
+            }
+        }
+
+        /**
+         * Check whether the snapshot was released.
+         *
+         * @return true if it was released
+         */
+        public boolean isReleased() {
+            return released;
         }
 
     }
@@ -2128,6 +3246,69 @@ public class MVStore {
             return set("cacheSize", mb);
         }
 
+        /**
+         * Use an admission filter for the read cache. A page that is not yet
+         * cached is only added if it was read more often recently than the
+         * page that would need to be removed from the cache. This protects
+         * frequently used pages if many other pages are read once, at the
+         * cost of a slightly lower hit rate for new pages.
+         *
+         * @return this
+         */
+        public Builder cacheAdmissionFilter() {
+            return set("cacheAdmissionFilter", 1);
+        }
+
+        /**
+         * Reserve part of the read cache for inner (non-leaf) pages. Inner
+         * pages are then kept in a separate cache, so that a point lookup
+         * needs to read at most the leaf page from the file even if many
+         * other leaf pages are read. The memory is taken from the read cache.
+         * The default is 0, meaning all pages use the same cache.
+         * <p>
+         * To size the reserved part, see the cache hit and miss counts per
+         * page type (MVStore.getCacheHitCount and getCacheMissCount).
+         *
+         * @param mb the reserved cache size in MB (smaller than the cache
+         *            size)
+         * @return this
+         */
+        public Builder nodeCacheSize(int mb) {
+            return set("nodeCacheSize", mb);
+        }
+
+        /**
+         * Read pages ahead for scans. When a scan (a cursor opened using
+         * MVMap.keyIterator(from, true)) reads a child page, the following
+         * child pages of the same parent are read concurrently by a small
+         * pool of background threads. This speeds up scans over data that is
+         * not cached, specially on solid state disks. The default is 0,
+         * meaning pages are not read ahead.
+         *
+         * @param pages the number of child pages to read ahead
+         * @return this
+         */
+        public Builder prefetchPages(int pages) {
+            return set("prefetchPages", pages);
+        }
+
+        /**
+         * Read the root pages of all maps in background threads when opening
+         * the store, so that opening the maps later on is faster. This helps
+         * if there are many maps. The default is 0, meaning the root page of a
+         * map is read when opening the map.
+         * <p>
+         * At most as much data as fits in the cache is read. Pages that are
+         * not used are released when the next chunk is written, or by the
+         * background thread after 10 seconds.
+         *
+         * @param threads the number of threads
+         * @return this
+         */
+        public Builder preloadThreads(int threads) {
+            return set("preloadThreads", threads);
+        }
+
         /**
          * Compress data before writing using the LZF algorithm. This will save
          * about 50% of the disk space, but will slow down read and write
@@ -2143,6 +3324,97 @@ public class MVStore {
             return set("compress", 1);
         }
 
+        /**
+         * Compress data before writing using the Deflate algorithm. This will
+         * save more disk space than the LZF algorithm, but will slow down read
+         * and write operations more. This is a good choice for data that is
+         * rarely read or changed.
+         * <p>
+         * This setting only affects writes; it is not necessary to enable
+         * compression when reading, even if compression was enabled when
+         * writing. The compression level can also be set per map, see
+         * {@link MVMap.Builder#compressionLevel(int)}.
+         *
+         * @return this
+         */
+        public Builder compressHigh() {
+            return set("compress", 2);
+        }
+
+        /**
+         * Use a redo log. When committing, only the changed entries are
+         * appended to the log file ({fileName}.redo), and the log file is
+         * synced. The changed pages are written to the store later, by the
+         * background thread, when the write buffer is full, or when calling
+         * store. The log is truncated afterwards. When opening a map, the
+         * changes in the log are replayed, without committing the changes of
+         * other maps.
+         * <p>
+         * This is faster than writing a chunk for each commit if each
+         * transaction only changes few entries. Encrypted files are not
+         * supported.
+         *
+         * @return this
+         */
+        public Builder redoLog() {
+            return set("redoLog", 1);
+        }
+
+        /**
+         * Store a checksum (CRC32) at the end of each page that is written.
+         * The checksum is verified when reading the page. Pages without
+         * checksum can still be read, so this option can be enabled for
+         * existing stores.
+         *
+         * @return this
+         */
+        public Builder pageChecksum() {
+            return set("pageChecksum", 1);
+        }
+
+        /**
+         * Verify the chunks in a low priority background thread, one chunk
+         * after the given delay. Corrupt chunks are reported to the background
+         * exception handler, and the live pages that can still be read are
+         * re-written. The default is 0, meaning chunks are only verified when
+         * calling {@link MVStore#verifyChunks()}.
+         *
+         * @param millis the delay in milliseconds between two chunks
+         * @return this
+         */
+        public Builder autoScrubDelay(int millis) {
+            return set("autoScrubDelay", millis);
+        }
+
+        /**
+         * Compact the store automatically in the background thread, if the
+         * fill rate of all chunks combined (the percentage of live data) is
+         * below the given value. The chunks with the lowest fill rate are
+         * re-written first. The default is 0, meaning chunks are only
+         * compacted when calling compact. Old chunks are only overwritten
+         * after the retention time, see {@link MVStore#setRetentionTime(int)}.
+         * <p>
+         * This requires a write delay larger than 0.
+         *
+         * @param percent the target fill rate
+         * @return this
+         */
+        public Builder autoCompactFillRate(int percent) {
+            return set("autoCompactFillRate", percent);
+        }
+
+        /**
+         * Set the maximum amount of live data that is re-written per second
+         * when compacting automatically, in MB. This limits the I/O caused by
+         * compacting. The default is 1 MB per second.
+         *
+         * @param mb the write rate, in megabytes per second
+         * @return this
+         */
+        public Builder autoCompactWriteRate(int mb) {
+            return set("autoCompactWriteRate", mb);
+        }
+
         /**
          * Set the size of the write buffer, in MB (for file-based stores).
          * Changes are automatically stored if the buffer grows larger than
@@ -2161,6 +3433,29 @@ public class MVStore {
             return set("writeBufferSize", mb);
         }
 
+        /**
+         * Write new chunks sequentially into aligned regions of the given
+         * size, in KB (for example 4096 for 4 MB, which matches the erase block
+         * size of many SSDs). Within a region, a chunk is only written after
+         * the last used block, and free space in the middle of a region is
+         * only re-used once the whole region is free. This reduces the write
+         * amplification of flash storage. The value must be a multiple of 4
+         * KB. The default is 0, meaning free space is re-used as soon as
+         * possible.
+         * <p>
+         * Only the start position of chunks is affected: each chunk is still
+         * written on its own, and its length is rounded up to the block size
+         * (4 KB) only. Writes are not gathered or padded to the alignment. To
+         * write larger sequential blocks, the write buffer size and write
+         * delay should be increased.
+         *
+         * @param kb the alignment, in kilobytes
+         * @return this
+         */
+        public Builder writeAlignment(int kb) {
+            return set("writeAlignment", kb);
+        }
+
         /**
          * Set the amount of memory a page should contain at most, in bytes,
          * before it is split. The default is 6 KB. This is not a limit in the
@@ -110,11 +110,21 @@ public class MVStoreTool {
                     long mapId = DataUtils.readVarInt(chunk);
                     int len = DataUtils.readVarInt(chunk);
                     int type = chunk.get();
-                    boolean compressed = (type & 2) != 0;
+                    int writeCount = 0;
+                    if ((type & DataUtils.PAGE_HAS_WRITE_COUNT) != 0) {
+                        writeCount = DataUtils.readVarInt(chunk);
+                    }
+                    boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
+                    boolean compressedHigh = (type & DataUtils.PAGE_COMPRESSED_HIGH) ==
+                            DataUtils.PAGE_COMPRESSED_HIGH;
                     boolean node = (type & 1) != 0;
+                    boolean checksum = (type & DataUtils.PAGE_HAS_CHECKSUM) != 0;
                     pw.println("        map " + mapId + " at " + p + " " +
                             (node ? "node" : "leaf") + " " +
-                            (compressed ? "compressed " : "") +
+                            (compressedHigh ? "compressed high " :
+                            compressed ? "compressed " : "") +
+                            (checksum ? "checksum " : "") +
+                            (writeCount > 0 ? "writes: " + writeCount + " " : "") +
                             "len: " + pageLength + " entries: " + len);
                     p += pageLength;
                     chunkLength -= pageLength;
@@ -10,6 +10,7 @@ import java.nio.ByteBuffer;
 import java.util.Arrays;
 import org.h2.compress.Compressor;
 import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.LongDataType;
 
 /**
  * A page (a node or a leaf).
@@ -17,16 +18,22 @@ import org.h2.mvstore.type.DataType;
  * For b-tree nodes, the key at a given index is larger than the largest key of
  * the child at the same index.
  * <p>
+ * If the key type of the map is a LongDataType, the keys are kept in a long
+ * array.
+ * <p>
  * File format:
  * page length (including length): int
  * check value: short
  * map id: varInt
  * number of keys: varInt
- * type: byte (0: leaf, 1: node; +2: compressed)
+ * type: byte (0: leaf, 1: node; +2: compressed using LZF;
+ *     +6: compressed using Deflate; +8: with checksum; +16: with write count)
+ * write count: varInt (only if the page was changed before)
  * compressed: bytes saved (varInt)
  * keys
  * leaf: values (one for each key)
  * node: children (1 more than keys)
+ * checksum: int (CRC32 of all previous bytes of the page; only if enabled)
  */
 public class Page {
 
@@ -34,7 +41,17 @@ public class Page {
 
     private static final Object[] EMPTY_OBJECT_ARRAY = new Object[0];
 
+    /**
+     * The estimated memory used by a key that is kept in the long array.
+     */
+    private static final int LONG_KEY_MEMORY = 8;
+
     private final MVMap<?, ?> map;
+
+    /**
+     * The key type, if the keys are kept in a long array, or null.
+     */
+    private final LongDataType longKeyType;
     private long version;
     private long pos;
 
@@ -68,6 +85,12 @@ public class Page {
      */
     private int memory;
 
+    /**
+     * How many times the page was changed and written again (copies that
+     * were made to compact the store are not counted).
+     */
+    private int writeCount;
+
     /**
      * The keys.
      * <p>
@@ -75,6 +98,14 @@ public class Page {
      */
     private Object[] keys;
 
+    /**
+     * The keys, if the key type is a LongDataType (in which case the object
+     * array is not used).
+     * <p>
+     * The array might be larger than needed, to avoid frequent re-sizing.
+     */
+    private long[] longKeys;
+
     /**
      * The values.
      * <p>
@@ -104,6 +135,8 @@ public class Page {
     Page(MVMap<?, ?> map, long version) {
         this.map = map;
         this.version = version;
+        DataType keyType = map.getKeyType();
+        longKeyType = keyType instanceof LongDataType ? (LongDataType) keyType : null;
     }
 
     /**
@@ -141,10 +174,31 @@ public class Page {
             int keyCount, Object[] keys, Object[] values,
             int childCount, long[] children, Page[] childrenPages, long[] counts,
             long totalCount, int sharedFlags, int memory) {
+        long[] longKeys = null;
+        DataType keyType = map.getKeyType();
+        if (keyType instanceof LongDataType) {
+            LongDataType t = (LongDataType) keyType;
+            longKeys = new long[keys.length];
+            for (int i = 0; i < keyCount; i++) {
+                longKeys[i] = t.getLong(keys[i]);
+            }
+            keys = null;
+        }
+        return create(map, version,
+                keyCount, keys, longKeys, values,
+                childCount, children, childrenPages, counts,
+                totalCount, sharedFlags, memory);
+    }
+
+    private static Page create(MVMap<?, ?> map, long version,
+            int keyCount, Object[] keys, long[] longKeys, Object[] values,
+            int childCount, long[] children, Page[] childrenPages, long[] counts,
+            long totalCount, int sharedFlags, int memory) {
         Page p = new Page(map, version);
         // the position is 0
         p.keyCount = keyCount;
         p.keys = keys;
+        p.longKeys = longKeys;
         p.values = values;
         p.childCount = childCount;
         p.children = children;
@@ -172,6 +226,21 @@ public class Page {
      */
     static Page read(FileStore fileStore, MVMap<?, ?> map,
             long pos, long filePos, long fileSize) {
+        ByteBuffer buff = readBuffer(fileStore, pos, filePos, fileSize);
+        return read(buff, map, pos);
+    }
+
+    /**
+     * Read the data of a page, without parsing it.
+     *
+     * @param fileStore the file store
+     * @param pos the page position
+     * @param filePos the position in the file
+     * @param fileSize the file size (to avoid reading past EOF)
+     * @return the buffer
+     */
+    static ByteBuffer readBuffer(FileStore fileStore,
+            long pos, long filePos, long fileSize) {
         ByteBuffer buff;
         int maxLength = DataUtils.getPageMaxLength(pos);
         if (maxLength == Integer.MAX_VALUE) {
@@ -185,12 +254,23 @@ public class Page {
             throw DataUtils.newIllegalStateException(DataUtils.ERROR_FILE_CORRUPT,
                     "Illegal page length {0} reading at {1}; file size {1} ", length, filePos, fileSize);
         }
-        buff = fileStore.readFully(filePos, length);
+        return fileStore.readFully(filePos, length);
+    }
+
+    /**
+     * Read a page from a buffer that contains the page data.
+     *
+     * @param buff the buffer (as returned by readBuffer)
+     * @param map the map
+     * @param pos the page position
+     * @return the page
+     */
+    static Page read(ByteBuffer buff, MVMap<?, ?> map, long pos) {
         Page p = new Page(map, 0);
         p.pos = pos;
         int chunkId = DataUtils.getPageChunkId(pos);
         int offset = DataUtils.getPageOffset(pos);
-        p.read(buff, chunkId, offset, maxLength);
+        p.read(buff, chunkId, offset, buff.remaining());
         return p;
     }
 
@@ -201,6 +281,9 @@ public class Page {
      * @return the key
      */
     public Object getKey(int index) {
+        if (longKeyType != null) {
+            return longKeyType.getObject(longKeys[index]);
+        }
         return keys[index];
     }
 
@@ -215,6 +298,28 @@ public class Page {
         return p != null ? p : map.readPage(children[index]);
     }
 
+    /**
+     * Get the position of the child page at the given index.
+     *
+     * @param index the index
+     * @return the position, or 0 if the child page was not yet stored
+     */
+    public long getChildPagePos(int index) {
+        return children[index];
+    }
+
+    /**
+     * Get the child page at the given index.
+     *
+     * @param index the index
+     * @param scan whether the page is read by a scan
+     * @return the child page
+     */
+    Page getChildPage(int index, boolean scan) {
+        Page p = childrenPages[index];
+        return p != null ? p : map.readPage(children[index], scan);
+    }
+
     /**
      * Get the value at the given index.
      *
@@ -225,6 +330,15 @@ public class Page {
         return values[index];
     }
 
+    /**
+     * Get the number of times this page was changed and written again.
+     *
+     * @return the write count
+     */
+    public int getWriteCount() {
+        return writeCount;
+    }
+
     /**
      * Get the number of keys in this page.
      *
@@ -265,7 +379,7 @@ public class Page {
                 buff.append("[" + children[i] + "] ");
             }
             if (i < keyCount) {
-                buff.append(keys[i]);
+                buff.append(getKey(i));
                 if (values != null) {
                     buff.append(':');
                     buff.append(values[i]);
@@ -283,13 +397,14 @@ public class Page {
      */
     public Page copy(long version) {
         Page newPage = create(map, version,
-                keyCount, keys, values,
+                keyCount, keys, longKeys, values,
                 childCount, children, childrenPages, counts, totalCount,
                 SHARED_KEYS | SHARED_VALUES | SHARED_CHILDREN | SHARED_COUNTS,
                 memory);
         // mark the old as deleted
         removePage();
         newPage.cachedCompare = cachedCompare;
+        newPage.writeCount = map.isRewriting() ? writeCount : writeCount + 1;
         return newPage;
     }
 
@@ -305,6 +420,9 @@ public class Page {
      * @return the value or null
      */
     public int binarySearch(Object key) {
+        if (longKeyType != null) {
+            return binarySearch(longKeyType.getLong(key));
+        }
         int low = 0, high = keyCount - 1;
         // the cached index minus one, so that
         // for the first time (when cachedCompare is 0),
@@ -345,6 +463,29 @@ public class Page {
         // return -(low + 1);
     }
 
+    private int binarySearch(long key) {
+        int low = 0, high = keyCount - 1;
+        int x = cachedCompare - 1;
+        if (x < 0 || x > high) {
+            x = (low + high) >>> 1;
+        }
+        long[] k = longKeys;
+        while (low <= high) {
+            long y = k[x];
+            if (key > y) {
+                low = x + 1;
+            } else if (key < y) {
+                high = x - 1;
+            } else {
+                cachedCompare = x + 1;
+                return x;
+            }
+            x = (low + high) >>> 1;
+        }
+        cachedCompare = low;
+        return -(low + 1);
+    }
+
     /**
      * Split the page. This modifies the current page.
      *
@@ -357,11 +498,21 @@ public class Page {
 
     private Page splitLeaf(int at) {
         int a = at, b = keyCount - a;
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a, bKeys, 0, b);
-        keys = aKeys;
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (longKeyType != null) {
+            long[] aLongKeys = new long[a];
+            bLongKeys = new long[b];
+            System.arraycopy(longKeys, 0, aLongKeys, 0, a);
+            System.arraycopy(longKeys, a, bLongKeys, 0, b);
+            longKeys = aLongKeys;
+        } else {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a, bKeys, 0, b);
+            keys = aKeys;
+        }
         keyCount = a;
         Object[] aValues = new Object[a];
         Object[] bValues = new Object[b];
@@ -372,22 +523,33 @@ public class Page {
         sharedFlags &= ~(SHARED_KEYS | SHARED_VALUES);
         totalCount = a;
         Page newPage = create(map, version,
-                b, bKeys, bValues,
+                b, bKeys, bLongKeys, bValues,
                 0, null, null, null,
-                bKeys.length, 0, 0);
+                b, 0, 0);
         memory = calculateMemory();
         newPage.memory = newPage.calculateMemory();
+        newPage.writeCount = writeCount;
         return newPage;
     }
 
     private Page splitNode(int at) {
         int a = at, b = keyCount - a;
 
-        Object[] aKeys = new Object[a];
-        Object[] bKeys = new Object[b - 1];
-        System.arraycopy(keys, 0, aKeys, 0, a);
-        System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
-        keys = aKeys;
+        Object[] bKeys = null;
+        long[] bLongKeys = null;
+        if (longKeyType != null) {
+            long[] aLongKeys = new long[a];
+            bLongKeys = new long[b - 1];
+            System.arraycopy(longKeys, 0, aLongKeys, 0, a);
+            System.arraycopy(longKeys, a + 1, bLongKeys, 0, b - 1);
+            longKeys = aLongKeys;
+        } else {
+            Object[] aKeys = new Object[a];
+            bKeys = new Object[b - 1];
+            System.arraycopy(keys, 0, aKeys, 0, a);
+            System.arraycopy(keys, a + 1, bKeys, 0, b - 1);
+            keys = aKeys;
+        }
         keyCount = a;
 
         long[] aChildren = new long[a + 1];
@@ -420,7 +582,7 @@ public class Page {
             t += x;
         }
         Page newPage = create(map, version,
-                b - 1, bKeys, null,
+                b - 1, bKeys, bLongKeys, null,
                 b, bChildren, bChildrenPages, bCounts,
                 t, 0, 0);
         memory = calculateMemory();
@@ -515,6 +677,14 @@ public class Page {
      * @param key the new key
      */
     public void setKey(int index, Object key) {
+        if (longKeyType != null) {
+            if ((sharedFlags & SHARED_KEYS) != 0) {
+                longKeys = Arrays.copyOf(longKeys, longKeys.length);
+                sharedFlags &= ~SHARED_KEYS;
+            }
+            longKeys[index] = longKeyType.getLong(key);
+            return;
+        }
         if ((sharedFlags & SHARED_KEYS) != 0) {
             keys = Arrays.copyOf(keys, keys.length);
             sharedFlags &= ~SHARED_KEYS;
@@ -579,26 +749,41 @@ public class Page {
      * @param value the value
      */
     public void insertLeaf(int index, Object key, Object value) {
-        if (((sharedFlags & SHARED_KEYS) == 0) && keys.length > keyCount + 1) {
+        int capacity = longKeyType != null ? longKeys.length : keys.length;
+        if (((sharedFlags & SHARED_KEYS) == 0) && capacity > keyCount + 1) {
             if (index < keyCount) {
-                System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+                if (longKeyType != null) {
+                    System.arraycopy(longKeys, index, longKeys, index + 1, keyCount - index);
+                } else {
+                    System.arraycopy(keys, index, keys, index + 1, keyCount - index);
+                }
                 System.arraycopy(values, index, values, index + 1, keyCount - index);
             }
         } else {
             int len = keyCount + 6;
-            Object[] newKeys = new Object[len];
-            DataUtils.copyWithGap(keys, newKeys, keyCount, index);
-            keys = newKeys;
+            if (longKeyType != null) {
+                long[] newKeys = new long[len];
+                DataUtils.copyWithGap(longKeys, newKeys, keyCount, index);
+                longKeys = newKeys;
+            } else {
+                Object[] newKeys = new Object[len];
+                DataUtils.copyWithGap(keys, newKeys, keyCount, index);
+                keys = newKeys;
+            }
             Object[] newValues = new Object[len];
             DataUtils.copyWithGap(values, newValues, keyCount, index);
             values = newValues;
         }
-        keys[index] = key;
+        if (longKeyType != null) {
+            longKeys[index] = longKeyType.getLong(key);
+        } else {
+            keys[index] = key;
+        }
         values[index] = value;
         keyCount++;
         sharedFlags &= ~(SHARED_KEYS | SHARED_VALUES);
         totalCount++;
-        memory += map.getKeyType().getMemory(key);
+        memory += getKeyMemory(key);
         memory += map.getValueType().getMemory(value);
     }
 
@@ -611,10 +796,17 @@ public class Page {
      */
     public void insertNode(int index, Object key, Page childPage) {
 
-        Object[] newKeys = new Object[keyCount + 1];
-        DataUtils.copyWithGap(keys, newKeys, keyCount, index);
-        newKeys[index] = key;
-        keys = newKeys;
+        if (longKeyType != null) {
+            long[] newKeys = new long[keyCount + 1];
+            DataUtils.copyWithGap(longKeys, newKeys, keyCount, index);
+            newKeys[index] = longKeyType.getLong(key);
+            longKeys = newKeys;
+        } else {
+            Object[] newKeys = new Object[keyCount + 1];
+            DataUtils.copyWithGap(keys, newKeys, keyCount, index);
+            newKeys[index] = key;
+            keys = newKeys;
+        }
 
         keyCount++;
 
@@ -637,7 +829,7 @@ public class Page {
 
         sharedFlags &= ~(SHARED_KEYS | SHARED_CHILDREN | SHARED_COUNTS);
         totalCount += childPage.totalCount;
-        memory += map.getKeyType().getMemory(key);
+        memory += getKeyMemory(key);
         memory += DataUtils.PAGE_MEMORY_CHILD;
     }
 
@@ -648,22 +840,36 @@ public class Page {
      */
     public void remove(int index) {
         int keyIndex = index >= keyCount ? index - 1 : index;
-        Object old = keys[keyIndex];
-        memory -= map.getKeyType().getMemory(old);
-        if ((sharedFlags & SHARED_KEYS) == 0 && keys.length > keyCount - 4) {
-            if (keyIndex < keyCount - 1) {
-                System.arraycopy(keys, keyIndex + 1, keys, keyIndex, keyCount - keyIndex - 1);
+        if (longKeyType != null) {
+            memory -= LONG_KEY_MEMORY;
+            if ((sharedFlags & SHARED_KEYS) == 0 && longKeys.length > keyCount - 4) {
+                if (keyIndex < keyCount - 1) {
+                    System.arraycopy(longKeys, keyIndex + 1, longKeys, keyIndex, keyCount - keyIndex - 1);
+                }
+            } else {
+                long[] newKeys = new long[keyCount - 1];
+                DataUtils.copyExcept(longKeys, newKeys, keyCount, keyIndex);
+                longKeys = newKeys;
+                sharedFlags &= ~SHARED_KEYS;
             }
-            keys[keyCount - 1] = null;
         } else {
-            Object[] newKeys = new Object[keyCount - 1];
-            DataUtils.copyExcept(keys, newKeys, keyCount, keyIndex);
-            keys = newKeys;
-            sharedFlags &= ~SHARED_KEYS;
+            Object old = keys[keyIndex];
+            memory -= map.getKeyType().getMemory(old);
+            if ((sharedFlags & SHARED_KEYS) == 0 && keys.length > keyCount - 4) {
+                if (keyIndex < keyCount - 1) {
+                    System.arraycopy(keys, keyIndex + 1, keys, keyIndex, keyCount - keyIndex - 1);
+                }
+                keys[keyCount - 1] = null;
+            } else {
+                Object[] newKeys = new Object[keyCount - 1];
+                DataUtils.copyExcept(keys, newKeys, keyCount, keyIndex);
+                keys = newKeys;
+                sharedFlags &= ~SHARED_KEYS;
+            }
         }
 
         if (values != null) {
-            old = values[index];
+            Object old = values[index];
             memory -= map.getValueType().getMemory(old);
             if ((sharedFlags & SHARED_VALUES) == 0 && values.length > keyCount - 4) {
                 if (index < keyCount - 1) {
@@ -738,15 +944,28 @@ public class Page {
                     checkTest, check);
         }
         int len = DataUtils.readVarInt(buff);
-        keys = new Object[len];
         keyCount = len;
         int type = buff.get();
+        if ((type & DataUtils.PAGE_HAS_WRITE_COUNT) != 0) {
+            writeCount = DataUtils.readVarInt(buff);
+        }
+        int end = start + pageLength;
+        if ((type & DataUtils.PAGE_HAS_CHECKSUM) != 0) {
+            verifyChecksum(buff, start, pageLength, chunkId, offset);
+            end -= 4;
+        }
         boolean node = (type & 1) == DataUtils.PAGE_TYPE_NODE;
         boolean compressed = (type & DataUtils.PAGE_COMPRESSED) != 0;
         if (compressed) {
-            Compressor compressor = map.getStore().getCompressor();
+            Compressor compressor;
+            if ((type & DataUtils.PAGE_COMPRESSED_HIGH) ==
+                    DataUtils.PAGE_COMPRESSED_HIGH) {
+                compressor = map.getStore().getCompressorHigh();
+            } else {
+                compressor = map.getStore().getCompressorFast();
+            }
             int lenAdd = DataUtils.readVarInt(buff);
-            int compLen = pageLength + start - buff.position();
+            int compLen = end - buff.position();
             byte[] comp = DataUtils.newBytes(compLen);
             buff.get(comp);
             int l = compLen + lenAdd;
@@ -754,9 +973,17 @@ public class Page {
             compressor.expand(comp, 0, compLen, buff.array(), buff.arrayOffset(), l);
         }
         DataType keyType = map.getKeyType();
-        for (int i = 0; i < len; i++) {
-            Object k = keyType.read(buff);
-            keys[i] = k;
+        if (longKeyType != null) {
+            longKeys = new long[len];
+            for (int i = 0; i < len; i++) {
+                longKeys[i] = longKeyType.getLong(keyType.read(buff));
+            }
+        } else {
+            keys = new Object[len];
+            for (int i = 0; i < len; i++) {
+                Object k = keyType.read(buff);
+                keys[i] = k;
+            }
         }
         if (node) {
             childCount = len + 1;
@@ -785,6 +1012,58 @@ public class Page {
         memory = calculateMemory();
     }
 
+    /**
+     * Verify the page at the current position of the buffer, without reading
+     * the keys and values. The check value is verified, and the checksum if
+     * the page has one. Afterwards, the buffer is positioned at the end of the
+     * page.
+     *
+     * @param buff the buffer that contains the chunk
+     * @param chunkId the chunk id
+     * @param chunkLength the chunk length
+     * @throws IllegalStateException if the page is corrupt
+     */
+    static void verify(ByteBuffer buff, int chunkId, int chunkLength) {
+        int start = buff.position();
+        int pageLength = buff.getInt();
+        if (pageLength < 9 || start + pageLength > chunkLength) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "File corrupted in chunk {0} at offset {1}, illegal page length {2}",
+                    chunkId, start, pageLength);
+        }
+        short check = buff.getShort();
+        int checkTest = DataUtils.getCheckValue(chunkId)
+                ^ DataUtils.getCheckValue(start)
+                ^ DataUtils.getCheckValue(pageLength);
+        if (check != (short) checkTest) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "File corrupted in chunk {0} at offset {1}, expected check value {2}, got {3}",
+                    chunkId, start, checkTest, check);
+        }
+        // map id, number of keys
+        DataUtils.readVarInt(buff);
+        DataUtils.readVarInt(buff);
+        int type = buff.get();
+        if ((type & DataUtils.PAGE_HAS_CHECKSUM) != 0) {
+            verifyChecksum(buff, start, pageLength, chunkId, start);
+        }
+        buff.position(start + pageLength);
+    }
+
+    private static void verifyChecksum(ByteBuffer buff, int start,
+            int pageLength, int chunkId, int offset) {
+        int checksum = buff.getInt(start + pageLength - 4);
+        int test = DataUtils.getCrc32(buff, start, pageLength - 4);
+        if (checksum != test) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_FILE_CORRUPT,
+                    "File corrupted in chunk {0} at offset {1}, expected page checksum {2}, got {3}",
+                    chunkId, offset, test, checksum);
+        }
+    }
+
     /**
      * Store the page and update the position.
      *
@@ -796,15 +1075,23 @@ public class Page {
         int len = keyCount;
         int type = children != null ? DataUtils.PAGE_TYPE_NODE
                 : DataUtils.PAGE_TYPE_LEAF;
+        int typeFlags = type;
+        if (writeCount > 0) {
+            typeFlags += DataUtils.PAGE_HAS_WRITE_COUNT;
+        }
         buff.putInt(0).
             putShort((byte) 0).
             putVarInt(map.getId()).
-            putVarInt(len).
-            put((byte) type);
+            putVarInt(len);
+        int typePos = buff.position();
+        buff.put((byte) typeFlags);
+        if (writeCount > 0) {
+            buff.putVarInt(writeCount);
+        }
         int compressStart = buff.position();
         DataType keyType = map.getKeyType();
         for (int i = 0; i < len; i++) {
-            keyType.write(buff, keys[i]);
+            keyType.write(buff, getKey(i));
         }
         if (type == DataUtils.PAGE_TYPE_NODE) {
             for (int i = 0; i <= len; i++) {
@@ -819,8 +1106,17 @@ public class Page {
                 valueType.write(buff, values[i]);
             }
         }
-        if (map.getStore().getCompress()) {
-            Compressor compressor = map.getStore().getCompressor();
+        int compressionLevel = map.getCompressionLevel();
+        if (compressionLevel > 0) {
+            Compressor compressor;
+            int compressType;
+            if (compressionLevel == 1) {
+                compressor = map.getStore().getCompressorFast();
+                compressType = DataUtils.PAGE_COMPRESSED;
+            } else {
+                compressor = map.getStore().getCompressorHigh();
+                compressType = DataUtils.PAGE_COMPRESSED_HIGH;
+            }
             int expLen = buff.position() - compressStart;
             byte[] exp = new byte[expLen];
             buff.position(compressStart).
@@ -828,19 +1124,31 @@ public class Page {
             byte[] comp = new byte[exp.length * 2];
             int compLen = compressor.compress(exp, exp.length, comp, 0);
             if (compLen + DataUtils.getVarIntLen(compLen - expLen) < expLen) {
-                buff.position(compressStart - 1).
-                    put((byte) (type + DataUtils.PAGE_COMPRESSED)).
+                typeFlags += compressType;
+                buff.getBuffer().put(typePos, (byte) typeFlags);
+                buff.position(compressStart).
                     putVarInt(expLen - compLen).
                     put(comp, 0, compLen);
             }
         }
+        boolean checksum = map.getStore().getPageChecksum();
+        if (checksum) {
+            typeFlags += DataUtils.PAGE_HAS_CHECKSUM;
+            buff.getBuffer().put(typePos, (byte) typeFlags);
+        }
         int pageLength = buff.position() - start;
+        if (checksum) {
+            pageLength += 4;
+        }
         int chunkId = chunk.id;
         int check = DataUtils.getCheckValue(chunkId)
                 ^ DataUtils.getCheckValue(start)
                 ^ DataUtils.getCheckValue(pageLength);
         buff.putInt(start, pageLength).
             putShort(start + 4, (short) check);
+        if (checksum) {
+            buff.putInt(DataUtils.getCrc32(buff.getBuffer(), start, pageLength - 4));
+        }
         if (pos != 0) {
             throw DataUtils.newIllegalStateException(
                     DataUtils.ERROR_INTERNAL, "Page already stored");
@@ -851,6 +1159,7 @@ public class Page {
         chunk.maxLengthLive += max;
         chunk.pageCount++;
         chunk.pageCountLive++;
+        chunk.pageWriteCount += writeCount;
     }
 
     /**
@@ -937,9 +1246,13 @@ public class Page {
 
     private int calculateMemory() {
         int mem = DataUtils.PAGE_MEMORY;
-        DataType keyType = map.getKeyType();
-        for (int i = 0; i < keyCount; i++) {
-            mem += keyType.getMemory(keys[i]);
+        if (longKeyType != null) {
+            mem += keyCount * LONG_KEY_MEMORY;
+        } else {
+            DataType keyType = map.getKeyType();
+            for (int i = 0; i < keyCount; i++) {
+                mem += keyType.getMemory(keys[i]);
+            }
         }
         if (this.isLeaf()) {
             DataType valueType = map.getValueType();
@@ -952,6 +1265,13 @@ public class Page {
         return mem;
     }
 
+    private int getKeyMemory(Object key) {
+        if (longKeyType != null) {
+            return LONG_KEY_MEMORY;
+        }
+        return map.getKeyType().getMemory(key);
+    }
+
     void setVersion(long version) {
         this.version = version;
     }
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.h2.mvstore.type.DataType;
+import org.h2.store.fs.FilePath;
+import org.h2.util.New;
+
+/**
+ * A redo log that contains the changed entries (the deltas) of committed
+ * transactions. Appending the changes to the log on commit is much cheaper
+ * than writing a chunk, which contains all changed pages from the leaf to the
+ * root. Chunks are then written later, and once a chunk is stored and synced,
+ * the log is truncated.
+ * <p>
+ * The data types of a map are only known once the map is opened, therefore
+ * the log is replayed for each map when it is opened.
+ * <p>
+ * File format:
+ * records, each with: payload length: int, version: long,
+ * checksum (CRC32 of the payload): int, payload (a list of entries)
+ * <p>
+ * Entry format:
+ * map id: varInt, length of key and value: varInt,
+ * type: byte (0: put, 1: remove, 2: clear), key (if any), value (if any)
+ * <p>
+ * Records of concurrent commits are written and synced together (group
+ * commit): a committing thread appends its record to the current batch, and
+ * then either writes the batch (including the records that were appended
+ * while the previous batch was written), or finds that its record was already
+ * written by another thread.
+ */
+public class RedoLog {
+
+    /**
+     * The entry type for a put operation.
+     */
+    public static final int PUT = 0;
+
+    /**
+     * The entry type for a remove operation.
+     */
+    public static final int REMOVE = 1;
+
+    /**
+     * The entry type for a clear operation.
+     */
+    public static final int CLEAR = 2;
+
+    private static final int HEADER_LENGTH = 16;
+
+    private final String fileName;
+
+    private final boolean readOnly;
+
+    private FileChannel file;
+
+    private long fileSize;
+
+    /**
+     * The uncommitted entries.
+     */
+    private final WriteBuffer pending = new WriteBuffer();
+
+    /**
+     * The buffer to serialize one entry.
+     */
+    private final WriteBuffer entry = new WriteBuffer();
+
+    /**
+     * The committed records that are not yet written.
+     */
+    private final WriteBuffer batch = new WriteBuffer();
+
+    /**
+     * The latest version in the batch.
+     */
+    private long batchVersion;
+
+    /**
+     * The latest version that was written and synced.
+     */
+    private volatile long syncedVersion;
+
+    /**
+     * The lock for writing to the file. Only one batch is written at any
+     * time.
+     */
+    private final Object writeSync = new Object();
+
+    /**
+     * The entries that are in the log, but were not yet replayed, by map id.
+     * The entries are only replayed when the map is opened.
+     */
+    private final HashMap<Integer, ArrayList<byte[]>> replay = New.hashMap();
+
+    private long writeCount;
+
+    private long syncCount;
+
+    /**
+     * Open the log file, and read the entries that need to be replayed.
+     * Incomplete records at the end of the file (if the process was killed
+     * while writing) are removed.
+     *
+     * @param fileName the file name
+     * @param readOnly whether the file should only be read
+     */
+    RedoLog(String fileName, boolean readOnly) {
+        this.fileName = fileName;
+        this.readOnly = readOnly;
+        try {
+            FilePath f = FilePath.get(fileName);
+            FilePath f2 = FilePath.get(fileName + ".new");
+            if (f2.exists() && !readOnly) {
+                if (f.exists()) {
+                    // the new file may be incomplete
+                    f2.delete();
+                } else {
+                    f2.moveTo(f);
+                }
+            }
+            if (readOnly && !f.exists()) {
+                return;
+            }
+            file = f.open(readOnly ? "r" : "rw");
+            fileSize = file.size();
+            long pos = read();
+            if (pos < fileSize && !readOnly) {
+                file.truncate(pos);
+                fileSize = pos;
+            }
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not open file {0}", fileName, e);
+        }
+    }
+
+    private long read() {
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (pos + HEADER_LENGTH <= fileSize) {
+            header.clear();
+            DataUtils.readFully(file, pos, header);
+            header.rewind();
+            int len = header.getInt();
+            header.getLong();
+            int checksum = header.getInt();
+            if (len < 0 || pos + HEADER_LENGTH + len > fileSize) {
+                break;
+            }
+            ByteBuffer buff = ByteBuffer.allocate(len);
+            DataUtils.readFully(file, pos + HEADER_LENGTH, buff);
+            if (DataUtils.getCrc32(buff, 0, len) != checksum) {
+                break;
+            }
+            buff.rewind();
+            while (buff.remaining() > 0) {
+                int mapId = DataUtils.readVarInt(buff);
+                byte[] data = DataUtils.newBytes(DataUtils.readVarInt(buff) + 1);
+                data[0] = buff.get();
+                buff.get(data, 1, data.length - 1);
+                getReplayList(mapId).add(data);
+            }
+            pos += HEADER_LENGTH + len;
+        }
+        return pos;
+    }
+
+    private ArrayList<byte[]> getReplayList(int mapId) {
+        ArrayList<byte[]> list = replay.get(mapId);
+        if (list == null) {
+            list = New.arrayList();
+            replay.put(mapId, list);
+        }
+        return list;
+    }
+
+    /**
+     * Add an uncommitted change.
+     *
+     * @param map the map
+     * @param type the entry type
+     * @param key the key (null for clear)
+     * @param value the value (null for remove and clear)
+     */
+    synchronized void add(MVMap<?, ?> map, int type, Object key, Object value) {
+        WriteBuffer e = entry;
+        e.clear();
+        if (key != null) {
+            map.getKeyType().write(e, key);
+        }
+        if (value != null) {
+            map.getValueType().write(e, value);
+        }
+        int len = e.position();
+        pending.putVarInt(map.getId()).
+            putVarInt(len).
+            put((byte) type).
+            put(e.getBuffer().array(), 0, len);
+    }
+
+    /**
+     * Append the uncommitted changes to the batch of committed records. The
+     * records are written when calling sync.
+     *
+     * @param version the committed version
+     */
+    synchronized void commit(long version) {
+        int len = pending.position();
+        if (len == 0) {
+            return;
+        }
+        batch.putInt(len).
+            putLong(version).
+            putInt(DataUtils.getCrc32(pending.getBuffer(), 0, len)).
+            put(pending.getBuffer().array(), 0, len);
+        pending.clear();
+        batchVersion = version;
+    }
+
+    /**
+     * Write and sync the committed records, unless the given version was
+     * already synced (by another thread).
+     *
+     * @param version the committed version
+     */
+    void sync(long version) {
+        synchronized (writeSync) {
+            if (syncedVersion >= version) {
+                return;
+            }
+            ByteBuffer buff;
+            long pos, v;
+            synchronized (this) {
+                int len = batch.position();
+                if (len == 0 || file == null) {
+                    return;
+                }
+                buff = ByteBuffer.allocate(len);
+                buff.put(batch.getBuffer().array(), 0, len);
+                buff.flip();
+                batch.clear();
+                v = batchVersion;
+                pos = fileSize;
+                fileSize += len;
+            }
+            write(pos, buff);
+            syncedVersion = v;
+        }
+    }
+
+    private void write(long pos, ByteBuffer buff) {
+        DataUtils.writeFully(file, pos, buff);
+        writeCount++;
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not sync file {0}", fileName, e);
+        }
+        syncCount++;
+    }
+
+    /**
+     * Remove the uncommitted changes.
+     */
+    synchronized void rollback() {
+        pending.clear();
+    }
+
+    /**
+     * Get the number of bytes that are committed, but not yet written.
+     *
+     * @return the number of bytes
+     */
+    synchronized int getBatchSize() {
+        return batch.position();
+    }
+
+    /**
+     * Replay the log for the given map. The changes are applied, but not
+     * logged again.
+     *
+     * @param map the map
+     * @return true if there were changes
+     */
+    boolean replay(MVMap<?, ?> map) {
+        ArrayList<byte[]> list;
+        synchronized (this) {
+            list = replay.remove(map.getId());
+        }
+        if (list == null) {
+            return false;
+        }
+        DataType keyType = map.getKeyType();
+        DataType valueType = map.getValueType();
+        for (byte[] data : list) {
+            ByteBuffer buff = ByteBuffer.wrap(data);
+            int type = buff.get();
+            Object key = type == CLEAR ? null : keyType.read(buff);
+            Object value = type == PUT ? valueType.read(buff) : null;
+            map.redo(type, key, value);
+        }
+        return true;
+    }
+
+    /**
+     * Check whether there are entries that were not replayed yet.
+     *
+     * @return true if there are such entries
+     */
+    synchronized boolean hasReplayEntries() {
+        return replay.size() > 0;
+    }
+
+    /**
+     * Remove the entries of a map that was removed.
+     *
+     * @param mapId the map id
+     */
+    synchronized void removeMap(int mapId) {
+        replay.remove(mapId);
+    }
+
+    /**
+     * Truncate the log after all committed changes were stored and synced.
+     * Only the entries of maps that were not opened yet are kept.
+     */
+    void truncate() {
+        synchronized (writeSync) {
+            synchronized (this) {
+                // the records in the batch are stored as well
+                batch.clear();
+                syncedVersion = Math.max(syncedVersion, batchVersion);
+                truncateFile();
+            }
+        }
+    }
+
+    private void truncateFile() {
+        if (readOnly || file == null || fileSize == 0) {
+            return;
+        }
+        try {
+            if (replay.size() == 0) {
+                file.truncate(0);
+                fileSize = 0;
+                return;
+            }
+            WriteBuffer buff = new WriteBuffer();
+            for (Integer mapId : replay.keySet()) {
+                for (byte[] data : replay.get(mapId)) {
+                    buff.putVarInt(mapId).
+                        putVarInt(data.length - 1).
+                        put(data);
+                }
+            }
+            int len = buff.position();
+            ByteBuffer record = ByteBuffer.allocate(HEADER_LENGTH + len);
+            record.putInt(len).
+                putLong(0).
+                putInt(DataUtils.getCrc32(buff.getBuffer(), 0, len)).
+                put(buff.getBuffer().array(), 0, len);
+            record.flip();
+            // write a new file, and then replace the old file,
+            // so that the entries are not lost if the process is killed
+            FilePath f = FilePath.get(fileName);
+            FilePath f2 = FilePath.get(fileName + ".new");
+            FileChannel file2 = f2.open("rw");
+            try {
+                file2.truncate(0);
+                DataUtils.writeFully(file2, 0, record);
+                file2.force(false);
+            } finally {
+                file2.close();
+            }
+            file.close();
+            f.delete();
+            f2.moveTo(f);
+            file = f.open("rw");
+            fileSize = file.size();
+            writeCount++;
+            syncCount++;
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Could not truncate file {0}", fileName, e);
+        }
+    }
+
+    /**
+     * Close the file.
+     */
+    void close() {
+        synchronized (writeSync) {
+            synchronized (this) {
+                if (file == null) {
+                    return;
+                }
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_WRITING_FAILED,
+                            "Closing failed for file {0}", fileName, e);
+                } finally {
+                    file = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the size of the log file.
+     *
+     * @return the size in bytes
+     */
+    public long size() {
+        return fileSize;
+    }
+
+    /**
+     * Get the number of write operations since the log was opened.
+     *
+     * @return the number of write operations
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Get the number of sync operations since the log was opened.
+     *
+     * @return the number of sync operations
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    @Override
+    public String toString() {
+        return fileName;
+    }
+
+}
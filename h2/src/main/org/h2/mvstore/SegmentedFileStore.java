@@ -0,0 +1,377 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+
+import org.h2.store.fs.FilePath;
+import org.h2.store.fs.FilePathNio;
+
+/**
+ * A file store that splits the data into multiple files (segments) of a fixed
+ * size. The first segment is the file with the given name, and the following
+ * segments have the segment index appended ("{fileName}.{index}").
+ * <p>
+ * As soon as all chunks of a segment are freed, the segment file is deleted,
+ * so that disk space is returned to the file system without having to move
+ * chunks to the beginning of the file. To free a specific segment, re-write
+ * its chunks using MVStore.compactRange. Encryption is not supported.
+ * <p>
+ * Chunks are only freed once they are no longer needed (after the retention
+ * time), so deleting a segment is as safe as overwriting the space in a
+ * single file. The segment that contains the end of the file is only removed
+ * when the file is truncated. The list of segments is copied when it is
+ * changed, so that reading does not need to synchronize.
+ */
+public class SegmentedFileStore extends FileStore {
+
+    private final int segmentSize;
+
+    /**
+     * The open segments (null for segments that don't exist). The array is
+     * replaced (not modified) when segments are added or removed.
+     */
+    private volatile FileChannel[] segments = new FileChannel[0];
+
+    private long deletedSegmentCount;
+
+    /**
+     * Create a new segmented file store.
+     *
+     * @param segmentSizeMB the segment size in MB
+     */
+    public SegmentedFileStore(int segmentSizeMB) {
+        DataUtils.checkArgument(segmentSizeMB > 0 && segmentSizeMB <= 1024,
+                "Unsupported segment size {0}", segmentSizeMB);
+        this.segmentSize = segmentSizeMB * 1024 * 1024;
+    }
+
+    @Override
+    public synchronized void open(String fileName, boolean readOnly, char[] encryptionKey) {
+        if (encryptionKey != null) {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Encryption is not supported for segmented files");
+        }
+        if (fileName.indexOf(':') < 0) {
+            // NIO is used, unless a different file system is specified
+            // the following line is to ensure the NIO file system is compiled
+            FilePathNio.class.getName();
+            fileName = "nio:" + fileName;
+        }
+        this.fileName = fileName;
+        FilePath f = FilePath.get(fileName);
+        FilePath parent = f.getParent();
+        if (parent != null && !parent.exists()) {
+            throw DataUtils.newIllegalArgumentException("Directory does not exist: {0}", parent);
+        }
+        if (f.exists() && !f.canWrite()) {
+            readOnly = true;
+        }
+        this.readOnly = readOnly;
+        try {
+            file = f.open(readOnly ? "r" : "rw");
+            setSegment(0, file);
+            try {
+                if (readOnly) {
+                    fileLock = file.tryLock(0, Long.MAX_VALUE, true);
+                } else {
+                    fileLock = file.tryLock();
+                }
+            } catch (OverlappingFileLockException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_FILE_LOCKED, "The file is locked: {0}", fileName, e);
+            }
+            if (fileLock == null) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_FILE_LOCKED, "The file is locked: {0}", fileName);
+            }
+            fileSize = file.size();
+            if (parent != null) {
+                String prefix = f.getName() + ".";
+                for (FilePath p : parent.newDirectoryStream()) {
+                    String name = p.getName();
+                    if (!name.startsWith(prefix)) {
+                        continue;
+                    }
+                    int index;
+                    try {
+                        index = Integer.parseInt(name.substring(prefix.length()));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (index <= 0) {
+                        continue;
+                    }
+                    FileChannel s = p.open(readOnly ? "r" : "rw");
+                    setSegment(index, s);
+                    fileSize = Math.max(fileSize, getSegmentStart(index) + s.size());
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_READING_FAILED,
+                    "Could not open file {0}", fileName, e);
+        }
+    }
+
+    private long getSegmentStart(int index) {
+        return (long) index * segmentSize;
+    }
+
+    private String getSegmentFileName(int index) {
+        return index == 0 ? fileName : fileName + "." + index;
+    }
+
+    private FileChannel getSegment(int index) {
+        FileChannel[] list = segments;
+        return index < list.length ? list[index] : null;
+    }
+
+    private synchronized FileChannel getOrCreateSegment(int index) {
+        FileChannel s = getSegment(index);
+        if (s == null) {
+            String name = getSegmentFileName(index);
+            try {
+                s = FilePath.get(name).open("rw");
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED,
+                        "Could not create file {0}", name, e);
+            }
+            setSegment(index, s);
+        }
+        return s;
+    }
+
+    /**
+     * Replace the list of segments with a copy where the given segment is
+     * set. The caller must synchronize on this object.
+     *
+     * @param index the segment index
+     * @param s the segment, or null
+     */
+    private void setSegment(int index, FileChannel s) {
+        FileChannel[] list = segments;
+        list = Arrays.copyOf(list, Math.max(list.length, index + 1));
+        list[index] = s;
+        segments = list;
+    }
+
+    @Override
+    public ByteBuffer readFully(long pos, int len) {
+        readCount++;
+        ByteBuffer dst = ByteBuffer.allocate(len);
+        int done = 0;
+        while (done < len) {
+            int index = (int) (pos / segmentSize);
+            int offset = (int) (pos % segmentSize);
+            int l = Math.min(len - done, segmentSize - offset);
+            FileChannel s = getSegment(index);
+            if (s == null) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_READING_FAILED,
+                        "Could not read from position {0}; file {1} does not exist",
+                        pos, getSegmentFileName(index));
+            }
+            DataUtils.readFully(s, offset, ByteBuffer.wrap(dst.array(), done, l));
+            done += l;
+            pos += l;
+        }
+        return dst;
+    }
+
+    @Override
+    public void writeFully(long pos, ByteBuffer src) {
+        writeCount++;
+        fileSize = Math.max(fileSize, pos + src.remaining());
+        while (src.remaining() > 0) {
+            int index = (int) (pos / segmentSize);
+            int offset = (int) (pos % segmentSize);
+            int l = Math.min(src.remaining(), segmentSize - offset);
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + l);
+            FileChannel s = getSegment(index);
+            if (s == null) {
+                s = getOrCreateSegment(index);
+            }
+            DataUtils.writeFully(s, offset, part);
+            src.position(src.position() + l);
+            pos += l;
+        }
+    }
+
+    @Override
+    public synchronized void markUsed(long pos, int length) {
+        super.markUsed(pos, length);
+    }
+
+    @Override
+    public synchronized long allocate(int length) {
+        return super.allocate(length);
+    }
+
+    @Override
+    public synchronized long allocateAligned(int length, int alignment) {
+        return super.allocateAligned(length, alignment);
+    }
+
+    @Override
+    public synchronized void free(long pos, int length) {
+        super.free(pos, length);
+        if (readOnly) {
+            return;
+        }
+        int first = (int) (pos / segmentSize);
+        int last = (int) ((pos + length - 1) / segmentSize);
+        // the last segment contains the store header at the end of the file,
+        // it is removed when the file is truncated
+        last = Math.min(last, (int) ((fileSize - 1) / segmentSize) - 1);
+        for (int i = Math.max(1, first); i <= last; i++) {
+            if (freeSpace.isFree(getSegmentStart(i), segmentSize)) {
+                deleteSegment(i);
+            }
+        }
+    }
+
+    private void deleteSegment(int index) {
+        FileChannel s = getSegment(index);
+        if (s == null) {
+            return;
+        }
+        String name = getSegmentFileName(index);
+        try {
+            s.close();
+        } catch (IOException e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Closing failed for file {0}", name, e);
+        }
+        setSegment(index, null);
+        FilePath.get(name).delete();
+        deletedSegmentCount++;
+    }
+
+    @Override
+    public synchronized void truncate(long size) {
+        writeCount++;
+        for (int i = segments.length - 1; i >= 0; i--) {
+            long start = getSegmentStart(i);
+            if (start >= size && i > 0) {
+                deleteSegment(i);
+                continue;
+            }
+            FileChannel s = getSegment(i);
+            if (s != null && start + segmentSize > size) {
+                try {
+                    s.truncate(size - start);
+                } catch (IOException e) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_WRITING_FAILED,
+                            "Could not truncate file {0} to size {1}",
+                            getSegmentFileName(i), size - start, e);
+                }
+            }
+        }
+        fileSize = Math.min(fileSize, size);
+    }
+
+    @Override
+    public void sync() {
+        FileChannel[] list = segments;
+        for (int i = 0; i < list.length; i++) {
+            FileChannel s = list[i];
+            if (s == null) {
+                continue;
+            }
+            try {
+                s.force(true);
+            } catch (IOException e) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_WRITING_FAILED,
+                        "Could not sync file {0}", getSegmentFileName(i), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+                fileLock = null;
+            }
+            for (FileChannel s : segments) {
+                if (s != null) {
+                    s.close();
+                }
+            }
+            freeSpace.clear();
+        } catch (Exception e) {
+            throw DataUtils.newIllegalStateException(
+                    DataUtils.ERROR_WRITING_FAILED,
+                    "Closing failed for file {0}", fileName, e);
+        } finally {
+            segments = new FileChannel[0];
+            file = null;
+        }
+    }
+
+    /**
+     * Get the segment size in bytes.
+     *
+     * @return the segment size
+     */
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Get the number of segment files that currently exist.
+     *
+     * @return the number of segment files
+     */
+    public int getSegmentCount() {
+        int count = 0;
+        for (FileChannel s : segments) {
+            if (s != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of segment files that were deleted since the store was
+     * opened.
+     *
+     * @return the number of deleted segments
+     */
+    public synchronized long getDeletedSegmentCount() {
+        return deletedSegmentCount;
+    }
+
+    /**
+     * Get the fill rate of the given segment in percent.
+     *
+     * @param index the segment index
+     * @return the fill rate (0 - 100)
+     */
+    public int getSegmentFillRate(int index) {
+        return freeSpace.getFillRate(getSegmentStart(index), segmentSize);
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + getSegmentCount() + " segments)";
+    }
+
+}
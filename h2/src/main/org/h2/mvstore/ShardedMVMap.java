@@ -0,0 +1,569 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
+
+/**
+ * A map that is split into multiple sub-maps (shards) within one store. Each
+ * key belongs to exactly one shard. As each shard is synchronized
+ * independently, multiple threads can write to the map concurrently, as long
+ * as they write to different shards. Reads are not synchronized.
+ * <p>
+ * Keys are either distributed by hash code, or by range (using a sorted list of
+ * split keys). When distributing by hash code, the hash code of the keys must
+ * be stable across processes (as is the case for Integer, Long, and String).
+ * When distributing by range, iterating over the keys in ascending order is
+ * as fast as for a regular map; when distributing by hash code, the shards are
+ * merged while iterating.
+ * <p>
+ * The sub-maps are regular maps named "{name}.{index}". The split keys are
+ * stored in the map "{name}.splits". The layout is persisted when the map is
+ * created, and re-used when the map is opened later on.
+ *
+ * @param <K> the key class
+ * @param <V> the value class
+ */
+public class ShardedMVMap<K, V> extends AbstractMap<K, V>
+        implements ConcurrentMap<K, V> {
+
+    private final String name;
+    private final DataType keyType;
+    private final MVMap<K, V>[] shards;
+
+    /**
+     * The split keys, or null if the keys are distributed by hash code. The
+     * keys smaller than split key i belong to shard i.
+     */
+    private final Object[] splitKeys;
+
+    private ShardedMVMap(String name, DataType keyType, MVMap<K, V>[] shards,
+            Object[] splitKeys) {
+        this.name = name;
+        this.keyType = keyType;
+        this.shards = shards;
+        this.splitKeys = splitKeys;
+    }
+
+    /**
+     * Get the index of the shard the given key belongs to.
+     *
+     * @param key the key
+     * @return the shard index
+     */
+    int getShardIndex(Object key) {
+        if (splitKeys == null) {
+            int h = key.hashCode();
+            // spread the bits, as the hash code of
+            // integer keys is the value itself
+            h ^= (h >>> 20) ^ (h >>> 12);
+            h ^= (h >>> 7) ^ (h >>> 4);
+            return (h & Integer.MAX_VALUE) % shards.length;
+        }
+        int low = 0, high = splitKeys.length - 1;
+        while (low <= high) {
+            int x = (low + high) >>> 1;
+            if (keyType.compare(key, splitKeys[x]) < 0) {
+                high = x - 1;
+            } else {
+                low = x + 1;
+            }
+        }
+        return low;
+    }
+
+    private MVMap<K, V> getShard(Object key) {
+        return shards[getShardIndex(key)];
+    }
+
+    /**
+     * Get the shard with the given index.
+     *
+     * @param index the index
+     * @return the shard
+     */
+    public MVMap<K, V> getShard(int index) {
+        return shards[index];
+    }
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Whether the keys are distributed by range (and not by hash code).
+     *
+     * @return true if the keys are distributed by range
+     */
+    public boolean isRangePartitioned() {
+        return splitKeys != null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public V get(Object key) {
+        return getShard(key).get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return getShard(key).containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        return getShard(key).put(key, value);
+    }
+
+    @Override
+    public V remove(Object key) {
+        return getShard(key).remove(key);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return getShard(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return getShard(key).remove(key, value);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        return getShard(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return getShard(key).replace(key, value);
+    }
+
+    @Override
+    public void clear() {
+        for (MVMap<K, V> m : shards) {
+            m.clear();
+        }
+    }
+
+    @Override
+    public int size() {
+        long size = sizeAsLong();
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+
+    /**
+     * Get the number of entries, as a long.
+     *
+     * @return the number of entries
+     */
+    public long sizeAsLong() {
+        long size = 0;
+        for (MVMap<K, V> m : shards) {
+            size += m.sizeAsLong();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (MVMap<K, V> m : shards) {
+            if (!m.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the first key, or null if the map is empty.
+     *
+     * @return the first key, or null
+     */
+    public K firstKey() {
+        return getFirstLast(true);
+    }
+
+    /**
+     * Get the last key, or null if the map is empty.
+     *
+     * @return the last key, or null
+     */
+    public K lastKey() {
+        return getFirstLast(false);
+    }
+
+    private K getFirstLast(boolean first) {
+        K result = null;
+        for (int i = 0; i < shards.length; i++) {
+            MVMap<K, V> m = shards[first ? i : shards.length - 1 - i];
+            K k = first ? m.firstKey() : m.lastKey();
+            if (k == null) {
+                continue;
+            }
+            if (splitKeys != null) {
+                // the shards are sorted
+                return k;
+            }
+            if (result == null) {
+                result = k;
+            } else {
+                int comp = keyType.compare(k, result);
+                if (first ? comp < 0 : comp > 0) {
+                    result = k;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Iterate over a number of keys, in ascending order.
+     *
+     * @param from the first key to return
+     * @return the iterator
+     */
+    public Iterator<K> keyIterator(K from) {
+        if (splitKeys != null) {
+            int start = from == null ? 0 : getShardIndex(from);
+            return new RangeIterator(start, from);
+        }
+        return new MergeIterator(from);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return new AbstractSet<K>() {
+
+            @Override
+            public Iterator<K> iterator() {
+                return keyIterator(null);
+            }
+
+            @Override
+            public int size() {
+                return ShardedMVMap.this.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return ShardedMVMap.this.containsKey(o);
+            }
+
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                final Iterator<K> it = keyIterator(null);
+                return new Iterator<Map.Entry<K, V>>() {
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        K k = it.next();
+                        return new SimpleImmutableEntry<K, V>(k, get(k));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw DataUtils.newUnsupportedOperationException(
+                                "Removing is not supported");
+                    }
+
+                };
+            }
+
+            @Override
+            public int size() {
+                return ShardedMVMap.this.size();
+            }
+
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + shards.length + " shards)";
+    }
+
+    /**
+     * Iterates over the shards one after the other (for range partitioning).
+     */
+    private class RangeIterator implements Iterator<K> {
+
+        private int index;
+        private Cursor<K> cursor;
+
+        RangeIterator(int index, K from) {
+            this.index = index;
+            cursor = shards[index].keyIterator(from);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!cursor.hasNext()) {
+                if (++index >= shards.length) {
+                    return false;
+                }
+                cursor = shards[index].keyIterator(null);
+            }
+            return true;
+        }
+
+        @Override
+        public K next() {
+            hasNext();
+            return cursor.next();
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Removing is not supported");
+        }
+
+    }
+
+    /**
+     * Merges the keys of all shards (for hash partitioning).
+     */
+    private class MergeIterator implements Iterator<K> {
+
+        private final Cursor<K>[] cursors;
+        private final Object[] current;
+
+        @SuppressWarnings("unchecked")
+        MergeIterator(K from) {
+            cursors = new Cursor[shards.length];
+            current = new Object[shards.length];
+            for (int i = 0; i < shards.length; i++) {
+                cursors[i] = shards[i].keyIterator(from);
+                current[i] = cursors[i].hasNext() ? cursors[i].next() : null;
+            }
+        }
+
+        private int getSmallest() {
+            int best = -1;
+            for (int i = 0; i < current.length; i++) {
+                Object k = current[i];
+                if (k != null && (best < 0 ||
+                        keyType.compare(k, current[best]) < 0)) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return getSmallest() >= 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public K next() {
+            int i = getSmallest();
+            if (i < 0) {
+                return null;
+            }
+            K k = (K) current[i];
+            current[i] = cursors[i].hasNext() ? cursors[i].next() : null;
+            return k;
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Removing is not supported");
+        }
+
+    }
+
+    /**
+     * A builder for this class.
+     *
+     * @param <K> the key type
+     * @param <V> the value type
+     */
+    public static class Builder<K, V> {
+
+        private DataType keyType;
+        private DataType valueType;
+        private int compressionLevel = -1;
+        private int shardCount = 16;
+        private Object[] splitKeys;
+
+        /**
+         * Set the key data type.
+         *
+         * @param keyType the key type
+         * @return this
+         */
+        public Builder<K, V> keyType(DataType keyType) {
+            this.keyType = keyType;
+            return this;
+        }
+
+        /**
+         * Set the value data type.
+         *
+         * @param valueType the value type
+         * @return this
+         */
+        public Builder<K, V> valueType(DataType valueType) {
+            this.valueType = valueType;
+            return this;
+        }
+
+        /**
+         * Set the compression level of the shards.
+         *
+         * @param compressionLevel the compression level
+         * @return this
+         * @see MVMap.Builder#compressionLevel(int)
+         */
+        public Builder<K, V> compressionLevel(int compressionLevel) {
+            DataUtils.checkArgument(compressionLevel >= 0 && compressionLevel <= 2,
+                    "Unsupported compression level {0}", compressionLevel);
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        /**
+         * Distribute the keys by hash code over the given number of shards.
+         * The default is 16 shards. This setting is only used when creating
+         * the map.
+         *
+         * @param shardCount the number of shards
+         * @return this
+         */
+        public Builder<K, V> shardCount(int shardCount) {
+            DataUtils.checkArgument(shardCount > 0,
+                    "Invalid shard count {0}", shardCount);
+            this.shardCount = shardCount;
+            this.splitKeys = null;
+            return this;
+        }
+
+        /**
+         * Distribute the keys by range. The number of shards is the number of
+         * split keys plus one. The keys smaller than the first split key belong
+         * to the first shard, and so on. The split keys must be sorted. This
+         * setting is only used when creating the map.
+         *
+         * @param splitKeys the split keys
+         * @return this
+         */
+        public Builder<K, V> splitKeys(Object... splitKeys) {
+            DataUtils.checkArgument(splitKeys.length > 0,
+                    "No split keys");
+            this.splitKeys = splitKeys;
+            return this;
+        }
+
+        /**
+         * Open the map in the given store, or create it if it does not yet
+         * exist. If it exists, the persisted layout is used.
+         *
+         * @param store the store
+         * @param name the map name
+         * @return the map
+         */
+        @SuppressWarnings("unchecked")
+        public ShardedMVMap<K, V> open(MVStore store, String name) {
+            if (keyType == null) {
+                keyType = new ObjectDataType();
+            }
+            if (valueType == null) {
+                valueType = new ObjectDataType();
+            }
+            MVMapConcurrent.Builder<K, V> b = new MVMapConcurrent.Builder<K, V>().
+                    keyType(keyType).valueType(valueType);
+            if (compressionLevel >= 0) {
+                b.compressionLevel(compressionLevel);
+            }
+            MVMap.Builder<Integer, Object> sb = new MVMap.Builder<Integer, Object>().
+                    valueType(keyType);
+            String splitsName = name + ".splits";
+            Object[] split;
+            int count;
+            if (store.hasMap(name + ".0")) {
+                if (store.hasMap(splitsName)) {
+                    MVMap<Integer, Object> splits = store.openMap(splitsName, sb);
+                    split = splits.values().toArray();
+                    count = split.length + 1;
+                } else {
+                    split = null;
+                    count = 0;
+                    while (store.hasMap(name + "." + count)) {
+                        count++;
+                    }
+                }
+            } else if (splitKeys != null) {
+                split = splitKeys;
+                for (int i = 1; i < split.length; i++) {
+                    DataUtils.checkArgument(
+                            keyType.compare(split[i - 1], split[i]) < 0,
+                            "Split keys are not sorted: {0}", split[i]);
+                }
+                MVMap<Integer, Object> splits = store.openMap(splitsName, sb);
+                for (int i = 0; i < split.length; i++) {
+                    splits.put(i, split[i]);
+                }
+                count = split.length + 1;
+            } else {
+                split = null;
+                count = shardCount;
+            }
+            MVMap<K, V>[] shards = new MVMap[count];
+            // the shards always copy pages on write,
+            // so that reads don't need to be synchronized
+            for (int i = 0; i < count; i++) {
+                shards[i] = store.openMap(name + "." + i, b);
+            }
+            return new ShardedMVMap<K, V>(name, keyType, shards, split);
+        }
+
+    }
+
+}
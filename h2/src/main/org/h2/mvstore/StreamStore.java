@@ -15,6 +15,7 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import org.h2.security.SHA256;
 
 /**
  * A facility to store streams in a map. Streams are split into blocks, which
@@ -34,6 +35,14 @@ import java.util.concurrent.atomic.AtomicReference;
  * to concatenate the data. If the id is large, it is stored itself, which is
  * encoded as 2, the total length (a variable size long), and the key of the
  * block that contains the id (a variable size long).
+ * <p>
+ * Optionally, blocks are deduplicated. In this case, the stream is split into
+ * blocks of variable size at content defined boundaries (where a rolling hash
+ * of the last bytes matches a pattern), so that inserting or removing data
+ * only changes the blocks around the change. Each block is stored under a
+ * negative key derived from a secure hash of its content, and the number of
+ * references to each such block is kept in a separate map. The format of the
+ * id is the same.
  */
 public class StreamStore {
 
@@ -43,6 +52,12 @@ public class StreamStore {
     private final AtomicLong nextKey = new AtomicLong();
     private final AtomicReference<byte[]> nextBuffer = new AtomicReference<byte[]>();
 
+    /**
+     * The number of references per deduplicated block, or null if
+     * deduplication is disabled.
+     */
+    private Map<Long, Long> refCounts;
+
     /**
      * Create a stream store instance.
      *
@@ -90,6 +105,29 @@ public class StreamStore {
         return maxBlockSize;
     }
 
+    /**
+     * Enable or disable deduplication of blocks. If enabled, new streams are
+     * split at content defined boundaries, and identical blocks are only
+     * stored once. Streams that were stored before can still be read and
+     * removed.
+     *
+     * @param refCounts the map to store the number of references per
+     *            deduplicated block, or null to disable deduplication
+     */
+    public void setDeduplication(Map<Long, Long> refCounts) {
+        this.refCounts = refCounts;
+    }
+
+    /**
+     * Get the map that stores the number of references per deduplicated
+     * block.
+     *
+     * @return the map, or null if deduplication is disabled
+     */
+    public Map<Long, Long> getDeduplication() {
+        return refCounts;
+    }
+
     /**
      * Store the stream, and return the id.
      *
@@ -97,6 +135,9 @@ public class StreamStore {
      * @return the id (potentially an empty array)
      */
     public byte[] put(InputStream in) throws IOException {
+        if (refCounts != null) {
+            in = new ChunkingInputStream(in, minBlockSize, maxBlockSize);
+        }
         ByteArrayOutputStream id = new ByteArrayOutputStream();
         int level = 0;
         while (true) {
@@ -142,7 +183,12 @@ public class StreamStore {
         if (len == 0) {
             return true;
         }
-        boolean eof = len < maxBlockSize;
+        boolean eof;
+        if (in instanceof ChunkingInputStream) {
+            eof = ((ChunkingInputStream) in).nextBlock();
+        } else {
+            eof = len < maxBlockSize;
+        }
         if (len < minBlockSize) {
             id.write(0);
             DataUtils.writeVarInt(id, len);
@@ -179,12 +225,67 @@ public class StreamStore {
     }
 
     private long writeBlock(byte[] data) {
+        Map<Long, Long> counts = refCounts;
+        if (counts != null) {
+            long key = writeSharedBlock(data, counts);
+            if (key != 0) {
+                return key;
+            }
+        }
         long key = getAndIncrementNextKey();
         map.put(key, data);
         onStore(data.length);
         return key;
     }
 
+    /**
+     * Store a deduplicated block, or add a reference if the block already
+     * exists.
+     *
+     * @param data the data
+     * @param counts the reference counts
+     * @return the key, or 0 if the key is already used by a different block
+     */
+    private long writeSharedBlock(byte[] data, Map<Long, Long> counts) {
+        byte[] hash = SHA256.getHash(data, false);
+        long key = Long.MIN_VALUE | ByteBuffer.wrap(hash).getLong();
+        synchronized (counts) {
+            Long count = counts.get(key);
+            if (count != null) {
+                if (!Arrays.equals(data, map.get(key))) {
+                    // a hash collision (very unlikely)
+                    return 0;
+                }
+                counts.put(key, count + 1);
+                return key;
+            }
+            map.put(key, data);
+            counts.put(key, 1L);
+        }
+        onStore(data.length);
+        return key;
+    }
+
+    /**
+     * Remove a block, or a reference to a deduplicated block.
+     *
+     * @param key the key
+     */
+    private void removeBlock(long key) {
+        Map<Long, Long> counts = refCounts;
+        if (key < 0 && counts != null) {
+            synchronized (counts) {
+                Long count = counts.get(key);
+                if (count != null && count > 1) {
+                    counts.put(key, count - 1);
+                    return;
+                }
+                counts.remove(key);
+            }
+        }
+        map.remove(key);
+    }
+
     /**
      * This method is called after a block of data is stored. Override this
      * method to persist data if necessary.
@@ -233,14 +334,14 @@ public class StreamStore {
             case 1:
                 DataUtils.readVarInt(idBuffer);
                 long k = DataUtils.readVarLong(idBuffer);
-                map.remove(k);
+                removeBlock(k);
                 break;
             case 2:
                 DataUtils.readVarLong(idBuffer);
                 long k2 = DataUtils.readVarLong(idBuffer);
                 // recurse
                 remove(map.get(k2));
-                map.remove(k2);
+                removeBlock(k2);
                 break;
             default:
                 throw DataUtils.newIllegalArgumentException(
@@ -321,6 +422,112 @@ public class StreamStore {
         return map.get(key);
     }
 
+    /**
+     * An input stream that ends at content defined block boundaries. A
+     * boundary is found where the rolling (gear) hash of the last bytes has
+     * the lowest bits set to zero, but not before the minimum block size, and
+     * at the latest at the maximum block size. The target average block size
+     * is 1/16 of the maximum block size.
+     */
+    static class ChunkingInputStream extends InputStream {
+
+        private static final long[] GEAR = new long[256];
+
+        static {
+            // a fixed pseudo random sequence, so that the boundaries
+            // don't change between runs
+            long x = 0x2545f4914f6cdd1dL;
+            for (int i = 0; i < GEAR.length; i++) {
+                x ^= x << 13;
+                x ^= x >>> 7;
+                x ^= x << 17;
+                GEAR[i] = x;
+            }
+        }
+
+        private final InputStream in;
+        private final int minBlockSize;
+        private final int maxBlockSize;
+        private final long mask;
+        private final byte[] buffer;
+        private int pos, limit;
+        private boolean endOfStream;
+        private int blockLength;
+        private boolean endOfBlock;
+        private long hash;
+
+        ChunkingInputStream(InputStream in, int minBlockSize, int maxBlockSize) {
+            this.in = in;
+            this.minBlockSize = Math.max(1, minBlockSize);
+            this.maxBlockSize = maxBlockSize;
+            int average = Math.max(this.minBlockSize, maxBlockSize / 16);
+            this.mask = Integer.highestOneBit(average) - 1;
+            this.buffer = new byte[Math.max(4096, Math.min(maxBlockSize, 64 * 1024))];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 255;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (endOfBlock) {
+                return -1;
+            }
+            if (isEndOfStream()) {
+                return -1;
+            }
+            int count = 0;
+            while (count < len && pos < limit) {
+                byte x = buffer[pos++];
+                b[off + count++] = x;
+                blockLength++;
+                hash = (hash << 1) + GEAR[x & 255];
+                if (blockLength >= maxBlockSize ||
+                        (blockLength >= minBlockSize && (hash & mask) == 0)) {
+                    endOfBlock = true;
+                    break;
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Start reading the next block.
+         *
+         * @return true if there is no more data
+         */
+        boolean nextBlock() throws IOException {
+            endOfBlock = false;
+            blockLength = 0;
+            hash = 0;
+            return isEndOfStream();
+        }
+
+        /**
+         * Check whether all data was read.
+         *
+         * @return true if there is no more data
+         */
+        boolean isEndOfStream() throws IOException {
+            if (pos < limit) {
+                return false;
+            }
+            while (!endOfStream && pos == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                pos = 0;
+                if (limit < 0) {
+                    limit = 0;
+                    endOfStream = true;
+                }
+            }
+            return endOfStream;
+        }
+
+    }
+
     /**
      * A stream backed by a map.
      */
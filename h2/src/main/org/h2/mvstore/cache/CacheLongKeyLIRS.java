@@ -38,6 +38,14 @@ import org.h2.mvstore.DataUtils;
  * Accessed entries are only moved to the top of the stack if at least a number
  * of other entries have been moved to the front (1% by default). Write access
  * and moving entries to the top of the stack is synchronized per segment.
+ * <p>
+ * Optionally, new entries are only admitted if they were accessed more often
+ * than the entry they would replace (a TinyLFU admission filter). The access
+ * frequency is estimated using a count-min sketch of 4 bit counters, which are
+ * halved periodically so that old accesses are forgotten. Entries that are
+ * expected to be used only once (for example pages read by a sequential scan)
+ * can be added using putCold: they are never moved to the stack, do not
+ * become hot, and are removed when they are evicted.
  *
  * @author Thomas Mueller
  * @param <V> the value type
@@ -61,6 +69,11 @@ public class CacheLongKeyLIRS<V> {
     private final int segmentMask;
     private final int stackMoveDistance;
 
+    /**
+     * Whether new entries need to pass the admission filter.
+     */
+    private boolean admissionFilter;
+
     /**
      * Create a new cache with the given number of entries, and the default
      * settings (an average size of 1 per entry, 16 segments, and stack move
@@ -103,7 +116,7 @@ public class CacheLongKeyLIRS<V> {
         long max = Math.max(1, maxMemory / segmentCount);
         for (int i = 0; i < segmentCount; i++) {
             segments[i] = new Segment<V>(
-                    max, averageMemory, stackMoveDistance);
+                    max, averageMemory, stackMoveDistance, admissionFilter);
         }
     }
 
@@ -159,7 +172,25 @@ public class CacheLongKeyLIRS<V> {
      */
     public V put(long key, V value, int memory) {
         int hash = getHash(key);
-        return getSegment(hash).put(key, hash, value, memory);
+        return getSegment(hash).put(key, hash, value, memory, false);
+    }
+
+    /**
+     * Add an entry that is expected to be used only once, for example a page
+     * that is read by a sequential scan. The entry is added as a cold entry,
+     * but not to the stack, so that it does not cause hot entries to become
+     * cold. When evicted, no non-resident entry is kept. The admission filter
+     * is not used. Reading the entry using get (but not peek) turns it into a
+     * regular cold entry, which is added to the stack.
+     *
+     * @param key the key (may not be null)
+     * @param value the value (may not be null)
+     * @param memory the memory used for the given entry
+     * @return the old value, or null if there was no resident entry
+     */
+    public V putCold(long key, V value, int memory) {
+        int hash = getHash(key);
+        return getSegment(hash).put(key, hash, value, memory, true);
     }
 
     /**
@@ -282,6 +313,46 @@ public class CacheLongKeyLIRS<V> {
         }
     }
 
+    /**
+     * Enable or disable the admission filter. If enabled, a new entry is only
+     * added if the estimated access frequency of its key is higher than the
+     * frequency of the entry that would need to be evicted. All calls to get
+     * (including cache misses) count as an access.
+     *
+     * @param admissionFilter whether the admission filter is used
+     */
+    public void setAdmissionFilter(boolean admissionFilter) {
+        this.admissionFilter = admissionFilter;
+        if (segments != null) {
+            for (Segment<V> s : segments) {
+                s.setAdmissionFilter(admissionFilter);
+            }
+        }
+    }
+
+    /**
+     * Check whether the admission filter is used.
+     *
+     * @return true if it is used
+     */
+    public boolean getAdmissionFilter() {
+        return admissionFilter;
+    }
+
+    /**
+     * Estimate how often the given key was accessed recently. This method
+     * does not adjust the internal state of the cache.
+     *
+     * @param key the key
+     * @return the estimated frequency (0 to 15), or 0 if the admission
+     *         filter is not used
+     */
+    public int getFrequency(long key) {
+        int hash = getHash(key);
+        FrequencySketch sketch = getSegment(hash).sketch;
+        return sketch == null ? 0 : sketch.getFrequency(hash);
+    }
+
     /**
      * Get the average memory used per entry.
      *
@@ -543,6 +614,17 @@ public class CacheLongKeyLIRS<V> {
          */
         private int stackMoveCounter;
 
+        /**
+         * The access frequency sketch, or null if the admission filter is not
+         * used.
+         */
+        FrequencySketch sketch;
+
+        /**
+         * Whether the admission filter is used.
+         */
+        private boolean admissionFilter;
+
         /**
          * Create a new cache.
          *
@@ -550,11 +632,14 @@ public class CacheLongKeyLIRS<V> {
          * @param averageMemory the average memory usage of an object
          * @param stackMoveDistance the number of other entries to be moved to
          *        the top of the stack before moving an entry to the top
+         * @param admissionFilter whether the admission filter is used
          */
-        Segment(long maxMemory, int averageMemory, int stackMoveDistance) {
+        Segment(long maxMemory, int averageMemory, int stackMoveDistance,
+                boolean admissionFilter) {
             setMaxMemory(maxMemory);
             setAverageMemory(averageMemory);
             this.stackMoveDistance = stackMoveDistance;
+            this.admissionFilter = admissionFilter;
             clear();
         }
 
@@ -586,6 +671,7 @@ public class CacheLongKeyLIRS<V> {
             @SuppressWarnings("unchecked")
             Entry<V>[] e = new Entry[len];
             entries = e;
+            sketch = admissionFilter ? new FrequencySketch(len) : null;
 
             mapSize = 0;
             usedMemory = 0;
@@ -614,6 +700,10 @@ public class CacheLongKeyLIRS<V> {
          * @return the value, or null if there is no resident entry
          */
         V get(long key, int hash) {
+            FrequencySketch s = sketch;
+            if (s != null) {
+                s.increment(hash);
+            }
             Entry<V> e = find(key, hash);
             if (e == null) {
                 // the entry was not found
@@ -663,6 +753,9 @@ public class CacheLongKeyLIRS<V> {
                     }
                 }
             } else {
+                // an entry that was expected to be used only once
+                // is now a regular cold entry
+                e.once = false;
                 removeFromQueue(e);
                 if (e.stackNext != null) {
                     // resident cold entries become hot
@@ -672,12 +765,14 @@ public class CacheLongKeyLIRS<V> {
                     // (this entry is cold, that means there is at least one
                     // more entry in the stack, which must be hot)
                     convertOldestHotToCold();
-                } else {
+                } else if (stackSize > 0) {
                     // cold entries that are not on the stack
                     // move to the front of the queue
                     addToQueue(queue, e);
                 }
                 // in any case, the cold entry is moved to the top of the stack
+                // (if the stack is empty, because all entries were added
+                // using putCold, it becomes hot)
                 addToStack(e);
             }
         }
@@ -691,9 +786,10 @@ public class CacheLongKeyLIRS<V> {
          * @param hash the hash
          * @param value the value (may not be null)
          * @param memory the memory used for the given entry
+         * @param once whether the entry is expected to be used only once
          * @return the old value, or null if there was no resident entry
          */
-        synchronized V put(long key, int hash, V value, int memory) {
+        synchronized V put(long key, int hash, V value, int memory, boolean once) {
             if (value == null) {
                 throw DataUtils.newIllegalArgumentException(
                         "The value may not be null");
@@ -702,6 +798,9 @@ public class CacheLongKeyLIRS<V> {
             Entry<V> e = find(key, hash);
             if (e == null) {
                 old = null;
+                if (!once && !admit(hash, memory)) {
+                    return null;
+                }
             } else {
                 old = e.value;
                 remove(key, hash);
@@ -714,6 +813,14 @@ public class CacheLongKeyLIRS<V> {
             e.mapNext = entries[index];
             entries[index] = e;
             usedMemory += memory;
+            if (once) {
+                // the entry is cold, but not in the stack
+                e.once = true;
+                mapSize++;
+                addToQueue(queue, e);
+                evictCold();
+                return old;
+            }
             if (usedMemory > maxMemory && mapSize > 0) {
                 // an old entry needs to be removed
                 evict(e);
@@ -724,6 +831,27 @@ public class CacheLongKeyLIRS<V> {
             return old;
         }
 
+        /**
+         * Check whether a new entry may be added. This is the case if the
+         * admission filter is not used, if there is enough free memory, or if
+         * the new key was accessed more often than the entry that would be
+         * evicted.
+         *
+         * @param hash the hash of the new key
+         * @param memory the memory used by the new entry
+         * @return true if the entry may be added
+         */
+        private boolean admit(int hash, int memory) {
+            if (sketch == null || usedMemory + memory <= maxMemory) {
+                return true;
+            }
+            Entry<V> victim = queueSize > 0 ? queue.queuePrev : stack.stackPrev;
+            if (victim == stack) {
+                return true;
+            }
+            return sketch.getFrequency(hash) > sketch.getFrequency(getHash(victim.key));
+        }
+
         /**
          * Remove an entry. Both resident and non-resident entries can be
          * removed.
@@ -765,6 +893,7 @@ public class CacheLongKeyLIRS<V> {
                 e = queue.queueNext;
                 if (e != queue) {
                     removeFromQueue(e);
+                    e.once = false;
                     if (e.stackNext == null) {
                         addToStackBottom(e);
                     }
@@ -794,10 +923,23 @@ public class CacheLongKeyLIRS<V> {
                 // the new cold entry is at the top of the queue
                 addToQueue(queue, newCold);
             }
+            evictCold();
+        }
+
+        /**
+         * Evict resident cold entries until the memory limit is reached. The
+         * newest cold entry always stays.
+         */
+        private void evictCold() {
             // the oldest resident cold entries become non-resident
             // but at least one cold entry (the new one) must stay
             while (usedMemory > maxMemory && queueSize > 1) {
                 Entry<V> e = queue.queuePrev;
+                if (e.once) {
+                    // entries that were used once are not remembered
+                    remove(e.key, getHash(e.key));
+                    continue;
+                }
                 usedMemory -= e.memory;
                 removeFromQueue(e);
                 e.value = null;
@@ -986,6 +1128,114 @@ public class CacheLongKeyLIRS<V> {
             this.averageMemory = averageMemory;
         }
 
+        /**
+         * Enable or disable the admission filter.
+         *
+         * @param admissionFilter whether the admission filter is used
+         */
+        synchronized void setAdmissionFilter(boolean admissionFilter) {
+            this.admissionFilter = admissionFilter;
+            if (!admissionFilter) {
+                sketch = null;
+            } else if (sketch == null) {
+                sketch = new FrequencySketch(entries.length);
+            }
+        }
+
+    }
+
+    /**
+     * A count-min sketch that estimates how often a key was accessed. Each
+     * key is mapped to one 4 bit counter in each of 4 rows; the estimate is
+     * the smallest of those counters. All counters are halved after a number
+     * of increments (10 times the table size), so that the sketch adapts to
+     * changes in the access pattern.
+     * <p>
+     * Increments are not synchronized; concurrent updates may get lost, which
+     * only makes the estimate slightly less accurate.
+     */
+    static class FrequencySketch {
+
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private static final int[] SEEDS = {
+            0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+        /**
+         * The counters. Each long contains 16 counters, 4 for each row.
+         */
+        private final long[] table;
+
+        private final int mask;
+
+        private final int sampleSize;
+
+        /**
+         * The number of increments since the counters were halved.
+         */
+        private int size;
+
+        /**
+         * Create a new sketch.
+         *
+         * @param len the number of longs in the table (a power of 2)
+         */
+        FrequencySketch(int len) {
+            table = new long[len];
+            mask = len - 1;
+            sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * len);
+        }
+
+        /**
+         * Get the estimated frequency.
+         *
+         * @param hash the hash of the key
+         * @return the frequency (0 to 15)
+         */
+        int getFrequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                int h = (hash ^ SEEDS[i]) * SEEDS[i];
+                h ^= h >>> 16;
+                int shift = getShift(h, i);
+                int count = (int) ((table[h >>> 2 & mask] >>> shift) & 15);
+                min = Math.min(min, count);
+            }
+            return min;
+        }
+
+        /**
+         * Increment the counters for the given key, unless they are at the
+         * maximum value.
+         *
+         * @param hash the hash of the key
+         */
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int h = (hash ^ SEEDS[i]) * SEEDS[i];
+                h ^= h >>> 16;
+                int shift = getShift(h, i);
+                int index = h >>> 2 & mask;
+                long x = table[index];
+                if (((x >>> shift) & 15) < 15) {
+                    table[index] = x + (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++size >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                size /= 2;
+            }
+        }
+
+        private static int getShift(int h, int row) {
+            // each row uses 4 of the 16 counters of a long
+            return ((row << 2) + (h & 3)) << 2;
+        }
+
     }
 
     /**
@@ -1019,6 +1269,12 @@ public class CacheLongKeyLIRS<V> {
          */
         int topMove;
 
+        /**
+         * Whether the entry is expected to be used only once. Such entries
+         * are cold, but not in the stack.
+         */
+        boolean once;
+
         /**
          * The next entry in the stack.
          */
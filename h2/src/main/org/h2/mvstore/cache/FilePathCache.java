@@ -102,6 +102,15 @@ public class FilePathCache extends FilePathWrapper {
             return len;
         }
 
+        @Override
+        public ByteBuffer readDirect(long position, int len) throws IOException {
+            // if the base file supports it, there is no need to cache
+            if (base instanceof FileBase) {
+                return ((FileBase) base).readDirect(position, len);
+            }
+            return null;
+        }
+
         private static long getCachePos(long pos) {
             return (pos / CACHE_BLOCK_SIZE) * CACHE_BLOCK_SIZE;
         }
@@ -50,8 +50,7 @@ public class MVPrimaryIndex extends BaseIndex {
         for (int i = 0; i < columns.length; i++) {
             sortTypes[i] = SortOrder.ASCENDING;
         }
-        ValueDataType keyType = new ValueDataType(
-                null, null, null);
+        ValueLongDataType keyType = new ValueLongDataType();
         ValueDataType valueType = new ValueDataType(
                 db.getCompareMode(), db, sortTypes);
         mapName = "table." + getId();
@@ -174,8 +173,11 @@ public class MVPrimaryIndex extends BaseIndex {
             }
         }
         TransactionMap<Value, Value> map = getMap(session);
-        return new MVStoreCursor(session, map.keyIterator(
-                ValueLong.get(min)), max);
+        ValueLong from = ValueLong.get(min);
+        // a range of rows is read using a scan, so that the leaf pages
+        // don't remove frequently used pages from the cache
+        Iterator<Value> it = min == max ? map.keyIterator(from) : map.scanIterator(from);
+        return new MVStoreCursor(session, it, max);
     }
 
     @Override
@@ -313,7 +315,9 @@ public class MVPrimaryIndex extends BaseIndex {
      */
     Cursor find(Session session, long first, long last) {
         TransactionMap<Value, Value> map = getMap(session);
-        return new MVStoreCursor(session, map.keyIterator(ValueLong.get(first)), last);
+        ValueLong from = ValueLong.get(first);
+        Iterator<Value> it = first == last ? map.keyIterator(from) : map.scanIterator(from);
+        return new MVStoreCursor(session, it, last);
     }
 
     @Override
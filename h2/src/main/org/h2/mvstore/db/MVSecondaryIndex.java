@@ -6,9 +6,14 @@
  */
 package org.h2.mvstore.db;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import org.h2.constant.ErrorCode;
 import org.h2.engine.Database;
@@ -17,8 +22,12 @@ import org.h2.index.BaseIndex;
 import org.h2.index.Cursor;
 import org.h2.index.IndexType;
 import org.h2.message.DbException;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
 import org.h2.mvstore.db.TransactionStore.Transaction;
 import org.h2.mvstore.db.TransactionStore.TransactionMap;
+import org.h2.mvstore.db.TransactionStore.VersionedValue;
+import org.h2.mvstore.type.DataType;
 import org.h2.result.Row;
 import org.h2.result.SearchRow;
 import org.h2.result.SortOrder;
@@ -126,6 +135,208 @@ public class MVSecondaryIndex extends BaseIndex {
         }
     }
 
+    /**
+     * Add the rows to an empty index. The rows are sorted by the index key,
+     * and the index pages are then built directly, instead of adding the rows
+     * one by one.
+     *
+     * @param session the session
+     * @param rows the rows (in any order)
+     */
+    void addRows(Session session, List<Row> rows) {
+        addSorted(session, getSortedKeys(rows).iterator());
+    }
+
+    /**
+     * Sort the rows by the index key, and add them to a new temporary map (a
+     * buffer). This is used to build an index for a table with more rows than
+     * fit in memory, see {@link #addBufferedRows(Session, List)}.
+     *
+     * @param rows the rows (in any order)
+     * @param bufferName the name of the temporary map
+     */
+    void addRowsToBuffer(List<Row> rows, String bufferName) {
+        MVMap<Value, Value> map = openMap(bufferName);
+        final Iterator<Value> it = getSortedKeys(rows).iterator();
+        map.appendSorted(new Iterator<Map.Entry<Value, Value>>() {
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Value, Value> next() {
+                return new SimpleImmutableEntry<Value, Value>(
+                        it.next(), ValueNull.INSTANCE);
+            }
+
+            @Override
+            public void remove() {
+                throw DbException.getUnsupportedException("remove");
+            }
+
+        });
+    }
+
+    /**
+     * Add the rows of the given temporary maps to an empty index. The
+     * temporary maps are merged, and the index pages are built directly.
+     *
+     * @param session the session
+     * @param bufferNames the names of the temporary maps
+     */
+    void addBufferedRows(Session session, List<String> bufferNames) {
+        final DataType keyType = dataMap.map.getKeyType();
+        final PriorityQueue<Source> queue = new PriorityQueue<Source>(
+                bufferNames.size(), new Comparator<Source>() {
+            @Override
+            public int compare(Source a, Source b) {
+                return keyType.compare(a.current, b.current);
+            }
+        });
+        for (String bufferName : bufferNames) {
+            Iterator<Value> it = openMap(bufferName).keyIterator(null);
+            if (it.hasNext()) {
+                queue.add(new Source(it));
+            }
+        }
+        addSorted(session, new Iterator<Value>() {
+
+            @Override
+            public boolean hasNext() {
+                return queue.size() > 0;
+            }
+
+            @Override
+            public Value next() {
+                Source s = queue.poll();
+                Value key = s.current;
+                if (s.next()) {
+                    queue.add(s);
+                }
+                return key;
+            }
+
+            @Override
+            public void remove() {
+                throw DbException.getUnsupportedException("remove");
+            }
+
+        });
+    }
+
+    /**
+     * Remove the given temporary maps.
+     *
+     * @param bufferNames the names of the temporary maps
+     */
+    void removeBuffers(List<String> bufferNames) {
+        for (String bufferName : bufferNames) {
+            MVStore store = mvTable.getStore();
+            if (store.hasMap(bufferName)) {
+                store.removeMap(openMap(bufferName));
+            }
+        }
+    }
+
+    private MVMap<Value, Value> openMap(String mapName) {
+        ValueDataType keyType = (ValueDataType) dataMap.map.getKeyType();
+        ValueDataType valueType = new ValueDataType(null, null, null);
+        MVMap.Builder<Value, Value> builder = new MVMap.Builder<Value, Value>().
+                keyType(keyType).
+                valueType(valueType);
+        return mvTable.getStore().openMap(mapName, builder);
+    }
+
+    private ArrayList<Value> getSortedKeys(List<Row> rows) {
+        ArrayList<Value> keys = New.arrayList(rows.size());
+        for (Row row : rows) {
+            keys.add(getKey(row));
+        }
+        final DataType keyType = dataMap.map.getKeyType();
+        Collections.sort(keys, new Comparator<Value>() {
+            @Override
+            public int compare(Value a, Value b) {
+                return keyType.compare(a, b);
+            }
+        });
+        return keys;
+    }
+
+    /**
+     * Append the sorted keys to the map. For unique indexes, the rows are
+     * checked for duplicates.
+     *
+     * @param session the session
+     * @param keys the keys, sorted
+     */
+    private void addSorted(Session session, final Iterator<Value> keys) {
+        TransactionMap<Value, Value> map = getMap(session);
+        final boolean unique = indexType.isUnique();
+        map.appendSorted(new Iterator<Map.Entry<Value, Value>>() {
+
+            private SearchRow last;
+
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Value, Value> next() {
+                ValueArray key = (ValueArray) keys.next();
+                if (unique) {
+                    SearchRow row = getRow(key.getList());
+                    if (last != null && compareRows(row, last) == 0 &&
+                            !containsNullAndAllowMultipleNull(row)) {
+                        throw getDuplicateKeyException(key.toString());
+                    }
+                    last = row;
+                }
+                return new SimpleImmutableEntry<Value, Value>(key, ValueLong.get(0));
+            }
+
+            @Override
+            public void remove() {
+                throw DbException.getUnsupportedException("remove");
+            }
+
+        });
+    }
+
+    /**
+     * A temporary map that is merged.
+     */
+    private static class Source {
+
+        /**
+         * The current key.
+         */
+        Value current;
+
+        private final Iterator<Value> it;
+
+        Source(Iterator<Value> it) {
+            this.it = it;
+            current = it.next();
+        }
+
+        /**
+         * Move to the next key.
+         *
+         * @return false if there are no more keys
+         */
+        boolean next() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            current = it.next();
+            return true;
+        }
+
+    }
+
     @Override
     public void remove(Session session, Row row) {
         ValueArray array = getKey(row);
@@ -222,6 +433,13 @@ public class MVSecondaryIndex extends BaseIndex {
     public Cursor findFirstOrLast(Session session, boolean first) {
         TransactionMap<Value, Value> map = getMap(session);
         Value key = first ? map.firstKey() : map.lastKey();
+        if (key != null && ((ValueArray) key).getList()[0] == ValueNull.INSTANCE) {
+            // skip all entries where the first column is NULL at once
+            key = findNotNull(map.map, first);
+            if (key != null && map.get(key) == null) {
+                key = first ? map.higherKey(key) : map.lowerKey(key);
+            }
+        }
         while (true) {
             if (key == null) {
                 return new MVStoreCursor(session, Collections.<Value>emptyList().iterator(), null);
@@ -238,6 +456,33 @@ public class MVSecondaryIndex extends BaseIndex {
         return cursor;
     }
 
+    /**
+     * Find the first (or last) entry where the first column is not NULL, if
+     * the entries where the first column is NULL are at the start (or end).
+     * The entries with NULL are next to each other, so a binary search over
+     * the positions of the entries is used. Entries that are not visible are
+     * included.
+     *
+     * @param map the map
+     * @param first whether to find the first or the last entry
+     * @return the key, or null if there is none
+     */
+    private static Value findNotNull(MVMap<Value, VersionedValue> map, boolean first) {
+        long low = 0, high = map.sizeAsLong() - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            Value k = map.getKey(mid);
+            boolean isNull = k == null ||
+                    ((ValueArray) k).getList()[0] == ValueNull.INSTANCE;
+            if (isNull == first) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return map.getKey(first ? low : high);
+    }
+
     @Override
     public boolean needRebuild() {
         try {
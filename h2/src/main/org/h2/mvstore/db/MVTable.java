@@ -9,8 +9,8 @@ package org.h2.mvstore.db;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.h2.api.DatabaseEventListener;
 import org.h2.command.ddl.Analyze;
@@ -29,6 +29,7 @@ import org.h2.index.MultiVersionIndex;
 import org.h2.index.SpatialTreeIndex;
 import org.h2.message.DbException;
 import org.h2.message.Trace;
+import org.h2.mvstore.MVStore;
 import org.h2.mvstore.db.TransactionStore.Transaction;
 import org.h2.result.Row;
 import org.h2.result.SortOrder;
@@ -52,8 +53,14 @@ public class MVTable extends TableBase {
     private ArrayList<Index> indexes = New.arrayList();
     private long lastModificationId;
     private long rowCount;
+    /**
+     * The sessions that lock this table. Locks are acquired and released
+     * synchronized on the lock object (see getLockSync); sessions that wait
+     * for a lock are woken up when the table is unlocked.
+     */
     private volatile Session lockExclusive;
-    private HashSet<Session> lockShared = New.hashSet();
+    private final Set<Session> lockShared =
+            Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
     private final Trace traceLock;
     private int changesSinceAnalyze;
     private int nextAnalyze;
@@ -123,7 +130,11 @@ public class MVTable extends TableBase {
         if (lockExclusive == session) {
             return;
         }
-        synchronized (database) {
+        if (!exclusive && lockExclusive == null && lockShared.contains(session)) {
+            // already locked by this session
+            return;
+        }
+        synchronized (getLockSync()) {
             try {
                 doLock(session, lockMode, exclusive);
             } finally {
@@ -132,6 +143,19 @@ public class MVTable extends TableBase {
         }
     }
 
+    /**
+     * Get the object to synchronize on when locking or unlocking this table.
+     * In multi-threaded mode, this is the table itself, so that sessions that
+     * lock different tables don't block each other. Otherwise, statements are
+     * executed while synchronized on the database, so waiting sessions need to
+     * release the database.
+     *
+     * @return the object to synchronize on
+     */
+    private Object getLockSync() {
+        return database.isMultiThreaded() ? this : database;
+    }
+
     private void doLock(Session session, int lockMode, boolean exclusive) {
         traceLock(session, exclusive, "requesting for");
         // don't get the current time unless necessary
@@ -177,9 +201,16 @@ public class MVTable extends TableBase {
             }
             session.setWaitForLock(this, Thread.currentThread());
             if (checkDeadlock) {
-                ArrayList<Session> sessions = checkDeadlock(session, null, null);
-                if (sessions != null) {
-                    throw DbException.get(ErrorCode.DEADLOCK_1, getDeadlockDetails(sessions));
+                synchronized (RegularTable.class) {
+                    ArrayList<Session> sessions = checkDeadlock(session, null, null);
+                    if (sessions != null) {
+                        String details = getDeadlockDetails(sessions);
+                        // sessions may wait at the same time (each one
+                        // synchronized on its table), but only one session
+                        // of the deadlock needs to fail
+                        session.setWaitForLock(null, null);
+                        throw DbException.get(ErrorCode.DEADLOCK_1, details);
+                    }
                 }
             } else {
                 // check for deadlocks from now on
@@ -211,7 +242,7 @@ public class MVTable extends TableBase {
                     sleep = 1;
                 }
                 waitForLock = true;
-                database.wait(sleep);
+                getLockSync().wait(sleep);
             } catch (InterruptedException e) {
                 // ignore
             }
@@ -318,17 +349,18 @@ public class MVTable extends TableBase {
     public void unlock(Session s) {
         if (database != null) {
             traceLock(s, lockExclusive == s, "unlock");
-            if (lockExclusive == s) {
-                lockExclusive = null;
-            }
-            if (lockShared.size() > 0) {
-                lockShared.remove(s);
-            }
             // TODO lock: maybe we need we fifo-queue to make sure nobody
             // starves. check what other databases do
-            synchronized (database) {
+            Object sync = getLockSync();
+            synchronized (sync) {
+                if (lockExclusive == s) {
+                    lockExclusive = null;
+                }
+                if (lockShared.size() > 0) {
+                    lockShared.remove(s);
+                }
                 if (database.getSessionCount() > 1 && waitForLock) {
-                    database.notifyAll();
+                    sync.notifyAll();
                 }
             }
         }
@@ -409,28 +441,14 @@ public class MVTable extends TableBase {
         }
         if (index.needRebuild() && rowCount > 0) {
             try {
-                Index scan = getScanIndex(session);
-                long remaining = scan.getRowCount(session);
-                long total = remaining;
-                Cursor cursor = scan.find(session, null, null);
-                long i = 0;
-                int bufferSize = (int) Math.min(rowCount, Constants.DEFAULT_MAX_MEMORY_ROWS);
-                ArrayList<Row> buffer = New.arrayList(bufferSize);
-                String n = getName() + ":" + index.getName();
-                int t = MathUtils.convertLongToInt(total);
-                while (cursor.next()) {
-                    Row row = cursor.get();
-                    buffer.add(row);
-                    database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
-                            MathUtils.convertLongToInt(i++), t);
-                    if (buffer.size() >= bufferSize) {
-                        addRowsToIndex(session, buffer, index);
-                    }
-                    remaining--;
-                }
-                addRowsToIndex(session, buffer, index);
-                if (SysProperties.CHECK && remaining != 0) {
-                    DbException.throwInternalError("rowcount remaining=" + remaining + " " + getName());
+                if (index instanceof MVSecondaryIndex) {
+                    rebuildIndexBuffered(session, (MVSecondaryIndex) index);
+                } else if (index instanceof SpatialTreeIndex) {
+                    Index scan = getScanIndex(session);
+                    ((SpatialTreeIndex) index).addAll(session,
+                            scan.find(session, null, null));
+                } else {
+                    rebuildIndex(session, index);
                 }
             } catch (DbException e) {
                 getSchema().freeUniqueName(indexName);
@@ -460,6 +478,84 @@ public class MVTable extends TableBase {
         return index;
     }
 
+    private void rebuildIndex(Session session, Index index) {
+        Index scan = getScanIndex(session);
+        long remaining = scan.getRowCount(session);
+        long total = remaining;
+        Cursor cursor = scan.find(session, null, null);
+        long i = 0;
+        int bufferSize = (int) Math.min(rowCount, Constants.DEFAULT_MAX_MEMORY_ROWS);
+        ArrayList<Row> buffer = New.arrayList(bufferSize);
+        String n = getName() + ":" + index.getName();
+        int t = MathUtils.convertLongToInt(total);
+        while (cursor.next()) {
+            Row row = cursor.get();
+            buffer.add(row);
+            database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
+                    MathUtils.convertLongToInt(i++), t);
+            if (buffer.size() >= bufferSize) {
+                addRowsToIndex(session, buffer, index);
+            }
+            remaining--;
+        }
+        addRowsToIndex(session, buffer, index);
+        if (SysProperties.CHECK && remaining != 0) {
+            DbException.throwInternalError("rowcount remaining=" + remaining + " " + getName());
+        }
+    }
+
+    /**
+     * Build a new secondary index. The rows are sorted in batches, and each
+     * batch is stored in a temporary map. The temporary maps are then merged,
+     * and the index pages are built directly from the sorted rows. If all rows
+     * fit in one batch, no temporary map is used.
+     *
+     * @param session the session
+     * @param index the new index
+     */
+    private void rebuildIndexBuffered(Session session, MVSecondaryIndex index) {
+        Index scan = getScanIndex(session);
+        long remaining = scan.getRowCount(session);
+        long total = remaining;
+        Cursor cursor = scan.find(session, null, null);
+        long i = 0;
+        int bufferSize = (int) Math.min(rowCount, Constants.DEFAULT_MAX_MEMORY_ROWS);
+        ArrayList<Row> buffer = New.arrayList(bufferSize);
+        String n = getName() + ":" + index.getName();
+        int t = MathUtils.convertLongToInt(total);
+        ArrayList<String> bufferNames = New.arrayList();
+        try {
+            while (cursor.next()) {
+                Row row = cursor.get();
+                buffer.add(row);
+                database.setProgress(DatabaseEventListener.STATE_CREATE_INDEX, n,
+                        MathUtils.convertLongToInt(i++), t);
+                if (buffer.size() >= bufferSize) {
+                    String bufferName = "temp." + index.getId() + "." + bufferNames.size();
+                    index.addRowsToBuffer(buffer, bufferName);
+                    bufferNames.add(bufferName);
+                    buffer.clear();
+                }
+                remaining--;
+            }
+            if (bufferNames.size() == 0) {
+                index.addRows(session, buffer);
+            } else {
+                if (buffer.size() > 0) {
+                    String bufferName = "temp." + index.getId() + "." + bufferNames.size();
+                    index.addRowsToBuffer(buffer, bufferName);
+                    bufferNames.add(bufferName);
+                }
+                index.addBufferedRows(session, bufferNames);
+            }
+        } finally {
+            index.removeBuffers(bufferNames);
+        }
+        if (SysProperties.CHECK && remaining != 0) {
+            DbException.throwInternalError("rowcount remaining=" + remaining + " " + getName());
+        }
+    }
+
     private int getMainIndexColumn(IndexType indexType, IndexColumn[] cols) {
         if (primaryIndex.getMainIndexColumn() != -1) {
             return -1;
@@ -670,6 +766,15 @@ public class MVTable extends TableBase {
         // ok
     }
 
+    /**
+     * Get the store that contains the data of this table.
+     *
+     * @return the store
+     */
+    MVStore getStore() {
+        return store.store;
+    }
+
     /**
      * Get the transaction to use for this session.
      *
@@ -10,6 +10,7 @@ import java.io.InputStream;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.h2.api.TableEngine;
@@ -21,6 +22,7 @@ import org.h2.engine.Session;
 import org.h2.message.DbException;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.FileStore;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.db.TransactionStore.Transaction;
 import org.h2.store.InDoubtTransaction;
@@ -29,6 +31,7 @@ import org.h2.store.fs.FileUtils;
 import org.h2.table.RegularTable;
 import org.h2.table.TableBase;
 import org.h2.util.New;
+import org.h2.value.Value;
 
 /**
  * A table engine that internally uses the MVStore.
@@ -54,6 +57,8 @@ public class MVTableEngine implements TableEngine {
         } else {
             String fileName = dbPath + Constants.SUFFIX_MV_FILE;
             builder.fileName(fileName);
+            // each table and index is a map, which are opened one by one
+            builder.preloadThreads(db.getSettings().mvStorePreloadThreads);
             if (db.isReadOnly()) {
                 builder.readOnly();
             } else {
@@ -142,6 +147,33 @@ public class MVTableEngine implements TableEngine {
             this.store = store;
             this.transactionStore = new TransactionStore(store,
                     new ValueDataType(null, db, null));
+            removeTemporaryMaps();
+        }
+
+        /**
+         * Remove the temporary maps that were used to create an index, if the
+         * process was killed while the index was created.
+         */
+        private void removeTemporaryMaps() {
+            if (store.getFileStore() != null && store.getFileStore().isReadOnly()) {
+                return;
+            }
+            ArrayList<String> names = New.arrayList();
+            MVMap<String, String> meta = store.getMetaMap();
+            for (Iterator<String> it = meta.keyIterator("name.temp."); it.hasNext();) {
+                String key = it.next();
+                if (!key.startsWith("name.temp.")) {
+                    break;
+                }
+                names.add(key.substring("name.".length()));
+            }
+            for (String name : names) {
+                ValueDataType type = new ValueDataType(null, null, null);
+                MVMap.Builder<Value, Value> builder = new MVMap.Builder<Value, Value>().
+                        keyType(type).
+                        valueType(type);
+                store.removeMap(store.openMap(name, builder));
+            }
         }
 
         public MVStore getStore() {
@@ -280,6 +312,7 @@ public class MVTableEngine implements TableEngine {
         public void close(long maxCompactTime) {
             if (!store.isClosed() && store.getFileStore() != null) {
                 if (!store.getFileStore().isReadOnly()) {
+                    transactionStore.close();
                     store.store();
                     long start = System.currentTimeMillis();
                     while (store.compact(90)) {
@@ -7,10 +7,14 @@
 package org.h2.mvstore.db;
 
 import java.nio.ByteBuffer;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
@@ -31,19 +35,40 @@ public class TransactionStore {
     // TODO should not be hard-coded
     private static final int MAX_UNSAVED_PAGES = 4 * 1024;
 
+    /**
+     * The number of undo log stripes (a power of 2).
+     */
+    private static final int UNDO_LOG_STRIPES = 16;
+
+    /**
+     * Transactions with more undo log entries are committed asynchronously:
+     * the commit only marks the transaction as committed, and the undo log
+     * entries are removed by a background thread.
+     */
+    private static final int MAX_SYNC_COMMIT_LOG_SIZE = 1024;
+
+    /**
+     * The number of undo log entries the background thread removes while
+     * holding the lock of the undo log.
+     */
+    private static final int CLEANUP_BATCH_SIZE = 1024;
+
     /**
      * The store.
      */
     final MVStore store;
 
     /**
-     * The persisted map of prepared transactions.
+     * The persisted map of prepared transactions, and of committed
+     * transactions whose undo log entries are not yet removed.
      * Key: transactionId, value: [ status, name ].
      */
     final MVMap<Long, Object[]> preparedTransactions;
 
     /**
-     * The undo log.
+     * The undo logs. The entries of a transaction are all stored in the same
+     * stripe (see getUndoLog), and each stripe is synchronized separately, so
+     * that transactions in different stripes don't block each other.
      * <p>
      * If the first entry for a transaction doesn't have a logId
      * of 0, then the transaction is partially committed (which means rollback
@@ -52,12 +77,64 @@ public class TransactionStore {
      * <p>
      * Key: [ transactionId, logId ], value: [ opType, mapId, key, oldValue ].
      */
-    final MVMap<long[], Object[]> undoLog;
+    private final MVMap<long[], Object[]>[] undoLogs;
+
+    /**
+     * The id of the first open transaction per undo log stripe, or -1 if
+     * unknown.
+     */
+    private final long[] firstOpenTransaction;
+
+    /**
+     * The transactions that are committed, but whose undo log entries are not
+     * yet removed. Changes of such transactions are visible to all other
+     * transactions. Key: transactionId, value: the last log id (exclusive).
+     */
+    private final ConcurrentHashMap<Long, Long> committingTransactions =
+            new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * The number of entries per map that were changed by open transactions, or
+     * by transactions that are committed but whose undo log is not yet
+     * removed. Key: mapId, value: the counts per transaction id.
+     */
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Long, ChangeCount>> changeCounts =
+            new ConcurrentHashMap<Integer, ConcurrentHashMap<Long, ChangeCount>>();
+
+    /**
+     * The transactions that were open when the store was opened. Their
+     * changes are not counted, so until they are closed, the size of a map is
+     * calculated by reading the entries.
+     */
+    private final ConcurrentHashMap<Long, Boolean> recoveredTransactions =
+            new ConcurrentHashMap<Long, Boolean>();
+
+    /**
+     * The background thread that removes the undo log entries of committed
+     * transactions, or null if it is not running. Changes are synchronized on
+     * committingTransactions.
+     */
+    volatile Cleaner cleaner;
 
     /**
      * The lock timeout in milliseconds. 0 means timeout immediately.
      */
-    long lockTimeout;
+    volatile long lockTimeout;
+
+    /**
+     * The transactions that wait for another transaction (the wait-for
+     * graph). Key: the id of the waiting transaction, value: the id of the
+     * transaction that blocks it.
+     */
+    private final ConcurrentHashMap<Long, Long> waitingFor =
+            new ConcurrentHashMap<Long, Long>();
+
+    /**
+     * The objects to wait on until a transaction releases its entries. Key:
+     * the id of the blocking transaction.
+     */
+    private final ConcurrentHashMap<Long, Object> releaseMonitors =
+            new ConcurrentHashMap<Long, Object>();
 
     /**
      * The transaction settings. The entry "lastTransaction" contains the last
@@ -71,8 +148,6 @@ public class TransactionStore {
 
     private long lastTransactionId;
 
-    private long firstOpenTransaction = -1;
-
     /**
      * Create a new transaction store.
      *
@@ -88,14 +163,13 @@ public class TransactionStore {
      * @param store the store
      * @param dataType the data type for map keys and values
      */
+    @SuppressWarnings("unchecked")
     public TransactionStore(MVStore store, DataType dataType) {
         this.store = store;
         this.dataType = dataType;
         settings = store.openMap("settings");
         preparedTransactions = store.openMap("openTransactions",
                 new MVMap.Builder<Long, Object[]>());
-        // TODO commit of larger transaction could be faster if we have one undo
-        // log per transaction, or a range delete operation for maps
         VersionedValueType oldValueType = new VersionedValueType(dataType);
         ArrayType undoLogValueType = new ArrayType(new DataType[]{
                 new ObjectDataType(), new ObjectDataType(), dataType,
@@ -105,7 +179,14 @@ public class TransactionStore {
                 new MVMap.Builder<long[], Object[]>().
                 valueType(undoLogValueType);
         // TODO escape other map names, to avoid conflicts
-        undoLog = store.openMap("undoLog", builder);
+        undoLogs = new MVMap[UNDO_LOG_STRIPES];
+        firstOpenTransaction = new long[UNDO_LOG_STRIPES];
+        for (int i = 0; i < UNDO_LOG_STRIPES; i++) {
+            // the first stripe uses the name of the former (single) undo log
+            String name = i == 0 ? "undoLog" : "undoLog." + i;
+            undoLogs[i] = store.openMap(name, builder);
+            firstOpenTransaction[i] = -1;
+        }
         init();
     }
 
@@ -119,12 +200,190 @@ public class TransactionStore {
                     DataUtils.ERROR_TRANSACTION_CORRUPT,
                     "Last transaction not stored");
         }
-        synchronized (undoLog) {
-            if (undoLog.size() > 0) {
-                long[] key = undoLog.firstKey();
-                firstOpenTransaction = key[0];
+        for (int i = 0; i < UNDO_LOG_STRIPES; i++) {
+            MVMap<long[], Object[]> undoLog = undoLogs[i];
+            synchronized (undoLog) {
+                // move entries that are in the wrong stripe, for example
+                // if the file was written with a single undo log
+                ArrayList<long[]> moved = New.arrayList();
+                for (long[] key : undoLog.keyList()) {
+                    if (getUndoLog(key[0]) != undoLog) {
+                        moved.add(key);
+                    }
+                }
+                for (long[] key : moved) {
+                    getUndoLog(key[0]).put(key, undoLog.remove(key));
+                }
+            }
+        }
+        for (MVMap<long[], Object[]> undoLog : undoLogs) {
+            long[] key = undoLog.firstKey();
+            while (key != null) {
+                recoveredTransactions.put(key[0], Boolean.TRUE);
+                key = undoLog.higherKey(new long[] { key[0], Long.MAX_VALUE });
+            }
+        }
+        ArrayList<Long> committed = New.arrayList();
+        for (Map.Entry<Long, Object[]> e : preparedTransactions.entrySet()) {
+            if ((Integer) e.getValue()[0] == Transaction.STATUS_COMMITTING) {
+                committed.add(e.getKey());
+            }
+        }
+        for (Long transactionId : committed) {
+            long[] key = { transactionId, -1 };
+            key = getUndoLog(transactionId).higherKey(key);
+            if (key != null && key[0] == transactionId) {
+                // committed, but the undo log was not yet removed
+                committingTransactions.put(transactionId, Long.MAX_VALUE);
+            } else {
+                preparedTransactions.remove(transactionId);
+            }
+        }
+    }
+
+    /**
+     * Get the undo log stripe of the given transaction.
+     *
+     * @param transactionId the transaction id
+     * @return the undo log
+     */
+    MVMap<long[], Object[]> getUndoLog(long transactionId) {
+        return undoLogs[getStripe(transactionId)];
+    }
+
+    /**
+     * Count a change of an entry of a map.
+     *
+     * @param mapId the map id
+     * @param transactionId the id of the transaction that changed the entry
+     * @param logId the log id of the change
+     * @param added the change of the number of entries that are not visible
+     *            to other transactions
+     * @param removed the change of the number of removed entries
+     */
+    void countChange(int mapId, long transactionId, long logId,
+            int added, int removed) {
+        ConcurrentHashMap<Long, ChangeCount> counts = getChangeCounts(mapId);
+        ChangeCount c = counts.get(transactionId);
+        if (c == null) {
+            c = new ChangeCount();
+            ChangeCount old = counts.putIfAbsent(transactionId, c);
+            if (old != null) {
+                c = old;
+            }
+        }
+        c.add(logId, added, removed);
+    }
+
+    /**
+     * Get the change counts of the given map, by transaction. Changes to the
+     * map that don't change the number of entries visible to other
+     * transactions (such as removing a removed entry of a committed
+     * transaction) are made while synchronized on the returned object, so
+     * that the size calculated from the counts doesn't change temporarily.
+     *
+     * @param mapId the map id
+     * @return the change counts
+     */
+    ConcurrentHashMap<Long, ChangeCount> getChangeCounts(int mapId) {
+        ConcurrentHashMap<Long, ChangeCount> counts = changeCounts.get(mapId);
+        if (counts == null) {
+            counts = new ConcurrentHashMap<Long, ChangeCount>();
+            ConcurrentHashMap<Long, ChangeCount> old =
+                    changeCounts.putIfAbsent(mapId, counts);
+            if (old != null) {
+                counts = old;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Count that a removed entry of a committed transaction was overwritten or
+     * removed from the map.
+     *
+     * @param mapId the map id
+     * @param transactionId the id of the committed transaction
+     */
+    void countRemovedEntry(int mapId, long transactionId) {
+        ConcurrentHashMap<Long, ChangeCount> counts = changeCounts.get(mapId);
+        ChangeCount c = counts == null ? null : counts.get(transactionId);
+        if (c != null) {
+            c.add(-1, 0, -1);
+        }
+    }
+
+    /**
+     * Forget the changes of the given map (because the map was cleared or
+     * removed).
+     *
+     * @param mapId the map id
+     */
+    void clearChangeCounts(int mapId) {
+        changeCounts.remove(mapId);
+    }
+
+    private void removeChangeCounts(long transactionId) {
+        for (ConcurrentHashMap<Long, ChangeCount> counts : changeCounts.values()) {
+            counts.remove(transactionId);
+        }
+    }
+
+    /**
+     * Get the number of entries of the map that are visible to the given
+     * transaction, calculated from the number of entries of the map and the
+     * number of entries that are not visible. The cost is proportional to the
+     * number of open transactions that changed the map.
+     *
+     * @param map the map
+     * @param transactionId the transaction id
+     * @param readLogId the log id up to which the changes of the transaction
+     *            itself are visible
+     * @return the number of entries, or -1 if unknown
+     */
+    long getVisibleCount(MVMap<?, VersionedValue> map, long transactionId,
+            long readLogId) {
+        if (!recoveredTransactions.isEmpty()) {
+            return -1;
+        }
+        ConcurrentHashMap<Long, ChangeCount> counts = getChangeCounts(map.getId());
+        synchronized (counts) {
+            long invisible = getInvisibleCount(counts, transactionId, readLogId);
+            return invisible < 0 ? -1 : map.sizeAsLong() - invisible;
+        }
+    }
+
+    private long getInvisibleCount(ConcurrentHashMap<Long, ChangeCount> counts,
+            long transactionId, long readLogId) {
+        long count = 0;
+        for (Map.Entry<Long, ChangeCount> e : counts.entrySet()) {
+            long tx = e.getKey();
+            ChangeCount c = e.getValue();
+            synchronized (c) {
+                if (tx == transactionId) {
+                    if (c.lastLogId >= readLogId) {
+                        // some of the changes are not yet visible
+                        return -1;
+                    }
+                    count += c.removed;
+                } else if (committingTransactions.containsKey(tx)) {
+                    // committed, but the removed entries are still there
+                    count += c.removed;
+                } else {
+                    count += c.added;
+                }
             }
         }
+        return count;
+    }
+
+    private boolean isUndoLogEmpty() {
+        for (MVMap<long[], Object[]> undoLog : undoLogs) {
+            if (!undoLog.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -133,8 +392,22 @@ public class TransactionStore {
      * @return the list of transactions (sorted by id)
      */
     public List<Transaction> getOpenTransactions() {
+        ArrayList<Transaction> list = New.arrayList();
+        for (MVMap<long[], Object[]> undoLog : undoLogs) {
+            addOpenTransactions(undoLog, list);
+        }
+        Collections.sort(list, new Comparator<Transaction>() {
+            @Override
+            public int compare(Transaction a, Transaction b) {
+                return Long.signum(a.getId() - b.getId());
+            }
+        });
+        return list;
+    }
+
+    private void addOpenTransactions(MVMap<long[], Object[]> undoLog,
+            ArrayList<Transaction> list) {
         synchronized (undoLog) {
-            ArrayList<Transaction> list = New.arrayList();
             long[] key = undoLog.firstKey();
             while (key != null) {
                 long transactionId = key[0];
@@ -145,7 +418,8 @@ public class TransactionStore {
                 int status;
                 String name;
                 if (data == null) {
-                    key[1] = 0;
+                    // the key object of the map must not be changed
+                    key = new long[] { transactionId, 0 };
                     if (undoLog.containsKey(key)) {
                         status = Transaction.STATUS_OPEN;
                     } else {
@@ -160,17 +434,43 @@ public class TransactionStore {
                 list.add(t);
                 key = undoLog.higherKey(end);
             }
-            return list;
         }
     }
 
     /**
-     * Close the transaction store.
+     * Close the transaction store. The undo log entries of committed
+     * transactions that are not yet removed are removed when the store is
+     * opened again.
+     */
+    public void close() {
+        stopCleaner();
+        synchronized (this) {
+            // to avoid losing transaction ids
+            settings.put(LAST_TRANSACTION_ID, "" + lastTransactionId);
+            store.commit();
+        }
+    }
+
+    /**
+     * Set the maximum time to wait for an entry that is changed by another
+     * open transaction. Waiting transactions are woken up when the other
+     * transaction is committed or rolled back.
+     *
+     * @param lockTimeout the lock timeout in milliseconds (0 means fail
+     *            immediately)
+     */
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Get the maximum time to wait for an entry that is changed by another
+     * open transaction.
+     *
+     * @return the lock timeout in milliseconds
      */
-    public synchronized void close() {
-        // to avoid losing transaction ids
-        settings.put(LAST_TRANSACTION_ID, "" + lastTransactionId);
-        store.commit();
+    public long getLockTimeout() {
+        return lockTimeout;
     }
 
     /**
@@ -224,12 +524,19 @@ public class TransactionStore {
         commitIfNeeded();
         long[] undoKey = { t.getId(), logId };
         Object[] log = new Object[] { opType, mapId, key, oldValue };
+        MVMap<long[], Object[]> undoLog = getUndoLog(t.getId());
         synchronized (undoLog) {
             undoLog.put(undoKey, log);
+            int stripe = getStripe(t.getId());
+            if (firstOpenTransaction[stripe] == -1 ||
+                    t.getId() < firstOpenTransaction[stripe]) {
+                firstOpenTransaction[stripe] = t.getId();
+            }
         }
-        if (firstOpenTransaction == -1 || t.getId() < firstOpenTransaction) {
-            firstOpenTransaction = t.getId();
-        }
+    }
+
+    private static int getStripe(long transactionId) {
+        return (int) (transactionId & (UNDO_LOG_STRIPES - 1));
     }
 
     /**
@@ -240,6 +547,7 @@ public class TransactionStore {
      */
     public void logUndo(Transaction t, long logId) {
         long[] undoKey = { t.getId(), logId };
+        MVMap<long[], Object[]> undoLog = getUndoLog(t.getId());
         synchronized (undoLog) {
             undoLog.remove(undoKey);
         }
@@ -255,40 +563,186 @@ public class TransactionStore {
         if (store.isClosed()) {
             return;
         }
+        if (maxLogId > MAX_SYNC_COMMIT_LOG_SIZE) {
+            // mark the transaction as committed (first persistently, so that
+            // after a crash it is committed as well), and leave the undo log
+            // to the background thread
+            synchronized (this) {
+                t.setStatus(Transaction.STATUS_COMMITTING);
+                Object[] v = { t.getStatus(), t.getName() };
+                preparedTransactions.put(t.getId(), v);
+                committingTransactions.put(t.getId(), maxLogId);
+            }
+            endTransaction(t);
+            startCleaner();
+            return;
+        }
+        MVMap<long[], Object[]> undoLog = getUndoLog(t.getId());
         synchronized (undoLog) {
             t.setStatus(Transaction.STATUS_COMMITTING);
-            for (long logId = 0; logId < maxLogId; logId++) {
-                commitIfNeeded();
-                long[] undoKey = new long[] { t.getId(), logId };
-                Object[] op = undoLog.get(undoKey);
-                if (op == null) {
-                    // partially committed: load next
-                    undoKey = undoLog.ceilingKey(undoKey);
-                    if (undoKey == null || undoKey[0] != t.getId()) {
-                        break;
-                    }
-                    logId = undoKey[1] - 1;
-                    continue;
+            commitUndoLog(undoLog, t.getId(), 0, maxLogId, Integer.MAX_VALUE);
+        }
+        if (committingTransactions.containsKey(t.getId())) {
+            // committed before the store was closed
+            endCommit(t.getId());
+        }
+        endTransaction(t);
+    }
+
+    /**
+     * Remove the undo log entries of a committed transaction, and remove the
+     * entries that were removed by the transaction from the maps. The undo
+     * log needs to be locked.
+     *
+     * @param undoLog the undo log of the transaction
+     * @param transactionId the transaction id
+     * @param logId the first log id
+     * @param maxLogId the last log id (exclusive)
+     * @param maxEntries the maximum number of entries to remove
+     * @return the next log id, or -1 if all entries were removed
+     */
+    private long commitUndoLog(MVMap<long[], Object[]> undoLog,
+            long transactionId, long logId, long maxLogId, int maxEntries) {
+        for (int count = 0; logId < maxLogId; logId++) {
+            if (count++ >= maxEntries) {
+                return logId;
+            }
+            commitIfNeeded();
+            long[] undoKey = new long[] { transactionId, logId };
+            Object[] op = undoLog.get(undoKey);
+            if (op == null) {
+                // partially committed: load next
+                undoKey = undoLog.ceilingKey(undoKey);
+                if (undoKey == null || undoKey[0] != transactionId) {
+                    break;
                 }
-                int opType = (Integer) op[0];
-                if (opType == Transaction.OP_REMOVE) {
-                    int mapId = (Integer) op[1];
-                    MVMap<Object, VersionedValue> map = openMap(mapId);
+                logId = undoKey[1] - 1;
+                continue;
+            }
+            int opType = (Integer) op[0];
+            VersionedValue oldValue = (VersionedValue) op[3];
+            if (opType == Transaction.OP_REMOVE ||
+                    (opType == Transaction.OP_SET &&
+                    (oldValue == null || oldValue.value == null))) {
+                int mapId = (Integer) op[1];
+                MVMap<Object, VersionedValue> map = openMap(mapId);
+                if (map != null) {
                     Object key = op[2];
                     VersionedValue value = map.get(key);
-                    // possibly the entry was added later on
-                    // so we have to check
-                    if (value == null) {
-                        // nothing to do
-                    } else if (value.value == null) {
+                    // possibly the entry was added later on (by this
+                    // transaction, or by another transaction after this
+                    // one was committed), so we have to check
+                    if (value != null && value.value == null &&
+                            value.transactionId == transactionId) {
                         // remove the value
-                        map.remove(key);
+                        synchronized (getChangeCounts(mapId)) {
+                            if (map.remove(key, value)) {
+                                countRemovedEntry(mapId, transactionId);
+                            }
+                        }
                     }
                 }
-                undoLog.remove(undoKey);
             }
+            undoLog.remove(undoKey);
+        }
+        return -1;
+    }
+
+    /**
+     * Remove the undo log entries of a transaction that was committed
+     * asynchronously. The undo log is only locked for a limited number of
+     * entries at a time, so that other transactions of the same stripe are
+     * not blocked for a long time.
+     *
+     * @param transactionId the transaction id
+     * @param maxLogId the last log id (exclusive)
+     * @param c the cleaner (stop if no longer running)
+     */
+    void cleanup(long transactionId, long maxLogId, Cleaner c) {
+        MVMap<long[], Object[]> undoLog = getUndoLog(transactionId);
+        long logId = 0;
+        while (logId >= 0) {
+            if (cleaner != c) {
+                return;
+            }
+            synchronized (undoLog) {
+                logId = commitUndoLog(undoLog, transactionId, logId, maxLogId,
+                        CLEANUP_BATCH_SIZE);
+            }
+        }
+        endCommit(transactionId);
+    }
+
+    private void endCommit(long transactionId) {
+        int stripe = getStripe(transactionId);
+        synchronized (undoLogs[stripe]) {
+            // it may have been set (from the undo log) while the undo log
+            // was removed
+            if (firstOpenTransaction[stripe] == transactionId) {
+                firstOpenTransaction[stripe] = -1;
+            }
+        }
+        synchronized (this) {
+            preparedTransactions.remove(transactionId);
+        }
+        removeChangeCounts(transactionId);
+        recoveredTransactions.remove(transactionId);
+        committingTransactions.remove(transactionId);
+    }
+
+    private void startCleaner() {
+        synchronized (committingTransactions) {
+            if (cleaner == null) {
+                Cleaner c = new Cleaner(this);
+                String fileName = store.getFileStore() == null ? "" :
+                        " " + store.getFileStore().toString();
+                Thread t = new Thread(c, "TransactionStore cleaner" + fileName);
+                t.setDaemon(true);
+                c.thread = t;
+                // set the field before starting the thread,
+                // as the thread stops if it is not set
+                cleaner = c;
+                t.start();
+            }
+        }
+    }
+
+    private void stopCleaner() {
+        Cleaner c;
+        synchronized (committingTransactions) {
+            c = cleaner;
+            cleaner = null;
+        }
+        if (c == null || c.thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            c.thread.join();
+        } catch (Exception e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Get the next transaction the cleaner needs to process.
+     *
+     * @param c the cleaner
+     * @return the transaction id and the last log id, or null if the cleaner
+     *         should stop
+     */
+    Map.Entry<Long, Long> getNextCleanup(Cleaner c) {
+        synchronized (committingTransactions) {
+            if (cleaner != c) {
+                return null;
+            }
+            Iterator<Map.Entry<Long, Long>> it =
+                    committingTransactions.entrySet().iterator();
+            if (!it.hasNext()) {
+                cleaner = null;
+                return null;
+            }
+            return it.next();
         }
-        endTransaction(t);
     }
 
     private synchronized MVMap<Object, VersionedValue> openMap(int mapId) {
@@ -316,11 +770,18 @@ public class TransactionStore {
      * @return true if it is open
      */
     boolean isTransactionOpen(long transactionId) {
-        if (transactionId < firstOpenTransaction) {
+        if (!committingTransactions.isEmpty() &&
+                committingTransactions.containsKey(transactionId)) {
+            // committed, but the undo log is not yet removed
+            return false;
+        }
+        int stripe = getStripe(transactionId);
+        if (transactionId < firstOpenTransaction[stripe]) {
             return false;
         }
+        MVMap<long[], Object[]> undoLog = undoLogs[stripe];
         synchronized (undoLog) {
-            if (firstOpenTransaction == -1) {
+            if (firstOpenTransaction[stripe] == -1) {
                 if (undoLog.size() == 0) {
                     return false;
                 }
@@ -329,9 +790,9 @@ public class TransactionStore {
                     // unusual, but can happen
                     return false;
                 }
-                firstOpenTransaction = key[0];
+                firstOpenTransaction[stripe] = key[0];
             }
-            if (firstOpenTransaction == transactionId) {
+            if (firstOpenTransaction[stripe] == transactionId) {
                 return true;
             }
             long[] key = { transactionId, -1 };
@@ -345,14 +806,112 @@ public class TransactionStore {
      *
      * @param t the transaction
      */
-    synchronized void endTransaction(Transaction t) {
-        if (t.getStatus() == Transaction.STATUS_PREPARED) {
-            preparedTransactions.remove(t.getId());
+    void endTransaction(Transaction t) {
+        if (!committingTransactions.containsKey(t.getId())) {
+            // otherwise, done when the undo log is removed
+            removeChangeCounts(t.getId());
+            recoveredTransactions.remove(t.getId());
+        }
+        // the undo log must not be locked while locking the store, because
+        // commit and rollback lock the store (to open maps) within the undo
+        // log lock
+        int stripe = getStripe(t.getId());
+        synchronized (undoLogs[stripe]) {
+            if (t.getId() == firstOpenTransaction[stripe]) {
+                firstOpenTransaction[stripe] = -1;
+            }
+        }
+        synchronized (this) {
+            if (t.getStatus() == Transaction.STATUS_PREPARED) {
+                preparedTransactions.remove(t.getId());
+            }
+            t.setStatus(Transaction.STATUS_CLOSED);
+        }
+        // not synchronized on the transaction store, so that the changes of
+        // transactions that are committed concurrently can be stored together
+        // (group commit)
+        storeIfNeeded();
+        Object monitor = releaseMonitors.remove(t.getId());
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait until the given transaction releases its entries (by committing or
+     * rolling back), or until the timeout.
+     *
+     * @param t the waiting transaction
+     * @param blockingId the id of the blocking transaction
+     * @param millis the maximum time to wait
+     * @throws IllegalStateException if waiting would result in a deadlock
+     */
+    void waitFor(Transaction t, long blockingId, long millis) {
+        Object monitor = releaseMonitors.get(blockingId);
+        if (monitor == null) {
+            Object m = new Object();
+            monitor = releaseMonitors.putIfAbsent(blockingId, m);
+            if (monitor == null) {
+                monitor = m;
+            }
+        }
+        waitingFor.put(t.getId(), blockingId);
+        try {
+            checkDeadlock(t.getId(), blockingId);
+            synchronized (monitor) {
+                // the entries are removed before waking up the waiting
+                // transactions, so no wake up can be lost
+                if (isTransactionOpen(blockingId)) {
+                    monitor.wait(millis);
+                }
+            }
+        } catch (InterruptedException e) {
+            // ignore
+        } finally {
+            waitingFor.remove(t.getId());
+            if (!isTransactionOpen(blockingId)) {
+                releaseMonitors.remove(blockingId, monitor);
+            }
         }
-        t.setStatus(Transaction.STATUS_CLOSED);
-        if (t.getId() == firstOpenTransaction) {
-            firstOpenTransaction = -1;
+    }
+
+    private void checkDeadlock(long transactionId, long blockingId) {
+        // follow the wait-for graph; the number of steps is limited
+        // as the graph may change concurrently
+        long x = blockingId;
+        for (int i = 0, size = waitingFor.size(); i <= size; i++) {
+            Long next = waitingFor.get(x);
+            if (next == null) {
+                return;
+            }
+            if (next.longValue() == transactionId) {
+                throw DataUtils.newIllegalStateException(
+                        DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                        "Deadlock: transaction {0} can not wait for transaction {1}",
+                        transactionId, blockingId);
+            }
+            x = next;
         }
+    }
+
+    /**
+     * Wake up the transactions that wait for the given transaction, because
+     * some of its entries were released.
+     *
+     * @param transactionId the id of the transaction
+     */
+    private void notifyWaiting(long transactionId) {
+        Object monitor = releaseMonitors.get(transactionId);
+        if (monitor != null) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    private void storeIfNeeded() {
         if (store.getWriteDelay() == 0) {
             if (store.getFileStore() == null) {
                 return;
@@ -362,7 +921,7 @@ public class TransactionStore {
         // to avoid having to store the transaction log,
         // if there is no open transaction,
         // and if there have been many changes, store them now
-        if (undoLog.isEmpty()) {
+        if (isUndoLogEmpty()) {
             int unsaved = store.getUnsavedPageCount();
             int max = store.getUnsavedPageCountMax();
             // save at 3/4 capacity
@@ -380,6 +939,7 @@ public class TransactionStore {
      * @param toLogId the log id to roll back to
      */
     void rollbackTo(Transaction t, long maxLogId, long toLogId) {
+        MVMap<long[], Object[]> undoLog = getUndoLog(t.getId());
         synchronized (undoLog) {
             for (long logId = maxLogId - 1; logId >= toLogId; logId--) {
                 commitIfNeeded();
@@ -394,14 +954,38 @@ public class TransactionStore {
                     logId = undoKey[1] + 1;
                     continue;
                 }
+                int opType = (Integer) op[0];
                 int mapId = ((Integer) op[1]).intValue();
                 MVMap<Object, VersionedValue> map = openMap(mapId);
-                if (map != null) {
+                if (map != null && opType == Transaction.OP_APPEND) {
+                    // the map was empty before
+                    map.clear();
+                    ConcurrentHashMap<Long, ChangeCount> counts =
+                            changeCounts.get(mapId);
+                    if (counts != null) {
+                        counts.remove(t.getId());
+                    }
+                } else if (map != null) {
                     Object key = op[2];
                     VersionedValue oldValue = (VersionedValue) op[3];
+                    VersionedValue value = map.get(key);
+                    boolean own = oldValue != null &&
+                            oldValue.transactionId == t.getId();
+                    int added = oldValue == null ||
+                            (!own && oldValue.value == null) ? -1 : 0;
+                    int removed = own && oldValue.value == null ? 1 : 0;
+                    if (value != null && value.value == null) {
+                        removed--;
+                    }
+                    countChange(mapId, t.getId(), -1, added, removed);
                     if (oldValue == null) {
                         // this transaction added the value
                         map.remove(key);
+                    } else if (oldValue.value == null &&
+                            oldValue.transactionId != t.getId()) {
+                        // removed by a committed transaction whose undo log
+                        // was not yet removed: don't restore the marker
+                        map.remove(key);
                     } else {
                         // this transaction updated the value
                         map.put(key, oldValue);
@@ -410,6 +994,9 @@ public class TransactionStore {
                 undoLog.remove(undoKey);
             }
         }
+        // the entries are released (when rolling back to a savepoint, the
+        // transaction stays open)
+        notifyWaiting(t.getId());
     }
 
     /**
@@ -432,6 +1019,7 @@ public class TransactionStore {
             }
 
             private void fetchNext() {
+                MVMap<long[], Object[]> undoLog = getUndoLog(t.getId());
                 synchronized (undoLog) {
                     while (logId >= toLogId) {
                         long[] undoKey = new long[] { t.getId(), logId };
@@ -446,6 +1034,10 @@ public class TransactionStore {
                             logId = undoKey[1];
                             continue;
                         }
+                        if ((Integer) op[0] == Transaction.OP_APPEND) {
+                            // the appended entries are not listed
+                            continue;
+                        }
                         int mapId = ((Integer) op[1]).intValue();
                         // TODO open map by id if possible
                         Map<String, String> meta = store.getMetaMap();
@@ -532,8 +1124,9 @@ public class TransactionStore {
         /**
          * The status of a transaction that is being committed, but possibly not
          * yet finished. A transactions can go into this state when the store is
-         * closed while the transaction is committing. When opening a store,
-         * such transactions should be committed.
+         * closed while the transaction is committing, or while the undo log of
+         * a large committed transaction is removed in the background. When
+         * opening a store, such transactions should be committed.
          */
         public static final int STATUS_COMMITTING = 3;
 
@@ -542,6 +1135,12 @@ public class TransactionStore {
          */
         static final int OP_REMOVE = 0, OP_ADD = 1, OP_SET = 2;
 
+        /**
+         * The operation type for entries that were appended to an empty map.
+         * The key is the first appended key.
+         */
+        static final int OP_APPEND = 3;
+
         /**
          * The transaction store.
          */
@@ -732,6 +1331,7 @@ public class TransactionStore {
          */
         public <K, V> void removeMap(TransactionMap<K, V> map) {
             store.store.removeMap(map.map);
+            store.clearChangeCounts(map.mapId);
         }
 
     }
@@ -794,13 +1394,21 @@ public class TransactionStore {
         }
 
         /**
-         * Get the size of the map as seen by this transaction.
+         * Get the size of the map as seen by this transaction. Unless there are
+         * transactions that were open when the store was opened, or the
+         * transaction changed the map after the map was opened, this is
+         * calculated from the number of entries changed by open transactions,
+         * without reading the entries.
          *
          * @return the size
          */
         public long sizeAsLong() {
-            // TODO this method is very slow
-            long size = 0;
+            long size = transaction.store.getVisibleCount(
+                    map, transaction.transactionId, readLogId);
+            if (size >= 0) {
+                return size;
+            }
+            size = 0;
             Cursor<K> cursor = map.keyIterator(null);
             while (cursor.hasNext()) {
                 K key = cursor.next();
@@ -856,24 +1464,90 @@ public class TransactionStore {
                     throw DataUtils.newIllegalStateException(
                             DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
                 }
+                long now = System.currentTimeMillis();
                 if (start == 0) {
-                    start = System.currentTimeMillis();
-                } else {
-                    long t = System.currentTimeMillis() - start;
-                    if (t > timeout) {
-                        throw DataUtils.newIllegalStateException(
-                                DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
-                    }
-                    // TODO use wait/notify instead, or remove the feature
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException e) {
-                        // ignore
-                    }
+                    start = now;
+                } else if (now - start > timeout) {
+                    throw DataUtils.newIllegalStateException(
+                            DataUtils.ERROR_TRANSACTION_LOCK_TIMEOUT, "Lock timeout");
+                }
+                VersionedValue current = map.get(key);
+                if (current != null &&
+                        current.transactionId != transaction.transactionId) {
+                    // wait until the other transaction releases the entry
+                    transaction.store.waitFor(transaction,
+                            current.transactionId,
+                            Math.max(1, timeout - (now - start)));
                 }
             }
         }
 
+        /**
+         * Append entries that are sorted by key to an empty map, see
+         * {@link MVMap#appendSorted(Iterator)}. Instead of one undo log entry
+         * per key, only one entry is added, so that a rollback removes all
+         * entries of the map. Therefore, the map should not be changed
+         * concurrently by other transactions (this is meant for new maps, for
+         * example when creating an index). The entries are not listed by
+         * {@link Transaction#getChanges(long)}.
+         * <p>
+         * If the map is not empty, the entries are added one by one.
+         *
+         * @param entries the entries (sorted by key, the values may not be
+         *            null)
+         * @return the number of added entries
+         */
+        public long appendSorted(final Iterator<? extends Map.Entry<K, V>> entries) {
+            transaction.checkNotClosed();
+            long count = 0;
+            if (!map.isEmpty()) {
+                while (entries.hasNext()) {
+                    Map.Entry<K, V> e = entries.next();
+                    put(e.getKey(), e.getValue());
+                    count++;
+                }
+                return count;
+            }
+            if (!entries.hasNext()) {
+                return 0;
+            }
+            final Map.Entry<K, V> first = entries.next();
+            final long logId = transaction.logId;
+            transaction.log(Transaction.OP_APPEND, mapId, first.getKey(), null);
+            Iterator<Map.Entry<K, VersionedValue>> it = new Iterator<Map.Entry<K, VersionedValue>>() {
+
+                private Map.Entry<K, V> next = first;
+
+                @Override
+                public boolean hasNext() {
+                    return next != null || entries.hasNext();
+                }
+
+                @Override
+                public Map.Entry<K, VersionedValue> next() {
+                    Map.Entry<K, V> e = next != null ? next : entries.next();
+                    next = null;
+                    DataUtils.checkArgument(e.getValue() != null,
+                            "The value may not be null");
+                    VersionedValue v = new VersionedValue();
+                    v.transactionId = transaction.transactionId;
+                    v.logId = logId;
+                    v.value = e.getValue();
+                    return new SimpleImmutableEntry<K, VersionedValue>(e.getKey(), v);
+                }
+
+                @Override
+                public void remove() {
+                    throw DataUtils.newUnsupportedOperationException("remove");
+                }
+
+            };
+            long appended = map.appendSorted(it);
+            transaction.store.countChange(mapId, transaction.transactionId,
+                    logId, (int) appended, 0);
+            return appended;
+        }
+
         /**
          * Try to remove the value for the given key.
          * <p>
@@ -963,6 +1637,7 @@ public class TransactionStore {
                     transaction.logUndo();
                     return false;
                 }
+                countChange(1, value == null ? 1 : 0);
                 return true;
             }
             long tx = current.transactionId;
@@ -975,6 +1650,8 @@ public class TransactionStore {
                     transaction.logUndo();
                     return false;
                 }
+                countChange(0, (value == null ? 1 : 0) -
+                        (current.value == null ? 1 : 0));
                 return true;
             }
             // added or updated by another transaction
@@ -983,7 +1660,18 @@ public class TransactionStore {
                 transaction.log(opType, mapId, key, current);
                 // the transaction is committed:
                 // overwrite the value
-                if (!map.replace(key, current, newValue)) {
+                boolean replaced;
+                synchronized (transaction.store.getChangeCounts(mapId)) {
+                    replaced = map.replace(key, current, newValue);
+                    if (replaced && current.value == null) {
+                        // a removed entry of a committed transaction
+                        transaction.store.countRemovedEntry(mapId, tx);
+                        countChange(1, value == null ? 1 : 0);
+                    } else if (replaced) {
+                        countChange(0, value == null ? 1 : 0);
+                    }
+                }
+                if (!replaced) {
                     // somebody else was faster
                     transaction.logUndo();
                     return false;
@@ -994,6 +1682,12 @@ public class TransactionStore {
             return false;
         }
 
+        private void countChange(int added, int removed) {
+            // the log id of the entry that was just added
+            transaction.store.countChange(mapId, transaction.transactionId,
+                    transaction.logId - 1, added, removed);
+        }
+
         /**
          * Get the value for the given key at the time when this map was opened.
          *
@@ -1078,8 +1772,9 @@ public class TransactionStore {
                 }
                 // get the value before the uncommitted transaction
                 long[] x = new long[] { tx, logId };
-                synchronized (transaction.store.undoLog) {
-                    Object[] d = transaction.store.undoLog.get(x);
+                MVMap<long[], Object[]> undoLog = transaction.store.getUndoLog(tx);
+                synchronized (undoLog) {
+                    Object[] d = undoLog.get(x);
                     data = (VersionedValue) d[3];
                 }
             }
@@ -1100,6 +1795,7 @@ public class TransactionStore {
         public void clear() {
             // TODO truncate transactionally
             map.clear();
+            transaction.store.clearChangeCounts(mapId);
         }
 
         /**
@@ -1173,8 +1869,13 @@ public class TransactionStore {
          * @return the result
          */
         public K higherKey(K key) {
-            // TODO transactional higherKey
-            return map.higherKey(key);
+            while (true) {
+                K k = map.higherKey(key);
+                if (k == null || get(k) != null) {
+                    return k;
+                }
+                key = k;
+            }
         }
 
         /**
@@ -1185,8 +1886,13 @@ public class TransactionStore {
          * @return the result
          */
         public K lowerKey(K key) {
-            // TODO transactional lowerKey
-            return map.lowerKey(key);
+            while (true) {
+                K k = map.lowerKey(key);
+                if (k == null || get(k) != null) {
+                    return k;
+                }
+                key = k;
+            }
         }
 
         /**
@@ -1211,6 +1917,18 @@ public class TransactionStore {
             return wrapIterator(it, false);
         }
 
+        /**
+         * Iterate over keys, for a scan that reads most pages only once. Leaf
+         * pages that are read are added to the cache as cold entries.
+         *
+         * @param from the first key to return
+         * @return the iterator
+         */
+        public Iterator<K> scanIterator(K from) {
+            Cursor<K> it = map.keyIterator(from, true);
+            return wrapIterator(it, false);
+        }
+
         /**
          * Iterate over keys.
          *
@@ -1265,6 +1983,86 @@ public class TransactionStore {
 
     }
 
+    /**
+     * The number of entries of a map that were changed by a transaction.
+     */
+    static class ChangeCount {
+
+        /**
+         * The number of entries that did not exist (or were removed) before
+         * the transaction changed them. While the transaction is open, they
+         * are not visible to other transactions.
+         */
+        long added;
+
+        /**
+         * The number of entries that are removed by the transaction. They are
+         * not visible to the transaction, and once it is committed, not
+         * visible to others until the undo log is removed.
+         */
+        long removed;
+
+        /**
+         * The log id of the last change, or -1.
+         */
+        long lastLogId = -1;
+
+        /**
+         * Add to the counts.
+         *
+         * @param logId the log id of the change, or -1
+         * @param added the change of the number of added entries
+         * @param removed the change of the number of removed entries
+         */
+        synchronized void add(long logId, int added, int removed) {
+            this.added += added;
+            this.removed += removed;
+            lastLogId = Math.max(lastLogId, logId);
+        }
+
+    }
+
+    /**
+     * The background thread that removes the undo log entries of transactions
+     * that were committed asynchronously. It stops when there is nothing more
+     * to do, and is started again on the next asynchronous commit.
+     */
+    static class Cleaner implements Runnable {
+
+        /**
+         * The thread.
+         */
+        Thread thread;
+
+        private final TransactionStore store;
+
+        Cleaner(TransactionStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Map.Entry<Long, Long> e = store.getNextCleanup(this);
+                if (e == null) {
+                    return;
+                }
+                try {
+                    store.cleanup(e.getKey(), e.getValue(), this);
+                } catch (IllegalStateException ex) {
+                    if (store.store.isClosed()) {
+                        // the remaining entries are removed
+                        // when the store is opened again
+                        return;
+                    }
+                    store.stopCleaner();
+                    throw ex;
+                }
+            }
+        }
+
+    }
+
     /**
      * A versioned value (possibly null). It contains a pointer to the old
      * value, and the value itself.
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.db;
+
+import org.h2.mvstore.type.LongDataType;
+import org.h2.value.Value;
+import org.h2.value.ValueLong;
+
+/**
+ * The data type for the row keys of a table. The keys are stored in the same
+ * format as by the ValueDataType, but within a page they are kept in a long
+ * array.
+ */
+public class ValueLongDataType extends ValueDataType implements LongDataType {
+
+    public ValueLongDataType() {
+        super(null, null, null);
+    }
+
+    @Override
+    public int compare(Object a, Object b) {
+        long x = ((Value) a).getLong();
+        long y = ((Value) b).getLong();
+        return x < y ? -1 : x > y ? 1 : 0;
+    }
+
+    @Override
+    public long getLong(Object obj) {
+        return ((Value) obj).getLong();
+    }
+
+    @Override
+    public Object getObject(long x) {
+        return ValueLong.get(x);
+    }
+
+}
@@ -7,12 +7,18 @@
 package org.h2.mvstore.rtree;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 import org.h2.mvstore.CursorPos;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.Page;
+import org.h2.mvstore.RedoLog;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.util.New;
@@ -87,6 +93,20 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
         };
     }
 
+    /**
+     * Iterate over the keys in the order of their distance to the given
+     * rectangle (nearest first). The distance is the minimum distance between
+     * the rectangles, so keys that overlap the given rectangle are returned
+     * first. Pages are only read when needed, so that reading the first few
+     * keys is fast.
+     *
+     * @param x the rectangle (usually a point)
+     * @return the iterator
+     */
+    public NearestCursor findNearestKeys(SpatialKey x) {
+        return new NearestCursor(root, keyType, x);
+    }
+
     private boolean contains(Page p, int index, Object key) {
         return keyType.contains(p.getKey(index), key);
     }
@@ -202,6 +222,163 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
         return (V) putOrAdd(key, value, false);
     }
 
+    @Override
+    public long appendSorted(Iterator<? extends Map.Entry<SpatialKey, V>> entries) {
+        throw DataUtils.newUnsupportedOperationException(
+                "Appending sorted entries is not supported");
+    }
+
+    /**
+     * Add all entries. If the map is empty, the tree is built using
+     * sort-tile-recursive bulk loading: the entries are sorted by the center
+     * of the keys, one dimension after the other, and then packed into
+     * pages. The same is done for each level of nodes. The pages are fully
+     * packed, and overlap much less than when adding the entries one at a
+     * time. All entries are kept in memory while building the tree.
+     * <p>
+     * If the map is not empty, the entries are added one at a time. The keys
+     * should not exist (see also add).
+     *
+     * @param entries the entries
+     * @return the number of added entries
+     */
+    public synchronized long addAll(Iterator<? extends Map.Entry<SpatialKey, V>> entries) {
+        if (!isEmpty()) {
+            long count = 0;
+            while (entries.hasNext()) {
+                Map.Entry<SpatialKey, V> e = entries.next();
+                add(e.getKey(), e.getValue());
+                count++;
+            }
+            return count;
+        }
+        ArrayList<Object[]> list = New.arrayList();
+        long memory = 0;
+        while (entries.hasNext()) {
+            Map.Entry<SpatialKey, V> e = entries.next();
+            SpatialKey k = e.getKey();
+            V v = e.getValue();
+            DataUtils.checkArgument(v != null, "The value may not be null");
+            list.add(new Object[] { k, v });
+            memory += keyType.getMemory(k) + getValueType().getMemory(v);
+        }
+        if (list.size() == 0) {
+            return 0;
+        }
+        int pageSplitSize = store.getPageSplitSize();
+        int leafCapacity = (int) Math.max(2, (pageSplitSize - DataUtils.PAGE_MEMORY) *
+                (long) list.size() / memory);
+        int keyMemory = keyType.getMemory(list.get(0)[0]);
+        int nodeCapacity = Math.max(2, (pageSplitSize - DataUtils.PAGE_MEMORY -
+                DataUtils.PAGE_MEMORY_CHILD) / (keyMemory + DataUtils.PAGE_MEMORY_CHILD));
+        bulkLoad(list, leafCapacity, nodeCapacity);
+        return list.size();
+    }
+
+    private void bulkLoad(ArrayList<Object[]> list,
+            int leafCapacity, int nodeCapacity) {
+        beforeWrite();
+        try {
+            long v = writeVersion;
+            ArrayList<Object[]> level = list;
+            boolean leaf = true;
+            while (true) {
+                int capacity = leaf ? leafCapacity : nodeCapacity;
+                sortTileRecursive(level, 0, capacity);
+                ArrayList<Object[]> pages = New.arrayList();
+                for (int i = 0; i < level.size(); i += capacity) {
+                    List<Object[]> group = level.subList(i,
+                            Math.min(level.size(), i + capacity));
+                    Page p = leaf ? createLeaf(group, v) : createNode(group, v);
+                    pages.add(new Object[] { getBounds(p), p });
+                }
+                leaf = false;
+                level = pages;
+                if (level.size() == 1) {
+                    break;
+                }
+            }
+            root.removePage();
+            newRoot((Page) level.get(0)[1]);
+            for (Object[] e : list) {
+                logChange(RedoLog.PUT, e[0], e[1]);
+            }
+        } finally {
+            afterWrite();
+        }
+    }
+
+    /**
+     * Sort the entries so that each consecutive group of entries (of the
+     * given size) forms one page. The entries are sorted by the center in
+     * the given dimension, and split into slices that are then sorted by the
+     * next dimension.
+     *
+     * @param list the entries (key, value or page)
+     * @param dim the dimension
+     * @param capacity the number of entries per page
+     */
+    private void sortTileRecursive(List<Object[]> list, final int dim, int capacity) {
+        Collections.sort(list, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                SpatialKey ka = (SpatialKey) a[0];
+                SpatialKey kb = (SpatialKey) b[0];
+                return Float.compare(ka.min(dim) + ka.max(dim),
+                        kb.min(dim) + kb.max(dim));
+            }
+        });
+        int remaining = keyType.getDimensions() - dim;
+        int size = list.size();
+        if (remaining <= 1 || size <= capacity) {
+            return;
+        }
+        int pageCount = (size + capacity - 1) / capacity;
+        int sliceCount = (int) Math.ceil(Math.pow(pageCount, 1.0 / remaining));
+        int sliceSize = (pageCount + sliceCount - 1) / sliceCount * capacity;
+        for (int i = 0; i < size; i += sliceSize) {
+            sortTileRecursive(list.subList(i, Math.min(size, i + sliceSize)),
+                    dim + 1, capacity);
+        }
+    }
+
+    private Page createLeaf(List<Object[]> group, long writeVersion) {
+        int len = group.size();
+        Object[] keys = new Object[len];
+        Object[] values = new Object[len];
+        for (int i = 0; i < len; i++) {
+            Object[] e = group.get(i);
+            keys[i] = e[0];
+            values[i] = e[1];
+        }
+        return Page.create(this, writeVersion,
+                len, keys, values,
+                0, null, null, null,
+                len, 0, 0);
+    }
+
+    private Page createNode(List<Object[]> group, long writeVersion) {
+        int len = group.size();
+        Object[] keys = new Object[len];
+        long[] children = new long[len + 1];
+        Page[] childrenPages = new Page[len + 1];
+        long[] counts = new long[len + 1];
+        long totalCount = 0;
+        for (int i = 0; i < len; i++) {
+            Object[] e = group.get(i);
+            Page c = (Page) e[1];
+            keys[i] = e[0];
+            children[i] = c.getPos();
+            childrenPages[i] = c;
+            counts[i] = c.getTotalCount();
+            totalCount += counts[i];
+        }
+        return Page.create(this, writeVersion,
+                len, keys, null,
+                len + 1, children, childrenPages, counts,
+                totalCount, 0, 0);
+    }
+
     /**
      * Add a given key-value pair. The key should not exist (if it exists, the
      * result is undefined).
@@ -213,7 +390,7 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
         putOrAdd(key, value, true);
     }
 
-    private Object putOrAdd(SpatialKey key, V value, boolean alwaysAdd) {
+    private synchronized Object putOrAdd(SpatialKey key, V value, boolean alwaysAdd) {
         beforeWrite();
         try {
             long v = writeVersion;
@@ -243,6 +420,7 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
                 result = set(p, v, key, value);
             }
             newRoot(p);
+            logChange(RedoLog.PUT, key, value);
             return result;
         } finally {
             afterWrite();
@@ -703,6 +881,119 @@ public class MVRTreeMap<V> extends MVMap<SpatialKey, V> {
 
     }
 
+    /**
+     * A cursor to iterate over the keys ordered by the distance to a given
+     * rectangle. This is a best-first search: the entries of the visited
+     * pages are kept in a priority queue, ordered by the minimum distance
+     * of the (bounding box) key.
+     */
+    public static class NearestCursor implements Iterator<SpatialKey> {
+
+        private final SpatialDataType keyType;
+        private final SpatialKey target;
+        private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+        private SpatialKey current;
+        private double currentDistance;
+        private boolean initialized;
+        private final Page root;
+
+        NearestCursor(Page root, SpatialDataType keyType, SpatialKey target) {
+            this.root = root;
+            this.keyType = keyType;
+            this.target = target;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!initialized) {
+                addEntries(root);
+                fetchNext();
+                initialized = true;
+            }
+            return current != null;
+        }
+
+        @Override
+        public SpatialKey next() {
+            if (!hasNext()) {
+                return null;
+            }
+            SpatialKey c = current;
+            fetchNext();
+            return c;
+        }
+
+        /**
+         * Get the distance of the key that is returned by the next call to
+         * next().
+         *
+         * @return the distance, or -1 if there are no more keys
+         */
+        public double getNextDistance() {
+            return hasNext() ? currentDistance : -1;
+        }
+
+        @Override
+        public void remove() {
+            throw DataUtils.newUnsupportedOperationException(
+                    "Removing is not supported");
+        }
+
+        private void addEntries(Page p) {
+            for (int i = 0; i < p.getKeyCount(); i++) {
+                Object k = p.getKey(i);
+                queue.add(new Entry(keyType.getMinDistance(k, target), p, i));
+            }
+        }
+
+        private void fetchNext() {
+            while (true) {
+                Entry e = queue.poll();
+                if (e == null) {
+                    current = null;
+                    return;
+                }
+                if (e.page.isLeaf()) {
+                    current = (SpatialKey) e.page.getKey(e.index);
+                    currentDistance = e.distance;
+                    return;
+                }
+                addEntries(e.page.getChildPage(e.index));
+            }
+        }
+
+        /**
+         * A key of a leaf, or a child of a node, with its distance.
+         */
+        private static class Entry implements Comparable<Entry> {
+
+            final double distance;
+            final Page page;
+            final int index;
+
+            Entry(double distance, Page page, int index) {
+                this.distance = distance;
+                this.page = page;
+                this.index = index;
+            }
+
+            @Override
+            public int compareTo(Entry o) {
+                int comp = Double.compare(distance, o.distance);
+                if (comp == 0) {
+                    // keys before pages with the same distance
+                    boolean leaf = page.isLeaf();
+                    if (leaf != o.page.isLeaf()) {
+                        return leaf ? -1 : 1;
+                    }
+                }
+                return comp;
+            }
+
+        }
+
+    }
+
     @Override
     public String getType() {
         return "rtree";
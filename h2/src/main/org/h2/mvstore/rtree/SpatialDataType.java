@@ -48,6 +48,15 @@ public class SpatialDataType implements DataType {
         return la == lb;
     }
 
+    /**
+     * Get the number of dimensions.
+     *
+     * @return the number of dimensions
+     */
+    int getDimensions() {
+        return dimensions;
+    }
+
     @Override
     public int getMemory(Object obj) {
         return 40 + dimensions * 4;
@@ -151,6 +160,32 @@ public class SpatialDataType implements DataType {
         return areaNew - areaOld;
     }
 
+    /**
+     * Get the minimum distance between the two objects. If they overlap, the
+     * distance is 0.
+     *
+     * @param objA the first object
+     * @param objB the second object
+     * @return the distance
+     */
+    public double getMinDistance(Object objA, Object objB) {
+        SpatialKey a = (SpatialKey) objA;
+        SpatialKey b = (SpatialKey) objB;
+        double sum = 0;
+        for (int i = 0; i < dimensions; i++) {
+            double d;
+            if (a.max(i) < b.min(i)) {
+                d = (double) b.min(i) - a.max(i);
+            } else if (b.max(i) < a.min(i)) {
+                d = (double) a.min(i) - b.max(i);
+            } else {
+                continue;
+            }
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
     /**
      * Get the combined area of both objects.
      *
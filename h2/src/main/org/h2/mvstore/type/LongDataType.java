@@ -0,0 +1,36 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.mvstore.type;
+
+/**
+ * A data type where each object can be represented as a long value. If the
+ * keys of a map use such a type, the pages of the map keep the keys in a long
+ * array instead of an object array, and the binary search within a page
+ * compares the long values directly.
+ * <p>
+ * The sort order of the type must match the order of the long values. The
+ * serialization format is not affected.
+ */
+public interface LongDataType extends DataType {
+
+    /**
+     * Get the long value of an object.
+     *
+     * @param obj the object
+     * @return the long value
+     */
+    long getLong(Object obj);
+
+    /**
+     * Get the object for a long value.
+     *
+     * @param x the long value
+     * @return the object
+     */
+    Object getObject(long x);
+
+}
@@ -34,6 +34,21 @@ public abstract class FileBase extends FileChannel {
     @Override
     public abstract int write(ByteBuffer src) throws IOException;
 
+    /**
+     * Read from the file without copying the data, if the file implementation
+     * supports it (for example memory mapped files). The returned buffer is
+     * read-only, and is backed by the file data, so it must only be used until
+     * this area of the file is overwritten. It should not be kept longer than
+     * needed, as this can prevent re-mapping the file.
+     *
+     * @param position the file position
+     * @param len the number of bytes
+     * @return the buffer, or null if not supported
+     */
+    public ByteBuffer readDirect(long position, int len) throws IOException {
+        return null;
+    }
+
     @Override
     public synchronized int read(ByteBuffer dst, long position) throws IOException {
         long oldPos = position();
@@ -190,6 +190,23 @@ class FileNioMapped extends FileBase {
         }
     }
 
+    @Override
+    public synchronized ByteBuffer readDirect(long position, int len) throws IOException {
+        if (SysProperties.NIO_CLEANER_HACK) {
+            // the buffer could be unmapped while it is still in use
+            return null;
+        }
+        if (position < 0 || position + len > fileLength) {
+            throw new EOFException("EOF");
+        }
+        // the slice keeps a reference to the mapped buffer,
+        // so it stays valid even if the file is re-mapped
+        ByteBuffer buff = mapped.duplicate();
+        buff.position((int) position);
+        buff.limit((int) position + len);
+        return buff.slice().asReadOnlyBuffer();
+    }
+
     @Override
     public FileChannel position(long pos) throws IOException {
         checkFileSizeLimit(pos);
@@ -54,6 +54,7 @@ public class TestSpatial extends TestBase {
             testOverlap();
             testNotOverlap();
             testPersistentSpatialIndex();
+            testSpatialIndexOnExistingData();
             testSpatialIndexQueryMultipleTable();
             testIndexTransaction();
             testJavaAlias();
@@ -224,6 +225,37 @@ public class TestSpatial extends TestBase {
         }
     }
 
+    private void testSpatialIndexOnExistingData() throws SQLException {
+        deleteDb("spatialPersistent");
+        Connection conn = getConnection("spatialPersistent");
+        try {
+            Statement stat = conn.createStatement();
+            stat.execute("create table test(id int primary key, p geometry) " +
+                    "as select x, 'POINT (' || mod(x, 100) || ' ' || (x / 100) || ')' " +
+                    "from system_range(0, 9999)");
+            stat.execute("create spatial index idx_p on test(p)");
+            ResultSet rs = stat.executeQuery("select count(*) from test " +
+                    "where p && 'POLYGON ((9.5 9.5, 9.5 19.5, 19.5 19.5, 19.5 9.5, 9.5 9.5))'::Geometry");
+            assertTrue(rs.next());
+            assertEquals(100, rs.getInt(1));
+            rs = stat.executeQuery("select id from test " +
+                    "where p && 'POINT (42 17)'::Geometry");
+            assertTrue(rs.next());
+            assertEquals(1742, rs.getInt(1));
+            assertFalse(rs.next());
+            stat.execute("delete from test where id = 1742");
+            stat.execute("insert into test values(10000, 'POINT (42 17)')");
+            rs = stat.executeQuery("select id from test " +
+                    "where p && 'POINT (42 17)'::Geometry");
+            assertTrue(rs.next());
+            assertEquals(10000, rs.getInt(1));
+            assertFalse(rs.next());
+            stat.execute("drop table test");
+        } finally {
+            conn.close();
+        }
+    }
+
     private static void createTestTable(Statement stat)  throws SQLException {
         stat.execute("create table area(idArea int primary key, the_geom geometry)");
         stat.execute("create spatial index on area(the_geom)");
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2004-2013 H2 Group. Multiple-Licensed under the H2 License,
+ * Version 1.0, and under the Eclipse Public License, Version 1.0
+ * (http://h2database.com/html/license.html).
+ * Initial Developer: H2 Group
+ */
+package org.h2.test.store;
+
+import java.nio.ByteBuffer;
+import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.LongDataType;
+
+/**
+ * A data type for Long keys, which are kept in a long array within a page.
+ */
+public class LongKeyDataType implements LongDataType {
+
+    @Override
+    public int compare(Object a, Object b) {
+        return ((Long) a).compareTo((Long) b);
+    }
+
+    @Override
+    public int getMemory(Object obj) {
+        return 24;
+    }
+
+    @Override
+    public void write(WriteBuffer buff, Object obj) {
+        buff.putVarLong((Long) obj);
+    }
+
+    @Override
+    public Object read(ByteBuffer buff) {
+        return DataUtils.readVarLong(buff);
+    }
+
+    @Override
+    public long getLong(Object obj) {
+        return (Long) obj;
+    }
+
+    @Override
+    public Object getObject(long x) {
+        return x;
+    }
+
+}
@@ -43,6 +43,8 @@ public class TestCacheLongKeyLIRS extends TestBase {
         testLimitHot();
         testLimitNonResident();
         testScanResistance();
+        testPutCold();
+        testAdmissionFilter();
         testRandomOperations();
     }
 
@@ -397,6 +399,105 @@ public class TestCacheLongKeyLIRS extends TestBase {
         }
     }
 
+    private void testPutCold() {
+        CacheLongKeyLIRS<Integer> test = createCache(20);
+        for (int i = 0; i < 40; i++) {
+            test.put(i, i * 10);
+            test.get(i);
+        }
+        verify(test, null);
+        List<Long> hot = test.keys(false, false);
+        int nonResident = test.sizeNonResident();
+        // a scan: each entry is read a few times after it was added
+        for (int i = 1000; i < 2000; i++) {
+            test.putCold(i, i * 10, 1);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(i * 10, test.peek(i).intValue());
+            }
+            verify(test, null);
+        }
+        // the stack (including the hot entries) was not changed
+        assertEquals(hot.toString(), test.keys(false, false).toString());
+        assertEquals(nonResident, test.sizeNonResident());
+        // only the last entry of the scan is kept
+        assertEquals(20, test.size());
+        assertTrue(test.containsKey(1999));
+        assertFalse(test.containsKey(1998));
+        // once an entry was replaced, it is a regular entry
+        test.put(1999, 1, 1);
+        assertTrue(test.keys(false, false).contains(1999L));
+        verify(test, null);
+        // once an entry is read (not by a scan), it is a regular cold entry,
+        // and reading it again makes it hot
+        test.putCold(3000, 30000, 1);
+        assertFalse(test.keys(false, false).contains(3000L));
+        assertEquals(30000, test.get(3000).intValue());
+        assertTrue(test.keys(false, false).contains(3000L));
+        assertTrue(test.keys(true, false).contains(3000L));
+        verify(test, null);
+        assertEquals(30000, test.get(3000).intValue());
+        assertFalse(test.keys(true, false).contains(3000L));
+        verify(test, null);
+
+        // reading entries of a cache that only contains entries
+        // added using putCold
+        test = createCache(20);
+        for (int i = 0; i < 10; i++) {
+            test.putCold(i, i * 10, 1);
+        }
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < 10; i++) {
+                assertEquals(i * 10, test.get(i).intValue());
+                verify(test, null);
+            }
+        }
+    }
+
+    private void testAdmissionFilter() {
+        CacheLongKeyLIRS<Integer> test = createCache(100);
+        test.setAdmissionFilter(true);
+        assertTrue(test.getAdmissionFilter());
+        // frequently used entries
+        for (int j = 0; j < 5; j++) {
+            for (int i = 0; i < 100; i++) {
+                if (test.get(i) == null) {
+                    test.put(i, i * 10);
+                }
+            }
+        }
+        assertEquals(5, test.getFrequency(10));
+        assertEquals(0, test.getFrequency(1000));
+        // entries that are only used once are not added,
+        // and don't need to be remembered as non-resident entries
+        for (int i = 1000; i < 1500; i++) {
+            assertNull(test.get(i));
+            test.put(i, i * 10);
+            verify(test, null);
+        }
+        assertEquals(1, test.getFrequency(1000));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 10, test.get(i).intValue());
+        }
+        assertEquals(0, test.sizeNonResident());
+        // entries that are used more often are added
+        for (int j = 0; j < 10; j++) {
+            for (int i = 2000; i < 2010; i++) {
+                if (test.get(i) == null) {
+                    test.put(i, i * 10);
+                }
+            }
+        }
+        for (int i = 2000; i < 2010; i++) {
+            assertEquals(i * 10, test.get(i).intValue());
+        }
+        verify(test, null);
+        // without admission filter, every new entry is added
+        test.setAdmissionFilter(false);
+        assertEquals(0, test.getFrequency(10));
+        test.put(3000, 1);
+        assertTrue(test.containsKey(3000));
+    }
+
     private void testRandomOperations() {
         boolean log = false;
         int size = 10;
@@ -18,9 +18,11 @@ import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.h2.mvstore.DataUtils;
+import org.h2.mvstore.LSMMap;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVMapConcurrent;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.ShardedMVMap;
 import org.h2.store.fs.FileChannelInputStream;
 import org.h2.store.fs.FileUtils;
 import org.h2.test.TestBase;
@@ -53,6 +55,8 @@ public class TestConcurrent extends TestMVStore {
         testConcurrentStoreAndClose();
         testConcurrentOnlineBackup();
         testConcurrentMap();
+        testConcurrentShardedMap();
+        testConcurrentLSMMap();
         testConcurrentIterate();
         testConcurrentWrite();
         testConcurrentRead();
@@ -202,6 +206,89 @@ public class TestConcurrent extends TestMVStore {
         }
     }
 
+    /**
+     * Test the sharded map with concurrent writers, and that the entries are
+     * iterated in key order after re-opening.
+     */
+    private void testConcurrentShardedMap() throws Exception {
+        String fileName = getBaseDir() + "/testConcurrentShardedMap.h3";
+        FileUtils.delete(fileName);
+        final MVStore s = openStore(fileName);
+        final ShardedMVMap<Integer, Integer> m =
+                new ShardedMVMap.Builder<Integer, Integer>().
+                shardCount(8).open(s, "data");
+        final int threadCount = 4;
+        final int count = 2000;
+        Task[] tasks = new Task[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            tasks[t] = new Task() {
+                @Override
+                public void call() throws Exception {
+                    for (int i = 0; i < count; i++) {
+                        int k = i * threadCount + offset;
+                        m.put(k, k);
+                        assertEquals(k, m.get(k).intValue());
+                        if (i % 100 == 0) {
+                            s.commit();
+                        }
+                    }
+                }
+            };
+            tasks[t].execute();
+        }
+        for (Task t : tasks) {
+            t.get();
+        }
+        assertEquals(threadCount * count, m.size());
+        s.store();
+        s.close();
+        MVStore s2 = openStore(fileName);
+        ShardedMVMap<Integer, Integer> m2 =
+                new ShardedMVMap.Builder<Integer, Integer>().open(s2, "data");
+        int expected = 0;
+        for (int k : m2.keySet()) {
+            assertEquals(expected++, k);
+            assertEquals(k, m2.get(k).intValue());
+        }
+        assertEquals(threadCount * count, expected);
+        s2.close();
+    }
+
+    private void testConcurrentLSMMap() throws Exception {
+        MVStore s = openStore(null);
+        final LSMMap<Integer, Integer> m = new LSMMap.Builder<Integer, Integer>().
+                firstLevelSize(50).fanout(3).backgroundMerge().open(s, "data");
+        final AtomicInteger written = new AtomicInteger();
+        Task task = new Task() {
+            @Override
+            public void call() throws Exception {
+                for (int i = 0; i < 20000 && !stop; i++) {
+                    m.write(i, i);
+                    written.set(i + 1);
+                }
+            }
+        };
+        task.execute();
+        Random r = new Random(1);
+        while (written.get() < 20000) {
+            int w = written.get();
+            if (w > 0) {
+                int k = r.nextInt(w);
+                // entries are never lost while merging
+                assertEquals(k, m.get(k).intValue());
+            }
+        }
+        task.get();
+        int expected = 0;
+        for (int k : m.keySet()) {
+            assertEquals(expected++, k);
+        }
+        assertEquals(20000, expected);
+        m.close();
+        s.close();
+    }
+
     /**
      * Test the concurrent map implementation.
      */
@@ -13,10 +13,13 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Random;
+import java.util.TreeMap;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.FileImageOutputStream;
@@ -52,6 +55,8 @@ public class TestMVRTree extends TestMVStore {
         testSimple();
         testRandom();
         testRandomFind();
+        testNearest();
+        testBulkLoad();
     }
 
     private void testExample() {
@@ -319,6 +324,144 @@ public class TestMVRTree extends TestMVStore {
         }
     }
 
+    private void testNearest() {
+        MVStore s = openStore(null);
+        MVRTreeMap<Integer> m = s.openMap("data",
+                new MVRTreeMap.Builder<Integer>());
+        Random rand = new Random(1);
+        ArrayList<SpatialKey> list = New.arrayList();
+        for (int i = 0; i < 2000; i++) {
+            float x = rand.nextFloat() * 1000, y = rand.nextFloat() * 1000;
+            float w = rand.nextFloat() * 5, h = rand.nextFloat() * 5;
+            SpatialKey k = new SpatialKey(i, x, x + w, y, y + h);
+            m.add(k, i);
+            list.add(k);
+        }
+        assertFalse(m.findNearestKeys(new SpatialKey(0, 0, 0, 0, 0)).
+                getNextDistance() < 0);
+        for (int i = 0; i < 100; i++) {
+            float x = rand.nextFloat() * 1200 - 100;
+            float y = rand.nextFloat() * 1200 - 100;
+            SpatialKey p = new SpatialKey(0, x, x, y, y);
+            double[] expected = new double[list.size()];
+            for (int j = 0; j < list.size(); j++) {
+                expected[j] = getDistance(list.get(j), x, y);
+            }
+            Arrays.sort(expected);
+            MVRTreeMap.NearestCursor it = m.findNearestKeys(p);
+            double last = 0;
+            for (int j = 0; j < 10; j++) {
+                assertTrue(it.hasNext());
+                double d = it.getNextDistance();
+                SpatialKey k = it.next();
+                assertTrue(Math.abs(getDistance(k, x, y) - d) < 0.001);
+                assertTrue(Math.abs(expected[j] - d) < 0.001);
+                assertTrue(d >= last);
+                last = d;
+            }
+        }
+        int count = 0;
+        for (Iterator<SpatialKey> it = m.findNearestKeys(
+                new SpatialKey(0, 500, 500, 500, 500)); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(list.size(), count);
+        m.clear();
+        assertFalse(m.findNearestKeys(new SpatialKey(0, 0, 0, 0, 0)).hasNext());
+        s.close();
+    }
+
+    private void testBulkLoad() {
+        String fileName = getBaseDir() + "/testBulkLoad.h3";
+        FileUtils.delete(fileName);
+        MVStore s = openStore(fileName);
+        MVRTreeMap<Integer> bulk = s.openMap("bulk",
+                new MVRTreeMap.Builder<Integer>());
+        MVRTreeMap<Integer> single = s.openMap("single",
+                new MVRTreeMap.Builder<Integer>());
+        Random rand = new Random(1);
+        TreeMap<SpatialKey, Integer> entries = new TreeMap<SpatialKey, Integer>(
+                new Comparator<SpatialKey>() {
+            @Override
+            public int compare(SpatialKey a, SpatialKey b) {
+                return Long.signum(a.getId() - b.getId());
+            }
+        });
+        for (int i = 0; i < 5000; i++) {
+            float x = rand.nextFloat() * 1000, y = rand.nextFloat() * 1000;
+            float w = rand.nextFloat() * 5, h = rand.nextFloat() * 5;
+            SpatialKey k = new SpatialKey(i, x, x + w, y, y + h);
+            entries.put(k, i);
+            single.add(k, i);
+        }
+        assertEquals(5000, bulk.addAll(entries.entrySet().iterator()));
+        assertEquals(5000, bulk.sizeAsLong());
+        for (SpatialKey k : entries.keySet()) {
+            assertEquals(entries.get(k), bulk.get(k));
+        }
+        // fewer, fully packed pages, and queries visit fewer pages
+        ArrayList<SpatialKey> bulkNodes = New.arrayList();
+        bulk.addNodeKeys(bulkNodes, bulk.getRoot());
+        ArrayList<SpatialKey> singleNodes = New.arrayList();
+        single.addNodeKeys(singleNodes, single.getRoot());
+        assertTrue(bulkNodes.size() * 4 < singleNodes.size() * 3);
+        assertTrue(getVisits(bulkNodes) < getVisits(singleNodes));
+        for (int i = 0; i < 100; i++) {
+            float x = rand.nextFloat() * 1000, y = rand.nextFloat() * 1000;
+            SpatialKey k = new SpatialKey(0, x, x + 50, y, y + 50);
+            assertEquals(count(single.findIntersectingKeys(k)),
+                    count(bulk.findIntersectingKeys(k)));
+        }
+        s.store();
+        s.close();
+
+        s = openStore(fileName);
+        bulk = s.openMap("bulk", new MVRTreeMap.Builder<Integer>());
+        assertEquals(5000, bulk.sizeAsLong());
+        SpatialKey first = entries.firstKey();
+        assertEquals(0, bulk.remove(first).intValue());
+        bulk.add(new SpatialKey(5000, 1, 2, 1, 2), 5000);
+        assertEquals(5000, bulk.sizeAsLong());
+        // not empty: the entries are added one at a time
+        TreeMap<SpatialKey, Integer> more = new TreeMap<SpatialKey, Integer>(
+                entries.comparator());
+        more.put(new SpatialKey(5001, 3, 4, 3, 4), 5001);
+        assertEquals(1, bulk.addAll(more.entrySet().iterator()));
+        assertEquals(5001, bulk.sizeAsLong());
+        assertEquals(5001, bulk.get(new SpatialKey(5001, 3, 4, 3, 4)).intValue());
+        s.close();
+    }
+
+    private static int getVisits(ArrayList<SpatialKey> nodeKeys) {
+        Random rand = new Random(2);
+        int visits = 0;
+        for (int i = 0; i < 1000; i++) {
+            float x = rand.nextFloat() * 1000, y = rand.nextFloat() * 1000;
+            for (SpatialKey k : nodeKeys) {
+                if (k.max(0) >= x && k.min(0) <= x + 10 &&
+                        k.max(1) >= y && k.min(1) <= y + 10) {
+                    visits++;
+                }
+            }
+        }
+        return visits;
+    }
+
+    private static int count(Iterator<SpatialKey> it) {
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static double getDistance(SpatialKey k, float x, float y) {
+        double dx = Math.max(0, Math.max(k.min(0) - x, x - k.max(0)));
+        double dy = Math.max(0, Math.max(k.min(1) - y, y - k.max(1)));
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
     private void testRandom(boolean quadraticSplit) {
         String fileName = getBaseDir() + "/testRandom.h3";
         FileUtils.delete(fileName);
@@ -8,24 +8,32 @@ package org.h2.test.store;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.h2.mvstore.Cursor;
 import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.FileStore;
+import org.h2.mvstore.LSMMap;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.OffHeapStore;
+import org.h2.mvstore.Page;
+import org.h2.mvstore.SegmentedFileStore;
+import org.h2.mvstore.ShardedMVMap;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.ObjectDataType;
 import org.h2.mvstore.type.StringDataType;
 import org.h2.store.fs.FilePath;
 import org.h2.store.fs.FileUtils;
 import org.h2.test.TestBase;
+import org.h2.util.Task;
 
 /**
  * Tests the MVStore.
@@ -51,6 +59,15 @@ public class TestMVStore extends TestBase {
         testRemoveMap();
         testIsEmpty();
         testOffHeapStorage();
+        testMemoryMappedRead();
+        testSegmentedFile();
+        testWriteAlignment();
+        testHotColdCompact();
+        testAppendSorted();
+        testLongKeys();
+        testPageChecksum();
+        testRedoLog();
+        testGroupCommit();
         testNewerWriteVersion();
         testCompactFully();
         testBackgroundExceptionListener();
@@ -64,6 +81,12 @@ public class TestMVStore extends TestBase {
         testRenameMapRollback();
         testCustomMapType();
         testCacheSize();
+        testCacheScan();
+        testNodeCache();
+        testPrefetch();
+        testPreloadRootPages();
+        testSnapshot();
+        testCompressionLevel();
         testConcurrentOpen();
         testFileHeader();
         testFileHeaderCorruption();
@@ -85,6 +108,9 @@ public class TestMVStore extends TestBase {
         testLargeImport();
         testBtreeStore();
         testCompact();
+        testAutoCompact();
+        testShardedMap();
+        testLSMMap();
         testCompactMapNotOpen();
         testReuseSpace();
         testRandom();
@@ -160,6 +186,599 @@ public class TestMVStore extends TestBase {
         s.close();
     }
 
+    private void testGroupCommit() throws Exception {
+        String fileName = getBaseDir() + "/testGroupCommit.h3";
+        for (int test = 0; test < 2; test++) {
+            FileUtils.delete(fileName);
+            FileUtils.delete(fileName + ".redo");
+            MVStore.Builder builder = new MVStore.Builder().
+                    fileName(fileName);
+            if (test == 0) {
+                builder.redoLog().writeDelay(-1);
+            } else {
+                builder.writeDelay(0);
+            }
+            final MVStore s = builder.open();
+            final int threadCount = 8, commitCount = 50;
+            for (int t = 0; t < threadCount; t++) {
+                s.openMap("data" + t);
+            }
+            s.commit();
+            long writeCount = s.getFileStore().getWriteCount();
+            Task[] tasks = new Task[threadCount];
+            for (int t = 0; t < threadCount; t++) {
+                final MVMap<Integer, Integer> map = s.openMap("data" + t);
+                tasks[t] = new Task() {
+
+                    @Override
+                    public void call() throws Exception {
+                        for (int i = 0; i < commitCount; i++) {
+                            map.put(i, i);
+                            s.commit();
+                        }
+                    }
+                };
+                tasks[t].execute();
+            }
+            for (Task t : tasks) {
+                t.get();
+            }
+            if (test == 0) {
+                // at most one sync per commit, and only the log is written
+                assertTrue(s.getRedoLog().getSyncCount() <= threadCount * commitCount);
+                assertEquals(writeCount, s.getFileStore().getWriteCount());
+            } else {
+                // at most one chunk per commit
+                assertTrue(s.getFileStore().getWriteCount() - writeCount <=
+                        threadCount * commitCount * 2);
+            }
+            // all commits are durable
+            s.closeImmediately();
+            MVStore s2 = builder.open();
+            for (int t = 0; t < threadCount; t++) {
+                MVMap<Integer, Integer> map = s2.openMap("data" + t);
+                assertEquals(commitCount, map.size());
+            }
+            s2.close();
+        }
+    }
+
+    private void testRedoLog() throws Exception {
+        String fileName = getBaseDir() + "/testRedoLog.h3";
+        FileUtils.delete(fileName);
+        FileUtils.delete(fileName + ".redo");
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                redoLog().
+                writeDelay(-1).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        MVMap<Integer, String> map2 = s.openMap("data2");
+        s.commit();
+        long writeCount = s.getFileStore().getWriteCount();
+        for (int i = 0; i < 100; i++) {
+            map.put(i, "Hello " + i);
+            map2.put(i, "World " + i);
+            s.commit();
+        }
+        map.remove(0);
+        s.commit();
+        // only the log is written
+        assertEquals(writeCount, s.getFileStore().getWriteCount());
+        assertEquals(101, s.getRedoLog().getSyncCount());
+        assertTrue(s.getRedoLog().size() > 0);
+        map.put(1000, "uncommitted");
+        s.closeImmediately();
+
+        // an incomplete record at the end of the log is ignored
+        FileChannel fc = FilePath.get(fileName + ".redo").open("rw");
+        long size = fc.size();
+        fc.write(ByteBuffer.wrap(new byte[] { 0, 0, 1, 0, 1, 2 }), size);
+        fc.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                redoLog().
+                writeDelay(-1).
+                open();
+        assertEquals(size, s.getRedoLog().size());
+        map = s.openMap("data");
+        assertEquals(99, map.size());
+        assertNull(map.get(0));
+        assertNull(map.get(1000));
+        for (int i = 1; i < 100; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        // the entries of maps that are not open are kept
+        s.store();
+        long size2 = s.getRedoLog().size();
+        assertTrue(size2 > 0 && size2 < size);
+        s.closeImmediately();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                redoLog().
+                writeDelay(-1).
+                open();
+        map = s.openMap("data");
+        assertEquals(99, map.size());
+        map.put(2000, "uncommitted");
+        long version = s.getCurrentVersion();
+        map2 = s.openMap("data2");
+        // replaying doesn't commit the changes of other maps
+        assertEquals(version, s.getCurrentVersion());
+        s.rollbackTo(version);
+        assertNull(map.get(2000));
+        assertEquals(100, map2.size());
+        assertEquals("World 1", map2.get(1));
+        s.store();
+        assertEquals(0, s.getRedoLog().size());
+        map.put(1000, "committed");
+        s.commit();
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        map = s.openMap("data");
+        assertEquals(100, map.size());
+        assertEquals("committed", map.get(1000));
+        s.close();
+    }
+
+    private void testPageChecksum() throws Exception {
+        String fileName = getBaseDir() + "/testPageChecksum.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageChecksum().
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        String big = new String(new char[1000]).replace((char) 0, 'x');
+        for (int i = 0; i < 50; i++) {
+            map.put(i, big);
+        }
+        s.store();
+        s.close();
+        corruptByte(fileName, 8 * 1024 + 20000);
+
+        // the checksum is verified, even if not enabled for writing
+        s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        map = s.openMap("data");
+        try {
+            for (int i = 0; i < 50; i++) {
+                map.get(i);
+            }
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_FILE_CORRUPT,
+                    DataUtils.getErrorCode(e.getMessage()));
+            assertTrue(e.getMessage(), e.getMessage().indexOf("checksum") >= 0);
+        }
+        // the corrupt page is still in use
+        assertEquals(1, s.verifyChunks());
+        assertEquals(1, s.verifyChunks());
+        s.close();
+
+        // a corrupt page that is no longer used is repaired
+        // by the background scrubber
+        FileUtils.delete(fileName);
+        s = new MVStore.Builder().
+                fileName(fileName).
+                pageChecksum().
+                open();
+        map = s.openMap("data");
+        MVMap<Integer, String> map2 = s.openMap("data2");
+        for (int i = 0; i < 50; i++) {
+            map.put(i, big);
+        }
+        map2.put(1, "Hello");
+        s.store();
+        for (int i = 0; i < 50; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.store();
+        s.close();
+        corruptByte(fileName, 8 * 1024 + 20000);
+
+        final AtomicReference<Throwable> exRef = new AtomicReference<Throwable>();
+        s = new MVStore.Builder().
+                fileName(fileName).
+                autoScrubDelay(1).
+                backgroundExceptionHandler(new UncaughtExceptionHandler() {
+
+                    @Override
+                    public void uncaughtException(Thread t, Throwable e) {
+                        exRef.set(e);
+                    }
+
+                }).
+                open();
+        s.setRetentionTime(0);
+        map = s.openMap("data");
+        map2 = s.openMap("data2");
+        for (int i = 0; i < 100 && exRef.get() == null; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(exRef.get() != null);
+        assertTrue(exRef.get().getMessage().indexOf("checksum") >= 0);
+        assertTrue(s.getCorruptChunkCount() > 0);
+        assertTrue(s.getScrubbedChunkCount() > 0);
+        for (int i = 0; i < 10; i++) {
+            map2.put(2, "World " + i);
+            s.store();
+        }
+        assertEquals(0, s.verifyChunks());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        assertEquals("Hello", map2.get(1));
+        s.close();
+    }
+
+    private static void corruptByte(String fileName, long pos) throws Exception {
+        FileChannel fc = FilePath.get(fileName).open("rw");
+        ByteBuffer buff = ByteBuffer.allocate(1);
+        fc.read(buff, pos);
+        buff.put(0, (byte) (buff.get(0) ^ 1));
+        buff.rewind();
+        fc.write(buff, pos);
+        fc.close();
+    }
+
+    private void testSegmentedFile() {
+        String fileName = getBaseDir() + "/testSegmentedFile.h3";
+        FileUtils.delete(fileName);
+        for (int i = 1; i < 20; i++) {
+            FileUtils.delete(fileName + "." + i);
+        }
+        SegmentedFileStore fs = new SegmentedFileStore(1);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                fileStore(fs).
+                open();
+        s.setRetentionTime(0);
+        MVMap<Integer, String> map = s.openMap("data");
+        String big = new String(new char[1000]);
+        for (int i = 0; i < 4000; i++) {
+            map.put(i, big);
+            if (i % 100 == 0) {
+                s.store();
+            }
+        }
+        s.store();
+        int segments = fs.getSegmentCount();
+        assertTrue("" + segments, segments > 2);
+        assertTrue(FileUtils.exists(fileName + ".1"));
+        // overwrite with small values, so that the old segments are not needed
+        for (int i = 0; i < 4000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.store();
+        // segments are deleted as soon as they are free, without syncing
+        s.store();
+        assertTrue(fs.getDeletedSegmentCount() > 0);
+        for (int i = 0; i < 10; i++) {
+            s.compactRange(0, fs.getSegmentSize() * 2);
+        }
+        assertTrue(fs.getDeletedSegmentCount() > 0);
+        assertTrue(fs.getSegmentCount() < segments);
+        assertFalse(FileUtils.exists(fileName + ".1"));
+        s.close();
+
+        fs = new SegmentedFileStore(1);
+        s = new MVStore.Builder().
+                fileName(fileName).
+                fileStore(fs).
+                open();
+        map = s.openMap("data");
+        assertEquals(4000, map.size());
+        for (int i = 0; i < 4000; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        s.close();
+    }
+
+    private void testWriteAlignment() {
+        String fileName = getBaseDir() + "/testWriteAlignment.h3";
+        FileUtils.delete(fileName);
+        try {
+            new MVStore.Builder().
+                    fileName(fileName).
+                    writeAlignment(5).
+                    open();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        int alignment = 64 * 1024;
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                writeAlignment(alignment / 1024).
+                open();
+        s.setRetentionTime(0);
+        MVMap<Integer, String> map = s.openMap("data");
+        String big = new String(new char[500]);
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < 200; i++) {
+                map.put((j * 37 + i) % 500, j + big);
+                if (i % 50 == 0) {
+                    s.store();
+                }
+            }
+            s.store();
+            // within an aligned region, chunks are written sequentially
+            TreeMap<Integer, Long> starts = new TreeMap<Integer, Long>();
+            for (String k : s.getMetaMap().keyList()) {
+                if (k.startsWith("chunk.")) {
+                    HashMap<String, String> c =
+                            DataUtils.parseMap(s.getMetaMap().get(k));
+                    starts.put(Integer.parseInt(c.get("id")),
+                            Long.parseLong(c.get("start")));
+                }
+            }
+            HashMap<Long, Long> last = new HashMap<Long, Long>();
+            for (long start : starts.values()) {
+                long region = start / alignment;
+                Long prev = last.get(region);
+                assertTrue(prev == null || prev < start);
+                last.put(region, start);
+            }
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                writeAlignment(alignment / 1024).
+                open();
+        map = s.openMap("data");
+        assertEquals(500, map.size());
+        s.close();
+    }
+
+    private void testAppendSorted() {
+        String fileName = getBaseDir() + "/testAppendSorted.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(1000).
+                open();
+        MVMap<Integer, String> map = s.openMap("data");
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        for (int i = 0; i < 20000; i++) {
+            expected.put(i * 2, "Hello " + i);
+        }
+        assertEquals(20000, map.appendSorted(expected.entrySet().iterator()));
+        assertEquals(20000, map.size());
+        assertEquals("Hello 10", map.get(20));
+        assertNull(map.get(21));
+        assertEquals(39998, map.lastKey().intValue());
+        assertEquals(10, map.getKeyIndex(20));
+        s.commit();
+
+        // append to a map that is not empty
+        TreeMap<Integer, String> more = new TreeMap<Integer, String>();
+        for (int i = 20000; i < 30000; i++) {
+            more.put(i * 2, "Hello " + i);
+        }
+        assertEquals(10000, map.appendSorted(more.entrySet().iterator()));
+        expected.putAll(more);
+        assertEquals(30000, map.size());
+
+        // keys must be larger than the last key
+        TreeMap<Integer, String> smaller = new TreeMap<Integer, String>();
+        smaller.put(1, "x");
+        try {
+            map.appendSorted(smaller.entrySet().iterator());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(30000, map.size());
+        s.commit();
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        map = s.openMap("data");
+        assertEquals(30000, map.size());
+        Iterator<Integer> it = map.keyIterator(null);
+        for (Map.Entry<Integer, String> e : expected.entrySet()) {
+            Integer k = it.next();
+            assertEquals(e.getKey().intValue(), k.intValue());
+            assertEquals(e.getValue(), map.get(k));
+        }
+        assertFalse(it.hasNext());
+        map.put(1, "x");
+        map.remove(20);
+        assertEquals(30000, map.size());
+        assertEquals("x", map.get(1));
+        assertNull(map.get(20));
+        s.close();
+    }
+
+    private void testLongKeys() {
+        String fileName = getBaseDir() + "/testLongKeys.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(400).
+                open();
+        MVMap<Long, String> map = s.openMap("data",
+                new MVMap.Builder<Long, String>().keyType(new LongKeyDataType()));
+        MVMap<Long, String> objectMap = s.openMap("object");
+        TreeMap<Long, String> expected = new TreeMap<Long, String>();
+        Random r = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            long k = r.nextInt(2000) - 1000;
+            if (r.nextInt(4) == 0) {
+                assertEquals(expected.remove(k), map.remove(k));
+            } else {
+                String v = "v" + i;
+                assertEquals(expected.put(k, v), map.put(k, v));
+            }
+            if (i % 1000 == 0) {
+                s.commit();
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            objectMap.put((long) i, "v" + i);
+        }
+        s.commit();
+        // the long keys use less memory
+        MVMap<Long, String> small = s.openMap("small",
+                new MVMap.Builder<Long, String>().keyType(new LongKeyDataType()));
+        for (int i = 0; i < 10; i++) {
+            small.put((long) i, "v" + i);
+        }
+        assertTrue(small.getRoot().getMemory() < objectMap.getRoot().getMemory());
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.firstKey(), map.firstKey());
+        assertEquals(expected.lastKey(), map.lastKey());
+        assertEquals(expected.ceilingKey(5L), map.ceilingKey(5L));
+        assertEquals(expected.floorKey(5L), map.floorKey(5L));
+        assertEquals(expected.headMap(100L).size(), map.getKeyIndex(
+                map.ceilingKey(100L)));
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        map = s.openMap("data",
+                new MVMap.Builder<Long, String>().keyType(new LongKeyDataType()));
+        assertEquals(expected.size(), map.size());
+        Iterator<Long> it = map.keyIterator(null);
+        for (Map.Entry<Long, String> e : expected.entrySet()) {
+            Long k = it.next();
+            assertEquals(e.getKey(), k);
+            assertEquals(e.getValue(), map.get(k));
+        }
+        assertFalse(it.hasNext());
+        s.close();
+    }
+
+    private void testHotColdCompact() {
+        String fileName = getBaseDir() + "/testHotColdCompact.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(1000).
+                open();
+        s.setRetentionTime(0);
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.store();
+        // keys from 900 are hot
+        for (int j = 0; j < 20; j++) {
+            for (int i = 900; i < 1000; i++) {
+                map.put(i, "Hello " + j);
+            }
+            s.store();
+        }
+        s.compactRange(0, Long.MAX_VALUE);
+        // hot and cold pages are not stored in the same chunk
+        HashMap<Integer, Integer> hotChunks = new HashMap<Integer, Integer>();
+        HashMap<Integer, Integer> coldChunks = new HashMap<Integer, Integer>();
+        ArrayList<Page> leaves = new ArrayList<Page>();
+        addLeaves(map.getRoot(), leaves);
+        assertTrue(leaves.size() > 10);
+        for (Page p : leaves) {
+            int chunkId = DataUtils.getPageChunkId(p.getPos());
+            if ((Integer) p.getKey(p.getKeyCount() - 1) >= 900) {
+                assertTrue(p.getWriteCount() >= 20);
+                hotChunks.put(chunkId, chunkId);
+            } else {
+                assertEquals(1, p.getWriteCount());
+                coldChunks.put(chunkId, chunkId);
+            }
+        }
+        for (int id : hotChunks.keySet()) {
+            assertFalse(coldChunks.containsKey(id));
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        map = s.openMap("data");
+        Page p = map.getRoot();
+        while (!p.isLeaf()) {
+            p = p.getChildPage(p.getChildPageCount() - 1);
+        }
+        assertTrue(p.getWriteCount() >= 20);
+        long pageWrites = 0;
+        for (String k : s.getMetaMap().keyList()) {
+            if (k.startsWith("chunk.")) {
+                HashMap<String, String> c =
+                        DataUtils.parseMap(s.getMetaMap().get(k));
+                pageWrites += Long.parseLong(c.get("pageWrites"));
+            }
+        }
+        assertTrue(pageWrites >= 20);
+        s.close();
+    }
+
+    private static void addLeaves(Page p, ArrayList<Page> leaves) {
+        if (p.isLeaf()) {
+            leaves.add(p);
+            return;
+        }
+        for (int i = 0; i < p.getChildPageCount(); i++) {
+            addLeaves(p.getChildPage(i), leaves);
+        }
+    }
+
+    private void testMemoryMappedRead() {
+        String fileName = getBaseDir() + "/testMemoryMappedRead.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName("nioMapped:" + fileName).
+                open();
+        Map<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i);
+            if (i % 100 == 0) {
+                s.store();
+            }
+        }
+        s.store();
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName("nioMapped:" + fileName).
+                open();
+        // the data is not copied (the buffer must not be kept,
+        // otherwise the file can not be re-mapped)
+        assertTrue(s.getFileStore().readFully(0, 16).isReadOnly());
+        assertEquals(16, s.getFileStore().readFully(0, 16).remaining());
+        map = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        // growing the file re-maps it
+        for (int i = 1000; i < 2000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.store();
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("Hello " + i, map.get(i));
+        }
+        s.close();
+
+        s = new MVStore.Builder().
+                fileName(fileName).
+                open();
+        assertFalse(s.getFileStore().readFully(0, 16).isReadOnly());
+        map = s.openMap("data");
+        assertEquals(2000, map.size());
+        s.close();
+    }
+
     private void testNewerWriteVersion() throws Exception {
         String fileName = getBaseDir() + "/testNewerWriteVersion.h3";
         FileUtils.delete(fileName);
@@ -168,9 +787,9 @@ public class TestMVStore extends TestBase {
                 fileName(fileName).
                 open();
         Map<String, String> header = s.getStoreHeader();
-        assertEquals("1", header.get("format"));
-        header.put("formatRead", "1");
-        header.put("format", "2");
+        assertEquals("2", header.get("format"));
+        header.put("formatRead", "2");
+        header.put("format", "3");
         MVMap<Integer, String> m = s.openMap("data");
         m.put(0, "Hello World");
         s.store();
@@ -479,10 +1098,27 @@ public class TestMVStore extends TestBase {
         MVMap<Integer, Integer> m;
         s = openStore(fileName);
         m = s.openMap("test");
-        m.put(1, 1);
-        Map<String, String> header = s.getStoreHeader();
-        int format = Integer.parseInt(header.get("format"));
-        assertEquals(1, format);
+        m.put(1, 1);
+        Map<String, String> header = s.getStoreHeader();
+        int format = Integer.parseInt(header.get("format"));
+        assertEquals(2, format);
+
+        // files of an older format are upgraded when opened for writing
+        header.put("format", "1");
+        s.store();
+        s.close();
+        s = openStore(fileName);
+        assertEquals("2", s.getStoreHeader().get("format"));
+        m = s.openMap("test");
+        m.put(2, 2);
+        s.store();
+        s.close();
+        s = openStore(fileName);
+        header = s.getStoreHeader();
+        assertEquals("2", header.get("format"));
+
+        m = s.openMap("test");
+        m.put(3, 3);
         header.put("format", Integer.toString(format + 1));
         s.store();
         s.close();
@@ -557,7 +1193,7 @@ public class TestMVStore extends TestBase {
         s.store();
         s.close();
         int[] expectedReadsForCacheSize = {
-                3405, 2590, 1924, 1440, 1103, 956, 918
+                3411, 2590, 1924, 1440, 1106, 956, 918
         };
         for (int cacheSize = 0; cacheSize <= 6; cacheSize += 4) {
             s = new MVStore.Builder().
@@ -577,6 +1213,337 @@ public class TestMVStore extends TestBase {
 
     }
 
+    private void testCacheScan() {
+        String fileName = getBaseDir() + "/testCacheScan.h3";
+        FileUtils.delete(fileName);
+        MVStore s;
+        MVMap<Integer, String> map;
+        s = new MVStore.Builder().
+                fileName(fileName).
+                writeDelay(-1).
+                compressData().open();
+        map = s.openMap("test");
+        // add 10 MB of data
+        for (int i = 0; i < 1024; i++) {
+            map.put(i, new String(new char[10240]));
+        }
+        s.store();
+        s.close();
+        long[] reads = new long[2];
+        for (int test = 0; test < 2; test++) {
+            boolean scan = test == 1;
+            s = new MVStore.Builder().
+                    fileName(fileName).
+                    cacheSize(1).open();
+            map = s.openMap("test");
+            // frequently used entries
+            for (int j = 0; j < 3; j++) {
+                for (int i = 0; i < 20; i++) {
+                    map.get(i);
+                }
+            }
+            // read all other entries once
+            for (Iterator<Integer> it = map.keyIterator(100, scan); it.hasNext();) {
+                assertEquals(10240, map.get(it.next()).length());
+            }
+            long readCount = s.getFileStore().getReadCount();
+            for (int i = 0; i < 20; i++) {
+                map.get(i);
+            }
+            reads[test] = s.getFileStore().getReadCount() - readCount;
+            s.close();
+        }
+        // with a scan, most of the frequently used pages are still cached
+        assertTrue("without scan: " + reads[0] + " with scan: " + reads[1],
+                reads[1] * 4 < reads[0]);
+    }
+
+    private void testNodeCache() {
+        String fileName = getBaseDir() + "/testNodeCache.h3";
+        FileUtils.delete(fileName);
+        MVStore s;
+        MVMap<Integer, String> map;
+        try {
+            new MVStore.Builder().fileName(fileName).
+                    cacheSize(2).nodeCacheSize(2).open();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        s = new MVStore.Builder().
+                fileName(fileName).open();
+        map = s.openMap("test");
+        // add about 20 MB of data
+        for (int i = 0; i < 20000; i++) {
+            map.put(i, new String(new char[1000]));
+        }
+        s.commit();
+        s.close();
+        // 2 MB of the cache are reserved for inner pages,
+        // which is enough for all of them
+        s = new MVStore.Builder().
+                fileName(fileName).cacheSize(4).nodeCacheSize(2).open();
+        map = s.openMap("test");
+        Random r = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            map.get(r.nextInt(20000));
+        }
+        long nodeMisses = s.getCacheMissCount(DataUtils.PAGE_TYPE_NODE);
+        long leafMisses = s.getCacheMissCount(DataUtils.PAGE_TYPE_LEAF);
+        long nodeHits = s.getCacheHitCount(DataUtils.PAGE_TYPE_NODE);
+        assertTrue(nodeMisses > 0);
+        assertTrue(s.getCacheSizeUsed(DataUtils.PAGE_TYPE_NODE) <= 2 * 1024 * 1024);
+        assertTrue(s.getCacheSizeUsed(DataUtils.PAGE_TYPE_LEAF) <= 2 * 1024 * 1024);
+        for (int i = 0; i < 20000; i++) {
+            map.get(r.nextInt(20000));
+        }
+        // the leaf pages don't fit in the cache, but the inner pages do
+        assertTrue(s.getCacheMissCount(DataUtils.PAGE_TYPE_LEAF) - leafMisses > 10000);
+        assertEquals(nodeMisses, s.getCacheMissCount(DataUtils.PAGE_TYPE_NODE));
+        assertTrue(s.getCacheHitCount(DataUtils.PAGE_TYPE_NODE) - nodeHits > 20000);
+        s.close();
+    }
+
+    private void testPrefetch() {
+        String fileName = getBaseDir() + "/testPrefetch.h3";
+        FileUtils.delete(fileName);
+        MVStore s;
+        MVMap<Integer, String> map;
+        s = new MVStore.Builder().
+                fileName(fileName).open();
+        map = s.openMap("test");
+        for (int i = 0; i < 10000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.commit();
+        s.close();
+        s = new MVStore.Builder().
+                fileName(fileName).
+                cacheSize(1).
+                prefetchPages(4).open();
+        map = s.openMap("test");
+        for (int test = 0; test < 2; test++) {
+            int i = 100;
+            for (Iterator<Integer> it = map.keyIterator(100, true); it.hasNext(); i++) {
+                assertEquals(i, it.next().intValue());
+            }
+            assertEquals(10000, i);
+        }
+        // pages read ahead are not counted as cache misses
+        long prefetched = s.getPrefetchReadCount();
+        assertTrue(prefetched > 0);
+        assertTrue(s.getCacheMissCount(DataUtils.PAGE_TYPE_LEAF) +
+                prefetched <= s.getFileStore().getReadCount());
+        boolean found = false;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("MVStore prefetch")) {
+                found = true;
+            }
+        }
+        assertTrue(found);
+        // close while pages are read ahead
+        Iterator<Integer> it = map.keyIterator(0, true);
+        assertEquals(0, it.next().intValue());
+        s.close();
+    }
+
+    private void testPreloadRootPages() throws InterruptedException {
+        String fileName = getBaseDir() + "/testPreloadRootPages.h3";
+        FileUtils.delete(fileName);
+        MVStore s;
+        s = new MVStore.Builder().
+                fileName(fileName).open();
+        for (int i = 0; i < 100; i++) {
+            MVMap<Integer, String> map = s.openMap("data" + i);
+            map.put(i, "Hello " + i);
+        }
+        s.commit();
+        s.close();
+        s = new MVStore.Builder().
+                fileName(fileName).
+                preloadThreads(4).open();
+        // wait until the root pages are read
+        long readCount = -1;
+        for (int i = 0; i < 100 && readCount != s.getFileStore().getReadCount(); i++) {
+            readCount = s.getFileStore().getReadCount();
+            Thread.sleep(50);
+        }
+        for (int i = 0; i < 100; i++) {
+            MVMap<Integer, String> map = s.openMap("data" + i);
+            assertEquals("Hello " + i, map.get(i));
+        }
+        // the root pages were read in the background,
+        // only some pages of the metadata map are read
+        assertTrue(s.getFileStore().getReadCount() - readCount < 10);
+        // after a chunk was written, the remaining data is not used
+        MVMap<Integer, String> map = s.openMap("data0");
+        map.put(1, "World");
+        s.commit();
+        s.close();
+        s = new MVStore.Builder().
+                fileName(fileName).
+                preloadThreads(4).open();
+        map = s.openMap("data0");
+        map.put(2, "!");
+        s.commit();
+        for (int i = 0; i < 100; i++) {
+            map = s.openMap("data" + i);
+            assertEquals("Hello " + i, map.get(i));
+        }
+        assertEquals("World", s.<Integer, String>openMap("data0").get(1));
+        s.close();
+    }
+
+    private void testSnapshot() {
+        String fileName = getBaseDir() + "/testSnapshot.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                writeDelay(-1).open();
+        s.setRetentionTime(0);
+        MVMap<Integer, String> map = s.openMap("data");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.commit();
+        s.store();
+        MVStore.Snapshot snapshot = s.acquireSnapshot();
+        assertEquals(snapshot.getVersion(), s.getOldestSnapshotVersion());
+        MVMap<Integer, String> old = snapshot.openMap(map);
+        assertTrue(old.isReadOnly());
+        // overwrite the data many times; the old chunks
+        // are not re-used while the snapshot is in use
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < 1000; i++) {
+                map.put(i, "Hi " + j + " " + i);
+            }
+            s.commit();
+            s.store();
+            if (j == 10) {
+                old = snapshot.openMap(map);
+            }
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Hello " + i, old.get(i));
+        }
+        assertEquals("Hi 19 0", map.get(0));
+        snapshot.release();
+        snapshot.release();
+        assertTrue(snapshot.isReleased());
+        assertEquals(-1, s.getOldestSnapshotVersion());
+        try {
+            snapshot.openMap(map);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_CLOSED,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        // now the old chunks are re-used
+        long size = s.getFileStore().size();
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < 1000; i++) {
+                map.put(i, "Hallo " + j + " " + i);
+            }
+            s.commit();
+            s.store();
+        }
+        assertTrue(s.getFileStore().size() <= size);
+        s.close();
+
+        // two snapshots: the newer one needs chunks
+        // that were written after the older one was created
+        FileUtils.delete(fileName);
+        s = new MVStore.Builder().
+                fileName(fileName).
+                writeDelay(-1).open();
+        s.setRetentionTime(0);
+        s.setReuseSpace(true);
+        map = s.openMap("data");
+        map.put(-1, "Hello");
+        s.commit();
+        s.store();
+        MVStore.Snapshot older = s.acquireSnapshot();
+        for (int i = 0; i < 2000; i++) {
+            map.put(i, "Hello " + i);
+        }
+        s.commit();
+        s.store();
+        MVStore.Snapshot newer = s.acquireSnapshot();
+        old = newer.openMap(map);
+        for (int j = 0; j < 20; j++) {
+            for (int i = 0; i < 2000; i++) {
+                map.put(i, "Hi " + j + " " + i);
+            }
+            s.commit();
+            s.store();
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("Hello " + i, old.get(i));
+        }
+        assertNull(older.openMap(map).get(0));
+        newer.release();
+        older.release();
+        s.close();
+    }
+
+    private void testCompressionLevel() {
+        String fileName = getBaseDir() + "/testCompressionLevel.h3";
+        long[] sizes = new long[3];
+        for (int level = 0; level < 3; level++) {
+            FileUtils.delete(fileName);
+            MVStore.Builder builder = new MVStore.Builder().
+                    fileName(fileName);
+            if (level == 1) {
+                builder.compressData();
+            } else if (level == 2) {
+                builder.compressHigh();
+            }
+            MVStore s = builder.open();
+            assertEquals(level, s.getCompressionLevel());
+            MVMap<Integer, String> map = s.openMap("test");
+            for (int i = 0; i < 1000; i++) {
+                map.put(i, "Hello World " + i % 10);
+            }
+            s.store();
+            s.close();
+            sizes[level] = FileUtils.size(fileName);
+            s = new MVStore.Builder().fileName(fileName).open();
+            map = s.openMap("test");
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("Hello World " + i % 10, map.get(i));
+            }
+            s.close();
+        }
+        assertTrue(sizes[1] < sizes[0]);
+        assertTrue(sizes[2] < sizes[1]);
+
+        // the compression level of a map overrides the one of the store
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                compressData().open();
+        MVMap<Integer, String> hot = s.openMap("hot");
+        MVMap<Integer, String> cold = s.openMap("cold",
+                new MVMap.Builder<Integer, String>().compressionLevel(2));
+        assertEquals(1, hot.getCompressionLevel());
+        assertEquals(2, cold.getCompressionLevel());
+        for (int i = 0; i < 1000; i++) {
+            hot.put(i, "Hello World " + i % 10);
+            cold.put(i, "Hello World " + i % 10);
+        }
+        s.store();
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        hot = s.openMap("hot");
+        cold = s.openMap("cold");
+        assertEquals(0, cold.getCompressionLevel());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Hello World " + i % 10, hot.get(i));
+            assertEquals("Hello World " + i % 10, cold.get(i));
+        }
+        s.close();
+    }
+
     private void testConcurrentOpen() {
         String fileName = getBaseDir() + "/testConcurrentOpen.h3";
         MVStore s = new MVStore.Builder().fileName(fileName).open();
@@ -1481,6 +2448,228 @@ public class TestMVStore extends TestBase {
         // System.out.println("len2: " + len);
     }
 
+    private void testAutoCompact() throws InterruptedException {
+        String fileName = getBaseDir() + "/testAutoCompact.h3";
+        FileUtils.delete(fileName);
+        MVStore s = new MVStore.Builder().
+                fileName(fileName).
+                pageSplitSize(1000).
+                writeDelay(10).
+                autoCompactWriteRate(100).
+                open();
+        s.setRetentionTime(0);
+        assertEquals(0, s.getAutoCompactFillRate());
+        MVMap<Integer, String> m = s.openMap("data");
+        for (int i = 0; i < 10000; i++) {
+            m.put(i, "Hello " + i);
+            if (i % 1000 == 999) {
+                s.commit();
+                s.store();
+            }
+        }
+        // only update half of the entries of each chunk,
+        // so that all chunks are partially live
+        for (int i = 0; i < 10000; i++) {
+            if (i % 1000 < 500) {
+                m.put(i, "Hi " + i);
+            }
+        }
+        s.commit();
+        s.store();
+        // the freed space is applied when storing the next time
+        s.setStoreVersion(1);
+        s.store();
+        int fillRate = s.getChunksFillRate();
+        assertTrue("fillRate: " + fillRate, fillRate < 80);
+        assertEquals(0, s.getCompactRewrittenBytes());
+        s.setAutoCompactFillRate(80);
+        for (int i = 0; i < 500; i++) {
+            if (s.getCompactRewrittenBytes() > 0 &&
+                    s.getChunksFillRate() > fillRate) {
+                break;
+            }
+            Thread.sleep(20);
+            // store the re-written pages
+            s.commit();
+            s.store();
+        }
+        assertTrue("rewritten: " + s.getCompactRewrittenBytes(),
+                s.getCompactRewrittenBytes() > 0);
+        assertTrue("fillRate: " + fillRate + " now: " + s.getChunksFillRate(),
+                s.getChunksFillRate() > fillRate);
+        s.close();
+        s = new MVStore.Builder().fileName(fileName).open();
+        m = s.openMap("data");
+        for (int i = 0; i < 10000; i++) {
+            assertEquals((i % 1000 < 500 ? "Hi " : "Hello ") + i, m.get(i));
+        }
+        s.close();
+    }
+
+    private void testShardedMap() {
+        String fileName = getBaseDir() + "/testShardedMap.h3";
+        FileUtils.delete(fileName);
+        MVStore s = openStore(fileName);
+        ShardedMVMap<Integer, String> hash = new ShardedMVMap.Builder<Integer, String>().
+                shardCount(4).open(s, "hash");
+        ShardedMVMap<Integer, String> range = new ShardedMVMap.Builder<Integer, String>().
+                splitKeys(100, 200).open(s, "range");
+        assertEquals(4, hash.getShardCount());
+        assertFalse(hash.isRangePartitioned());
+        assertEquals(3, range.getShardCount());
+        assertTrue(range.isRangePartitioned());
+        assertTrue(hash.isEmpty());
+        assertNull(hash.firstKey());
+        for (int i = 299; i >= 0; i--) {
+            hash.put(i, "Hello " + i);
+            range.put(i, "Hello " + i);
+        }
+        for (int i = 0; i < 4; i++) {
+            assertTrue(hash.getShard(i).size() > 0);
+        }
+        assertEquals(100, range.getShard(0).size());
+        assertEquals(100, range.getShard(1).size());
+        assertEquals(100, range.getShard(2).size());
+        s.store();
+        s.close();
+
+        s = openStore(fileName);
+        // the persisted layout is used
+        hash = new ShardedMVMap.Builder<Integer, String>().open(s, "hash");
+        range = new ShardedMVMap.Builder<Integer, String>().open(s, "range");
+        assertEquals(4, hash.getShardCount());
+        assertEquals(3, range.getShardCount());
+        checkShardedMap(hash);
+        checkShardedMap(range);
+        s.close();
+    }
+
+    private void checkShardedMap(ShardedMVMap<Integer, String> m) {
+        assertEquals(300, m.size());
+        assertEquals(0, m.firstKey().intValue());
+        assertEquals(299, m.lastKey().intValue());
+        int expected = 0;
+        for (int k : m.keySet()) {
+            assertEquals(expected++, k);
+        }
+        assertEquals(300, expected);
+        Iterator<Integer> it = m.keyIterator(150);
+        for (int i = 150; i < 300; i++) {
+            assertEquals(i, it.next().intValue());
+        }
+        assertFalse(it.hasNext());
+        for (Map.Entry<Integer, String> e : m.entrySet()) {
+            assertEquals("Hello " + e.getKey(), e.getValue());
+        }
+        assertEquals("Hello 10", m.remove(10));
+        assertNull(m.get(10));
+        assertNull(m.putIfAbsent(10, "Hi"));
+        assertEquals("Hi", m.get(10));
+        assertTrue(m.replace(10, "Hi", "Hello 10"));
+        m.clear();
+        assertTrue(m.isEmpty());
+    }
+
+    private void testLSMMap() throws InterruptedException {
+        String fileName = getBaseDir() + "/testLSMMap.h3";
+        FileUtils.delete(fileName);
+        MVStore s = openStore(fileName);
+        LSMMap<Integer, String> m = new LSMMap.Builder<Integer, String>().
+                firstLevelSize(100).fanout(4).open(s, "data");
+        assertTrue(m.isEmpty());
+        assertEquals(1, m.getLevelCount());
+        assertEquals(1.0, m.getWriteAmplification());
+        for (int i = 0; i < 2000; i++) {
+            m.write(i, "Hello " + i);
+        }
+        for (int i = 0; i < 2000; i += 2) {
+            m.delete(i);
+        }
+        for (int i = 0; i < 2000; i += 4) {
+            m.write(i, "Hi " + i);
+        }
+        assertTrue(m.getLevelCount() > 2);
+        assertTrue(m.getMergeWriteCount() > 0);
+        assertTrue(m.getWriteAmplification() > 1);
+        assertEquals(3500, m.getUserWriteCount());
+        checkLSMMap(m);
+        s.store();
+        m.close();
+        s.close();
+
+        s = openStore(fileName);
+        m = new LSMMap.Builder<Integer, String>().
+                firstLevelSize(100).fanout(4).backgroundMerge().open(s, "data");
+        checkLSMMap(m);
+        assertEquals("Hi 0", m.put(0, "Hello 0"));
+        assertEquals("Hello 0", m.remove(0));
+        assertNull(m.remove(0));
+        assertNull(m.get(0));
+        for (int i = 0; i < 300; i++) {
+            m.write(10000 + i, "x");
+        }
+        // the background thread merges the first level
+        for (int i = 0; i < 100 && m.getLevel(0).size() >= 100; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(m.getLevel(0).size() < 100);
+        m.clear();
+        assertTrue(m.isEmpty());
+
+        // writers and readers are not blocked while merging
+        final LSMMap<Integer, String> m2 = m;
+        final AtomicInteger written = new AtomicInteger(-1);
+        Task task = new Task() {
+            @Override
+            public void call() throws Exception {
+                for (int i = 0; !stop && i < 5000; i++) {
+                    m2.write(i, "Hello " + i);
+                    written.set(i);
+                }
+            }
+        };
+        task.execute();
+        while (written.get() < 4999) {
+            int i = written.get();
+            if (i >= 0) {
+                assertEquals("Hello " + i, m.get(i));
+                assertEquals("Hello 0", m.get(0));
+            }
+        }
+        task.get();
+        assertEquals(5000, m.size());
+        m.close();
+        try {
+            m.write(1, "x");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_CLOSED,
+                    DataUtils.getErrorCode(e.getMessage()));
+        }
+        s.close();
+    }
+
+    private void checkLSMMap(LSMMap<Integer, String> m) {
+        for (int i = 0; i < 2000; i++) {
+            String expected = i % 4 == 0 ? "Hi " + i :
+                i % 2 == 0 ? null : "Hello " + i;
+            assertEquals(expected, m.get(i));
+        }
+        assertEquals(1500, m.size());
+        int last = -1;
+        for (Map.Entry<Integer, String> e : m.entrySet()) {
+            int k = e.getKey();
+            assertTrue(k > last);
+            assertTrue(k % 4 != 2);
+            assertEquals(m.get(k), e.getValue());
+            last = k;
+        }
+        Iterator<Integer> it = m.keyIterator(1000);
+        assertEquals(1000, it.next().intValue());
+        assertEquals(1001, it.next().intValue());
+        assertEquals(1003, it.next().intValue());
+    }
+
     private void testReuseSpace() {
         String fileName = getBaseDir() + "/testReuseSpace.h3";
         FileUtils.delete(fileName);
@@ -52,11 +52,13 @@ public class TestMVTableEngine extends TestBase {
         testTwoPhaseCommit();
         testRecover();
         testSeparateKey();
+        testCreateIndex();
         testRollback();
         testRollbackAfterCrash();
         testReferentialIntegrity();
         testWriteDelay();
         testAutoCommit();
+        testMinMaxWithNull();
         testReopen();
         testBlob();
         testExclusiveLock();
@@ -65,6 +67,7 @@ public class TestMVTableEngine extends TestBase {
         testReuseDiskSpace();
         testDataTypes();
         testLocking();
+        testLockingMultiThreaded();
         testSimple();
     }
 
@@ -242,6 +245,47 @@ public class TestMVTableEngine extends TestBase {
         conn.close();
     }
 
+    private void testCreateIndex() throws Exception {
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        Connection conn;
+        Statement stat;
+        ResultSet rs;
+
+        String url = "mvstore;MV_STORE=TRUE";
+
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        // more rows than are sorted in memory
+        stat.execute("create table test(id int primary key, name varchar) " +
+                "as select x, 'Hello ' || mod(x * 7, 25000) " +
+                "from system_range(1, 25000)");
+        stat.execute("create index idx_name on test(name)");
+        stat.execute("create unique index idx_name_id on test(name, id)");
+        rs = stat.executeQuery("select count(*) from test " +
+                "where name >= 'Hello 1' and name < 'Hello 2'");
+        rs.next();
+        assertEquals(11111, rs.getInt(1));
+        stat.execute("insert into test values(25001, 'Hello 1')");
+        assertThrows(ErrorCode.DUPLICATE_KEY_1, stat).
+                execute("create unique index idx_unique_name on test(name)");
+        stat.execute("delete from test where id = 25001");
+        stat.execute("create unique index idx_unique_name on test(name)");
+        conn.close();
+
+        conn = getConnection(url);
+        stat = conn.createStatement();
+        rs = stat.executeQuery("select id from test where name = 'Hello 7'");
+        assertTrue(rs.next());
+        assertEquals(1, rs.getInt(1));
+        assertFalse(rs.next());
+        rs = stat.executeQuery("select count(distinct index_name) " +
+                "from information_schema.indexes " +
+                "where table_name = 'TEST'");
+        rs.next();
+        assertEquals(4, rs.getInt(1));
+        conn.close();
+    }
+
     private void testRollbackAfterCrash() throws Exception {
         FileUtils.deleteRecursive(getBaseDir(), true);
         Connection conn;
@@ -426,6 +470,34 @@ public class TestMVTableEngine extends TestBase {
         conn.close();
     }
 
+    private void testMinMaxWithNull() throws Exception {
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        Connection conn = getConnection("mvstoreMinMax;MV_STORE=TRUE");
+        Statement stat = conn.createStatement();
+        stat.execute("create table test(id int primary key, x int)");
+        stat.execute("create index on test(x)");
+        stat.execute("insert into test select x, null from system_range(1, 1000)");
+        assertSingleValue(stat, "select min(x) from test", 0);
+        stat.execute("insert into test select x, x from system_range(1001, 1010)");
+        assertSingleValue(stat, "select min(x) from test", 1001);
+        assertSingleValue(stat, "select max(x) from test", 1010);
+        assertSingleValue(stat, "select count(*) from test", 1010);
+        conn.setAutoCommit(false);
+        stat.execute("delete from test where x = 1001");
+        stat.execute("insert into test values(2000, 2000)");
+        assertSingleValue(stat, "select min(x) from test", 1002);
+        assertSingleValue(stat, "select max(x) from test", 2000);
+        assertSingleValue(stat, "select count(*) from test", 1010);
+        stat.execute("update test set x = null where x > 1002");
+        assertSingleValue(stat, "select max(x) from test", 1002);
+        conn.rollback();
+        assertSingleValue(stat, "select min(x) from test", 1001);
+        assertSingleValue(stat, "select max(x) from test", 1010);
+        assertSingleValue(stat, "select count(*) from test", 1010);
+        stat.execute("drop table test");
+        conn.close();
+    }
+
     private void testReopen() throws SQLException {
         FileUtils.deleteRecursive(getBaseDir(), true);
         Connection conn;
@@ -737,6 +809,48 @@ public class TestMVTableEngine extends TestBase {
         conn.close();
     }
 
+    private void testLockingMultiThreaded() throws Exception {
+        FileUtils.deleteRecursive(getBaseDir(), true);
+        // tables are locked independently of each other
+        String dbName = "mvstoreLocking;MV_STORE=TRUE;MULTI_THREADED=TRUE";
+        Connection conn = getConnection(dbName);
+        Statement stat = conn.createStatement();
+        stat.execute("set lock_timeout 2000");
+        stat.execute("create table a(id int primary key, name varchar)");
+        stat.execute("create table b(id int primary key, name varchar)");
+
+        Connection conn1 = getConnection(dbName);
+        final Statement stat1 = conn1.createStatement();
+        stat1.execute("set lock_timeout 2000");
+
+        conn.setAutoCommit(false);
+        conn1.setAutoCommit(false);
+        stat.execute("insert into a values(1, 'Hello')");
+        stat1.execute("insert into b values(1, 'Hello')");
+        Task t = new Task() {
+            @Override
+            public void call() throws Exception {
+                stat1.execute("insert into a values(2, 'World')");
+            }
+        };
+        t.execute();
+        try {
+            stat.execute("insert into b values(2, 'World')");
+            throw t.getException();
+        } catch (SQLException e) {
+            assertEquals(e.toString(), ErrorCode.DEADLOCK_1, e.getErrorCode());
+        }
+        // the waiting session gets the lock when the other one commits
+        conn.rollback();
+        t.get();
+        conn1.commit();
+        ResultSet rs = stat.executeQuery("select count(*) from a");
+        rs.next();
+        assertEquals(1, rs.getInt(1));
+        conn1.close();
+        conn.close();
+    }
+
     private void testSimple() throws Exception {
         FileUtils.deleteRecursive(getBaseDir(), true);
         String dbName = "mvstore;MV_STORE=TRUE";
@@ -51,6 +51,56 @@ public class TestStreamStore extends TestBase {
         testWithExistingData();
         testWithFullMap();
         testLoop();
+        testDeduplication();
+    }
+
+    private void testDeduplication() throws IOException {
+        HashMap<Long, byte[]> map = New.hashMap();
+        HashMap<Long, Long> refCounts = New.hashMap();
+        StreamStore store = new StreamStore(map);
+        store.setMinBlockSize(64);
+        store.setMaxBlockSize(64 * 1024);
+        store.setDeduplication(refCounts);
+        Random r = new Random(1);
+        byte[] data = new byte[1024 * 1024];
+        r.nextBytes(data);
+        byte[] id1 = store.put(new ByteArrayInputStream(data));
+        int blocks = map.size();
+        assertTrue(blocks > 100);
+        long stored = 0;
+        for (byte[] b : map.values()) {
+            stored += b.length;
+        }
+        // the same data again: no new blocks
+        byte[] id2 = store.put(new ByteArrayInputStream(data));
+        assertEquals(blocks, map.size());
+        // insert a few bytes in the middle: only a few new blocks
+        byte[] data2 = new byte[data.length + 10];
+        System.arraycopy(data, 0, data2, 0, 500000);
+        System.arraycopy(data, 500000, data2, 500010, data.length - 500000);
+        byte[] id3 = store.put(new ByteArrayInputStream(data2));
+        long stored2 = 0;
+        for (byte[] b : map.values()) {
+            stored2 += b.length;
+        }
+        assertTrue("" + (stored2 - stored), stored2 - stored < 64 * 1024);
+        assertTrue(Arrays.equals(data,
+                IOUtils.readBytesAndClose(store.get(id1), -1)));
+        assertTrue(Arrays.equals(data2,
+                IOUtils.readBytesAndClose(store.get(id3), -1)));
+        store.remove(id1);
+        assertTrue(Arrays.equals(data,
+                IOUtils.readBytesAndClose(store.get(id2), -1)));
+        store.remove(id2);
+        assertTrue(Arrays.equals(data2,
+                IOUtils.readBytesAndClose(store.get(id3), -1)));
+        store.remove(id3);
+        assertEquals(0, map.size());
+        assertEquals(0, refCounts.size());
+        // small streams are still inlined
+        byte[] id = store.put(new ByteArrayInputStream(new byte[10]));
+        assertEquals(0, map.size());
+        assertEquals(10, store.length(id));
     }
 
     private void testReadCount() throws IOException {
@@ -15,8 +15,10 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 import org.h2.mvstore.db.TransactionStore;
@@ -45,8 +47,14 @@ public class TestTransactionStore extends TestBase {
     @Override
     public void test() throws Exception {
         FileUtils.createDirectories(getBaseDir());
+        testConcurrentWriters();
+        testWaitForCommit();
+        testDeadlock();
         testStopWhileCommitting();
         testGetModifiedMaps();
+        testAppendSorted();
+        testCount();
+        testAsyncCommit();
         testKeyIterator();
         testMultiStatement();
         testTwoPhaseCommit();
@@ -56,6 +64,167 @@ public class TestTransactionStore extends TestBase {
         testCompareWithPostgreSQL();
     }
 
+    private void testConcurrentWriters() throws Exception {
+        String fileName = getBaseDir() + "/testConcurrentWriters.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        final TransactionStore ts = new TransactionStore(s);
+        Task[] tasks = new Task[8];
+        for (int t = 0; t < tasks.length; t++) {
+            final int base = t * 10000;
+            tasks[t] = new Task() {
+
+                @Override
+                public void call() throws Exception {
+                    for (int i = 0; i < 50; i++) {
+                        Transaction tx = ts.begin();
+                        TransactionMap<Integer, Integer> m = tx.openMap("test");
+                        for (int j = 0; j < 20; j++) {
+                            m.put(base + i * 20 + j, i);
+                        }
+                        if (i % 5 == 0) {
+                            tx.rollback();
+                        } else {
+                            tx.commit();
+                        }
+                    }
+                }
+            };
+            tasks[t].execute();
+        }
+        for (Task t : tasks) {
+            t.get();
+        }
+        Transaction tx = ts.begin();
+        TransactionMap<Integer, Integer> m = tx.openMap("test");
+        assertEquals(8 * 40 * 20, m.sizeAsLong());
+        tx.commit();
+
+        // open transactions (in different undo log stripes)
+        // are listed in order after re-opening
+        for (int i = 0; i < 20; i++) {
+            tx = ts.begin();
+            m = tx.openMap("test");
+            m.put(-1 - i, i);
+        }
+        s.commit();
+        s.close();
+        s = MVStore.open(fileName);
+        TransactionStore ts2 = new TransactionStore(s);
+        List<Transaction> list = ts2.getOpenTransactions();
+        assertEquals(20, list.size());
+        for (int i = 1; i < list.size(); i++) {
+            assertTrue(list.get(i - 1).getId() < list.get(i).getId());
+        }
+        for (Transaction t : list) {
+            t.commit();
+        }
+        tx = ts2.begin();
+        m = tx.openMap("test");
+        assertEquals(8 * 40 * 20 + 20, m.sizeAsLong());
+        tx.commit();
+        ts2.close();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void testWaitForCommit() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.setLockTimeout(10000);
+        Transaction tx1 = ts.begin();
+        TransactionMap<Integer, String> m1 = tx1.openMap("test");
+        m1.put(1, "Hello");
+        final Transaction tx2 = ts.begin();
+        final TransactionMap<Integer, String> m2 = tx2.openMap("test");
+        Task task = new Task() {
+
+            @Override
+            public void call() throws Exception {
+                // waits until tx1 is committed
+                m2.put(1, "World");
+                tx2.commit();
+            }
+        };
+        task.execute();
+        Thread.sleep(50);
+        assertFalse(task.isFinished());
+        long start = System.currentTimeMillis();
+        tx1.commit();
+        task.get();
+        // woken up when committing, not after the timeout
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        Transaction tx = ts.begin();
+        assertEquals("World", tx.<Integer, String>openMap("test").get(1));
+        tx.commit();
+
+        // rolling back to a savepoint releases the entries as well
+        tx1 = ts.begin();
+        m1 = tx1.openMap("test");
+        long savepoint = tx1.setSavepoint();
+        m1.put(2, "Hello");
+        final Transaction tx3 = ts.begin();
+        final TransactionMap<Integer, String> m3 = tx3.openMap("test");
+        task = new Task() {
+
+            @Override
+            public void call() throws Exception {
+                m3.put(2, "World");
+                tx3.commit();
+            }
+        };
+        task.execute();
+        Thread.sleep(50);
+        tx1.rollbackToSavepoint(savepoint);
+        task.get();
+        tx1.commit();
+        s.close();
+    }
+
+    private void testDeadlock() throws Exception {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        ts.setLockTimeout(10000);
+        final Transaction tx1 = ts.begin();
+        final TransactionMap<Integer, String> m1 = tx1.openMap("test");
+        final Transaction tx2 = ts.begin();
+        final TransactionMap<Integer, String> m2 = tx2.openMap("test");
+        m1.put(1, "a");
+        m2.put(2, "b");
+        final AtomicInteger deadlocks = new AtomicInteger();
+        Task task = new Task() {
+
+            @Override
+            public void call() throws Exception {
+                try {
+                    m2.put(1, "b");
+                    tx2.commit();
+                } catch (IllegalStateException e) {
+                    assertEquals(DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                            DataUtils.getErrorCode(e.getMessage()));
+                    deadlocks.incrementAndGet();
+                    tx2.rollback();
+                }
+            }
+        };
+        task.execute();
+        Thread.sleep(50);
+        long start = System.currentTimeMillis();
+        try {
+            m1.put(2, "a");
+            tx1.commit();
+        } catch (IllegalStateException e) {
+            assertEquals(DataUtils.ERROR_TRANSACTION_DEADLOCK,
+                    DataUtils.getErrorCode(e.getMessage()));
+            deadlocks.incrementAndGet();
+            tx1.rollback();
+        }
+        task.get();
+        assertEquals(1, deadlocks.get());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        s.close();
+    }
+
     private void testStopWhileCommitting() throws Exception {
         String fileName = getBaseDir() + "/testStopWhileCommitting.h3";
         FileUtils.delete(fileName);
@@ -118,6 +287,295 @@ public class TestTransactionStore extends TestBase {
         }
     }
 
+    private void testAppendSorted() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx, tx2;
+        TransactionMap<Integer, String> m, m2;
+        TreeMap<Integer, String> data = new TreeMap<Integer, String>();
+        for (int i = 0; i < 1000; i++) {
+            data.put(i, "Hello " + i);
+        }
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(1000, m.appendSorted(data.entrySet().iterator()));
+        assertEquals(1000, m.sizeAsLong());
+        assertEquals("Hello 10", m.get(10));
+        tx2 = ts.begin();
+        m2 = tx2.openMap("test");
+        assertNull(m2.get(10));
+        assertFalse(m2.tryPut(10, "World"));
+        tx2.commit();
+        tx.rollback();
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertNull(m.get(10));
+        assertEquals(0, m.sizeAsLong());
+        m.appendSorted(data.entrySet().iterator());
+        tx.commit();
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals("Hello 999", m.get(999));
+        assertEquals(1000, m.sizeAsLong());
+        // not empty: the entries are added one by one
+        TreeMap<Integer, String> more = new TreeMap<Integer, String>();
+        more.put(1000, "Hello 1000");
+        assertEquals(1, m.appendSorted(more.entrySet().iterator()));
+        tx.rollback();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(1000, m.sizeAsLong());
+        assertNull(m.get(1000));
+        tx.commit();
+
+        s.close();
+    }
+
+    private void testCount() {
+        MVStore s = MVStore.open(null);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx, tx2;
+        TransactionMap<Integer, String> m, m2;
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 100; i++) {
+            m.put(i, "Hello " + i);
+        }
+        assertEquals(100, m.sizeAsLong());
+        tx.commit();
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        // added, removed, and added again
+        m.put(100, "Hello");
+        m.remove(100);
+        m.put(100, "World");
+        m.put(101, "World");
+        m.remove(0);
+        m.remove(1);
+        m.put(2, "World");
+        assertEquals(100, m.sizeAsLong());
+        assertEquals(100, countKeys(m));
+
+        tx2 = ts.begin();
+        m2 = tx2.openMap("test");
+        assertEquals(100, m2.sizeAsLong());
+        m2.put(200, "Hello");
+        m2.remove(50);
+        assertEquals(100, m2.sizeAsLong());
+        assertEquals(100, countKeys(m2));
+        assertEquals(100, m.sizeAsLong());
+
+        // the uncommitted changes of the other transaction are skipped
+        assertEquals(2, m.firstKey().intValue());
+        assertEquals(3, m.higherKey(2).intValue());
+        assertEquals(101, m.lowerKey(200).intValue());
+        assertEquals(49, m2.lowerKey(51).intValue());
+        assertEquals(0, m2.lowerKey(1).intValue());
+        assertNull(m2.higherKey(200));
+        assertEquals(99, m2.lowerKey(200).intValue());
+
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(100, m.sizeAsLong());
+        assertEquals(101, m.lastKey().intValue());
+        tx2.rollback();
+        assertEquals(100, m.sizeAsLong());
+        assertEquals(100, countKeys(m));
+        tx.commit();
+
+        // random operations of concurrent transactions
+        Random r = new Random(1);
+        Transaction[] txs = new Transaction[3];
+        @SuppressWarnings("unchecked")
+        TransactionMap<Integer, String>[] maps = new TransactionMap[txs.length];
+        long[] savepoints = new long[txs.length];
+        for (int i = 0; i < 3000; i++) {
+            int x = r.nextInt(txs.length);
+            if (txs[x] == null) {
+                txs[x] = ts.begin();
+                maps[x] = txs[x].openMap("test");
+            }
+            Transaction t = txs[x];
+            TransactionMap<Integer, String> map = maps[x];
+            int op = r.nextInt(100);
+            if (op < 2) {
+                t.commit();
+                txs[x] = null;
+            } else if (op < 4) {
+                t.rollback();
+                txs[x] = null;
+            } else if (op < 6) {
+                t.rollbackToSavepoint(savepoints[x]);
+            } else if (op < 8) {
+                savepoints[x] = t.setSavepoint();
+            } else {
+                // sometimes, many changes
+                int count = op == 99 ? 500 : 1;
+                for (int j = 0; j < count; j++) {
+                    int key = r.nextInt(200);
+                    if (r.nextBoolean()) {
+                        map.tryPut(key, "Hello " + i);
+                    } else {
+                        map.tryRemove(key);
+                    }
+                }
+            }
+            for (int j = 0; j < txs.length; j++) {
+                if (txs[j] != null) {
+                    assertEquals(countKeys(maps[j]), maps[j].sizeAsLong());
+                }
+            }
+        }
+        s.close();
+    }
+
+    private static long countKeys(TransactionMap<Integer, String> map) {
+        long count = 0;
+        for (Iterator<Integer> it = map.keyIterator(null); it.hasNext();) {
+            it.next();
+            count++;
+        }
+        return count;
+    }
+
+    private void testAsyncCommit() throws Exception {
+        String fileName = getBaseDir() + "/testAsyncCommit.h3";
+        FileUtils.delete(fileName);
+        MVStore s = MVStore.open(fileName);
+        TransactionStore ts = new TransactionStore(s);
+        Transaction tx;
+        TransactionMap<Integer, String> m;
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 0; i < 5000; i++) {
+            m.put(i, "Hello " + i);
+        }
+        tx.commit();
+        // visible and not locked, even if the undo log is not yet removed
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals("Hello 4999", m.get(4999));
+        assertEquals(5000, m.sizeAsLong());
+        assertTrue(m.tryPut(1, "World"));
+        tx.commit();
+        waitForCleanup(ts);
+
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 2000; i < 5000; i++) {
+            m.remove(i);
+        }
+        tx.commit();
+        // count while the removed entries are not yet cleaned up,
+        // and while another transaction has uncommitted changes
+        Transaction tx2 = ts.begin();
+        TransactionMap<Integer, String> m2 = tx2.openMap("test");
+        m2.put(6000, "World");
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(2000, m.sizeAsLong());
+        assertEquals(2001, m2.sizeAsLong());
+        tx.commit();
+        tx2.rollback();
+        // overwrite, remove again, and roll back the removed entries,
+        // possibly before the background thread processed them
+        tx = ts.begin();
+        m = tx.openMap("test");
+        m.put(2000, "World");
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        m.remove(4001);
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        m.put(4002, "World");
+        tx.rollback();
+        waitForCleanup(ts);
+        tx = ts.begin();
+        m = tx.openMap("test");
+        // the undo log is empty, so this is the size of the underlying map
+        assertEquals(2001, m.sizeAsLong());
+        assertEquals("World", m.get(1));
+        assertEquals("World", m.get(2000));
+        assertNull(m.get(4002));
+        tx.commit();
+
+        // read an entry of a transaction in the same undo log stripe
+        // while the undo log is removed
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 30000; i < 35000; i++) {
+            m.put(i, "Hello " + i);
+        }
+        Transaction tx3 = null;
+        for (int i = 0; i < 16; i++) {
+            tx3 = ts.begin();
+        }
+        TransactionMap<Integer, String> m3 = tx3.openMap("test");
+        m3.put(40000, "World");
+        tx.commit();
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertNull(m.get(40000));
+        tx3.rollback();
+        waitForCleanup(ts);
+        assertEquals("Hello 30000", m.get(30000));
+        assertEquals(7001, m.sizeAsLong());
+        for (int i = 30000; i < 35000; i++) {
+            m.remove(i);
+        }
+        tx.commit();
+        waitForCleanup(ts);
+
+        // close before the undo log is removed
+        tx = ts.begin();
+        m = tx.openMap("test");
+        for (int i = 10000; i < 20000; i++) {
+            m.put(i, "Hello " + i);
+        }
+        tx.commit();
+        ts.close();
+        s.close();
+
+        s = MVStore.open(fileName);
+        ts = new TransactionStore(s);
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals("Hello 19999", m.get(19999));
+        assertEquals(12001, m.sizeAsLong());
+        tx.commit();
+        for (Transaction t : ts.getOpenTransactions()) {
+            assertEquals(Transaction.STATUS_COMMITTING, t.getStatus());
+            t.commit();
+        }
+        waitForCleanup(ts);
+        tx = ts.begin();
+        m = tx.openMap("test");
+        assertEquals(12001, m.sizeAsLong());
+        tx.commit();
+        ts.close();
+        s.close();
+        FileUtils.delete(fileName);
+    }
+
+    private void waitForCleanup(TransactionStore ts) throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            if (ts.getOpenTransactions().isEmpty()) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("undo log not removed");
+    }
+
     private void testGetModifiedMaps() {
         MVStore s = MVStore.open(null);
         TransactionStore ts = new TransactionStore(s);